@@ -0,0 +1,26 @@
+package filestorage.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rates are reported with the times. Logging of every
+ * operation is turned off in the forked JVMs. Arguments are the usual JMH options, for example, a regular
+ * expression which selects benchmarks.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .jvmArgsAppend("-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+                .build()).run();
+    }
+}
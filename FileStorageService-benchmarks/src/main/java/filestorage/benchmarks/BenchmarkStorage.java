@@ -0,0 +1,54 @@
+package filestorage.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * This is util class. It creates storage roots of benchmarks on tmpfs, so the benchmarks measure the code of
+ * the service rather than the disk. The folder is taken from the 'filestorage.benchmark.dir' system property,
+ * '/dev/shm' or the temporary folder.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class BenchmarkStorage {
+
+    public static final String DIRECTORY_PROPERTY = "filestorage.benchmark.dir";
+
+    /**
+     * Disk space of benchmark storages, it never limits them.
+     */
+    public static final long DISK_SPACE = Long.MAX_VALUE / 4;
+
+    /**
+     * @param prefix name prefix of the storage root
+     * @return new empty storage root
+     */
+    public static Path newRoot(String prefix) throws IOException {
+        final Path shm = Paths.get("/dev/shm");
+        final String directory = System.getProperty(DIRECTORY_PROPERTY,
+                Files.isDirectory(shm) ? String.valueOf(shm) : System.getProperty("java.io.tmpdir"));
+        return Files.createTempDirectory(Paths.get(directory), prefix);
+    }
+
+    /**
+     * Deletes the storage root with all its files.
+     */
+    public static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) return;
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
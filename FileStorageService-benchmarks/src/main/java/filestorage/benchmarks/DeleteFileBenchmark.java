@@ -0,0 +1,59 @@
+package filestorage.benchmarks;
+
+import filestorage.impl.DefaultFileStorageService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deleting of a file. A delete takes less than a millisecond, so the score is the time of a batch of
+ * {@link #BATCH_SIZE} deletes. The files of the batch are saved before the iteration.
+ *
+ * @author Bogdan Kovalev.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = DeleteFileBenchmark.BATCH_SIZE)
+@Measurement(iterations = 20, batchSize = DeleteFileBenchmark.BATCH_SIZE)
+@Fork(1)
+public class DeleteFileBenchmark {
+
+    static final int BATCH_SIZE = 1000;
+
+    private Path root;
+    private DefaultFileStorageService service;
+    private final byte[] data = new byte[1024];
+    private final String[] keys = new String[BATCH_SIZE];
+    private int deleted;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        root = BenchmarkStorage.newRoot("delete");
+        service = new DefaultFileStorageService(BenchmarkStorage.DISK_SPACE, String.valueOf(root));
+        service.startService();
+    }
+
+    @Setup(Level.Iteration)
+    public void saveFiles() throws Throwable {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            keys[i] = "file-" + next++;
+            service.saveFile(keys[i], new ByteArrayInputStream(data));
+        }
+        deleted = 0;
+    }
+
+    @Benchmark
+    public void deleteFile() throws Throwable {
+        service.deleteFile(keys[deleted++]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        service.stopService();
+        BenchmarkStorage.delete(root);
+    }
+}
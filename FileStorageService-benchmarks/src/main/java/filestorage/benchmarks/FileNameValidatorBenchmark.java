@@ -0,0 +1,56 @@
+package filestorage.benchmarks;
+
+import filestorage.impl.FileNameValidator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of keys into file names. Clean keys are expected to be returned without allocations, the GC profiler
+ * shows it as zero bytes per operation.
+ *
+ * @author Bogdan Kovalev.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileNameValidatorBenchmark {
+
+    @Param({"clean", "escaped", "long"})
+    public String kind;
+
+    private String key;
+    private String name;
+
+    @Setup
+    public void setUp() {
+        switch (kind) {
+            case "clean":
+                key = "reports-2015-07-21.csv";
+                break;
+            case "escaped":
+                key = "reports/2015:07:21?.csv";
+                break;
+            default:
+                final StringBuilder builder = new StringBuilder();
+                while (builder.length() < 300) {
+                    builder.append("reports-2015-07-21/");
+                }
+                key = builder.toString();
+        }
+        name = FileNameValidator.encode(key);
+    }
+
+    @Benchmark
+    public String encode() {
+        return FileNameValidator.encode(key);
+    }
+
+    @Benchmark
+    public String decode() {
+        return FileNameValidator.decode(name);
+    }
+}
@@ -0,0 +1,75 @@
+package filestorage.benchmarks;
+
+import filestorage.impl.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deleting of N expired files by one check of the {@link LifeTimeWatcher}. The watcher works without its thread,
+ * the files and their life-times are created before every invocation.
+ *
+ * @author Bogdan Kovalev.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LifeTimeWatcherBenchmark {
+
+    private static final byte[] DATA = new byte[16];
+
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+
+    private Path root;
+    private ShardDirectories shardDirectories;
+    private SegmentStore segmentStore;
+    private StorageSpaceInspector inspector;
+    private LifeTimeWatcher watcher;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = BenchmarkStorage.newRoot("watcher");
+        shardDirectories = new ShardDirectories(new PathConstructor(), root.resolve("data"));
+        segmentStore = new SegmentStore(root.resolve("segments"), 64 * 1024 * 1024);
+        final KeyLockManager keyLocks = new KeyLockManager(256);
+        final ServiceMetrics metrics = new ServiceMetrics();
+        inspector = new StorageSpaceInspector(BenchmarkStorage.DISK_SPACE, String.valueOf(root), shardDirectories,
+                segmentStore, keyLocks, null, metrics);
+        watcher = new LifeTimeWatcher(String.valueOf(root), inspector, shardDirectories, metrics);
+    }
+
+    @Setup(Level.Invocation)
+    public void addExpiredFiles() throws Exception {
+        final List<String> names = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            final String name = "file-" + next++;
+            shardDirectories.ensureCreated(name);
+            Files.write(shardDirectories.resolve(name), DATA);
+            inspector.incrementUsedSpace(DATA.length);
+            inspector.registerFile(name, DATA.length);
+            names.add(name);
+        }
+        watcher.addFiles(names, 0);
+    }
+
+    @Benchmark
+    public int deleteExpiredFiles() {
+        return watcher.deleteExpiredFiles();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        watcher.close();
+        segmentStore.close();
+        BenchmarkStorage.delete(root);
+    }
+}
@@ -0,0 +1,41 @@
+package filestorage.benchmarks;
+
+import filestorage.impl.PathConstructor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calculation of the destination folder of a key.
+ *
+ * @author Bogdan Kovalev.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathConstructorBenchmark {
+
+    private final PathConstructor pathConstructor = new PathConstructor();
+    private final String[] keys = new String[1024];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "file-" + i + ".dat";
+        }
+    }
+
+    @Benchmark
+    public String calculateDestinationPath() {
+        return pathConstructor.calculateDestinationPath(keys[next++ & (keys.length - 1)], "storage");
+    }
+
+    @Benchmark
+    public int shardOf() {
+        return pathConstructor.shardOf(keys[next++ & (keys.length - 1)]);
+    }
+}
@@ -0,0 +1,58 @@
+package filestorage.benchmarks;
+
+import filestorage.impl.DefaultFileStorageService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purge of the whole storage of N files. The storage is filled before every invocation.
+ *
+ * @author Bogdan Kovalev.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PurgeBenchmark {
+
+    private static final int FILE_SIZE = 1024;
+
+    @Param({"1000", "10000", "100000"})
+    public int files;
+
+    private Path root;
+    private DefaultFileStorageService service;
+    private final byte[] data = new byte[FILE_SIZE];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        root = BenchmarkStorage.newRoot("purge");
+        // the system folder takes space too, so the purge to 100% of free space deletes all files
+        service = new DefaultFileStorageService(2L * files * FILE_SIZE, String.valueOf(root));
+        service.startService();
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() throws Throwable {
+        for (int i = 0; i < files; i++) {
+            service.saveFile("file-" + next++, new ByteArrayInputStream(data));
+        }
+    }
+
+    @Benchmark
+    public void purge() throws Throwable {
+        service.purge(1.0f);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        service.stopService();
+        BenchmarkStorage.delete(root);
+    }
+}
@@ -0,0 +1,75 @@
+package filestorage.benchmarks;
+
+import filestorage.FileRangeChannel;
+import filestorage.impl.DefaultFileStorageService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading of a whole file through the stream and of a part of it through a range.
+ *
+ * @author Bogdan Kovalev.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadFileBenchmark {
+
+    private static final String KEY = "file";
+    private static final int PART_SIZE = 4096;
+
+    @Param({"1024", "65536", "1048576", "16777216", "104857600"})
+    public int size;
+
+    private Path root;
+    private DefaultFileStorageService service;
+    private final byte[] buffer = new byte[64 * 1024];
+    private final ByteBuffer part = ByteBuffer.allocate(PART_SIZE);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        root = BenchmarkStorage.newRoot("read");
+        service = new DefaultFileStorageService(BenchmarkStorage.DISK_SPACE, String.valueOf(root));
+        service.startService();
+
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        service.saveFile(KEY, new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public long readFile() throws Throwable {
+        long read = 0;
+        try (final InputStream inputStream = service.readFile(KEY)) {
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                read += count;
+            }
+        }
+        return read;
+    }
+
+    @Benchmark
+    public ByteBuffer readRange() throws Throwable {
+        part.clear();
+        try (final FileRangeChannel range = service.readRange(KEY, size / 2, PART_SIZE)) {
+            while (part.hasRemaining() && range.read(part) > 0) ;
+        }
+        return part;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        service.stopService();
+        BenchmarkStorage.delete(root);
+    }
+}
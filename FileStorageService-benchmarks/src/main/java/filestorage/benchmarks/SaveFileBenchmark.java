@@ -0,0 +1,74 @@
+package filestorage.benchmarks;
+
+import filestorage.impl.DefaultFileStorageService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving of small files. A save takes less than a millisecond, so the score is the time of a batch of
+ * {@link #BATCH_SIZE} saves. Keys of the batch are created before the iteration and the saved files are deleted
+ * after it, so the storage doesn't grow during the measurement. Large files are measured by
+ * {@link SaveLargeFileBenchmark}.
+ *
+ * @author Bogdan Kovalev.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = SaveFileBenchmark.BATCH_SIZE)
+@Measurement(iterations = 20, batchSize = SaveFileBenchmark.BATCH_SIZE)
+@Fork(1)
+public class SaveFileBenchmark {
+
+    static final int BATCH_SIZE = 100;
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private Path root;
+    private DefaultFileStorageService service;
+    private byte[] data;
+    private final String[] keys = new String[BATCH_SIZE];
+    private int saved;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        root = BenchmarkStorage.newRoot("save");
+        service = new DefaultFileStorageService(BenchmarkStorage.DISK_SPACE, String.valueOf(root));
+        service.startService();
+
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+    }
+
+    @Setup(Level.Iteration)
+    public void nextKeys() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            keys[i] = "file-" + next++;
+        }
+        saved = 0;
+    }
+
+    @Benchmark
+    public void saveFile() throws Throwable {
+        service.saveFile(keys[saved++], new ByteArrayInputStream(data));
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteFiles() throws Throwable {
+        for (int i = 0; i < saved; i++) {
+            service.deleteFile(keys[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        service.stopService();
+        BenchmarkStorage.delete(root);
+    }
+}
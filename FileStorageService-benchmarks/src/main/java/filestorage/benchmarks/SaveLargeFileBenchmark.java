@@ -0,0 +1,64 @@
+package filestorage.benchmarks;
+
+import filestorage.impl.DefaultFileStorageService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving of large files. A save takes many milliseconds, so the key is chosen and the saved file is deleted
+ * around every invocation without distorting the measurement, and the storage doesn't grow.
+ *
+ * @author Bogdan Kovalev.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveLargeFileBenchmark {
+
+    @Param({"16777216", "104857600"})
+    public int size;
+
+    private Path root;
+    private DefaultFileStorageService service;
+    private byte[] data;
+    private String key;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        root = BenchmarkStorage.newRoot("save-large");
+        service = new DefaultFileStorageService(BenchmarkStorage.DISK_SPACE, String.valueOf(root));
+        service.startService();
+
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextKey() {
+        key = "file-" + next++;
+    }
+
+    @Benchmark
+    public void saveFile() throws Throwable {
+        service.saveFile(key, new ByteArrayInputStream(data));
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteFile() throws Throwable {
+        service.deleteFile(key);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        service.stopService();
+        BenchmarkStorage.delete(root);
+    }
+}
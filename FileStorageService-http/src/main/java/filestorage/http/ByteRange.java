@@ -0,0 +1,66 @@
+package filestorage.http;
+
+/**
+ * Single range of the 'Range: bytes=...' header resolved against the size of the file. Several ranges aren't
+ * supported, so such requests are answered with the whole file, as HTTP allows.
+ *
+ * @author Bogdan Kovalev
+ */
+public class ByteRange {
+
+    /**
+     * Range which starts beyond the end of the file.
+     */
+    public static final ByteRange UNSATISFIABLE = new ByteRange(0, -1);
+
+    private final long first;
+    private final long last;
+
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * @param header value of the 'Range' header or null
+     * @param size   size of the file
+     * @return range, {@link #UNSATISFIABLE} or null if the whole file is sent
+     */
+    public static ByteRange parse(String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) return null;
+
+        final String spec = header.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+
+        try {
+            if (dash == 0) {
+                // the last bytes of the file
+                final long suffix = Long.parseLong(spec.substring(1));
+                if (suffix < 0) return null;
+                if (suffix == 0 || size == 0) return UNSATISFIABLE;
+                return new ByteRange(Math.max(0, size - suffix), size - 1);
+            }
+
+            final long first = Long.parseLong(spec.substring(0, dash));
+            final long last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+            if (first < 0 || last < first) return null;
+            if (first >= size) return UNSATISFIABLE;
+            return new ByteRange(first, Math.min(last, size - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long length() {
+        return last - first + 1;
+    }
+}
@@ -0,0 +1,89 @@
+package filestorage.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Body sent with 'Transfer-Encoding: chunked'. Chunk headers are parsed from the connection and chunk data is read
+ * into the caller's buffer, so the body is never collected in memory.
+ *
+ * @author Bogdan Kovalev
+ */
+public class ChunkedBody extends RequestBody {
+
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private long chunkRemaining;
+    private boolean started;
+    private boolean finished;
+
+    public ChunkedBody(HttpConnection connection) {
+        super(connection);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (finished) return -1;
+
+        if (chunkRemaining == 0) {
+            // the data of the previous chunk ends with an empty line
+            if (started && !readLine().isEmpty())
+                throw new IOException("Invalid end of a chunk");
+            started = true;
+
+            chunkRemaining = readChunkSize();
+            if (chunkRemaining == 0) {
+                // trailers are ignored
+                while (!readLine().isEmpty()) ;
+                finished = true;
+                return -1;
+            }
+        }
+
+        final int read = connection.readBody(dst, chunkRemaining);
+        if (read < 0)
+            throw new EOFException("Connection is closed inside a chunk");
+        chunkRemaining -= read;
+        return read;
+    }
+
+    private long readChunkSize() throws IOException {
+        final String line = readLine();
+        final int extension = line.indexOf(';');
+        final String size = (extension < 0 ? line : line.substring(0, extension)).trim();
+        try {
+            final long chunkSize = Long.parseLong(size, 16);
+            if (chunkSize < 0) throw new NumberFormatException();
+            return chunkSize;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: " + line);
+        }
+    }
+
+    private String readLine() throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = connection.readByte()) != '\n') {
+            if (b < 0)
+                throw new EOFException("Connection is closed inside a chunk header");
+            if (line.length() == MAX_LINE_LENGTH)
+                throw new IOException("Chunk header is too long");
+            line.append((char) b);
+        }
+        final int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r')
+            line.setLength(length - 1);
+        return line.toString();
+    }
+
+    @Override
+    public long size() {
+        return -1;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+}
@@ -0,0 +1,43 @@
+package filestorage.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Body with the 'Content-Length'.
+ *
+ * @author Bogdan Kovalev
+ */
+public class FixedLengthBody extends RequestBody {
+
+    private final long size;
+    private long remaining;
+
+    public FixedLengthBody(HttpConnection connection, long size) {
+        super(connection);
+        this.size = size;
+        this.remaining = size;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (remaining == 0) return -1;
+
+        final int read = connection.readBody(dst, remaining);
+        if (read < 0)
+            throw new EOFException("Connection is closed after " + (size - remaining) + " of " + size + " bytes");
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return remaining == 0;
+    }
+}
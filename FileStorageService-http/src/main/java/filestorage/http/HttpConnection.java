@@ -0,0 +1,183 @@
+package filestorage.http;
+
+import filestorage.FileRangeChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client connection with the bytes which are read but not consumed yet. While the connection waits for a request,
+ * it is non-blocking and is watched by its {@link SelectorLoop}. The request is served in the blocking mode by a
+ * worker thread, so the body is streamed from the socket and the response is sent by the file system. Every
+ * read or write marks the connection as active, so the server can close the connection which is stalled by its
+ * client.
+ *
+ * @author Bogdan Kovalev
+ */
+public class HttpConnection implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HttpConnection.class);
+
+    /**
+     * Maximum size of a request head.
+     */
+    static final int INPUT_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Minimum rate in bytes per second of sending a file. The file is sent by one blocking call, so the connection
+     * isn't active while the file is sent at this rate at least.
+     */
+    static final long MIN_TRANSFER_RATE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final SelectorLoop loop;
+
+    /**
+     * Read but not consumed bytes between the position and the limit.
+     */
+    private final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+    private volatile long lastActiveTime = System.currentTimeMillis();
+    private volatile long transferDeadline;
+
+    public HttpConnection(SocketChannel channel, SelectorLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+        input.flip();
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public SelectorLoop loop() {
+        return loop;
+    }
+
+    public long getLastActiveTime() {
+        return lastActiveTime;
+    }
+
+    public void touch() {
+        lastActiveTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @param now     current time in milliseconds
+     * @param timeout maximum time in milliseconds without reads and writes
+     * @return true if the connection isn't active longer than the 'timeout' and doesn't send a file
+     */
+    public boolean isStalled(long now, long timeout) {
+        return now - lastActiveTime > timeout && now > transferDeadline;
+    }
+
+    /**
+     * Reads more bytes into the input buffer.
+     *
+     * @return number of read bytes or -1 if the client closed the connection
+     */
+    public int fill() throws IOException {
+        input.compact();
+        try {
+            return channel.read(input);
+        } finally {
+            input.flip();
+            touch();
+        }
+    }
+
+    /**
+     * @return next request from the already read bytes or null if its head isn't read completely
+     */
+    public HttpRequest nextRequest() throws HttpException {
+        return HttpRequest.parse(input);
+    }
+
+    /**
+     * Reads the body of the current request. Already read bytes are consumed first, then the socket is read directly
+     * into the 'dst'.
+     *
+     * @param dst
+     * @param max maximum number of bytes to read
+     * @return number of read bytes or -1 if the client closed the connection
+     */
+    public int readBody(ByteBuffer dst, long max) throws IOException {
+        if (max <= 0 || !dst.hasRemaining()) return 0;
+
+        if (input.hasRemaining()) {
+            final int count = (int) Math.min(max, Math.min(input.remaining(), dst.remaining()));
+            final ByteBuffer slice = input.duplicate();
+            slice.limit(slice.position() + count);
+            dst.put(slice);
+            input.position(input.position() + count);
+            return count;
+        }
+
+        final int limit = dst.limit();
+        if (dst.remaining() > max)
+            dst.limit(dst.position() + (int) max);
+        try {
+            return channel.read(dst);
+        } finally {
+            dst.limit(limit);
+            touch();
+        }
+    }
+
+    /**
+     * @return next byte of the body or -1 if the client closed the connection
+     */
+    public int readByte() throws IOException {
+        if (!input.hasRemaining() && fill() < 0) return -1;
+        return input.hasRemaining() ? input.get() & 0xff : -1;
+    }
+
+    /**
+     * Writes the whole 'buffer' in the blocking mode.
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+            touch();
+        }
+    }
+
+    /**
+     * Sends the rest of the 'content' in the blocking mode without copying it through the heap.
+     *
+     * @return number of sent bytes
+     */
+    public long send(FileRangeChannel content) throws IOException {
+        transferDeadline = System.currentTimeMillis() + content.remaining() * 1000 / MIN_TRANSFER_RATE;
+        try {
+            return content.transferTo(channel);
+        } finally {
+            touch();
+            transferDeadline = 0;
+        }
+    }
+
+    /**
+     * Answers the invalid request without blocking and closes the connection.
+     */
+    public void reject(int status) {
+        try {
+            channel.write(new HttpResponse(status).header("Content-Length", 0).header("Connection", "close").head());
+        } catch (IOException ignored) {
+        }
+        close();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Can't close the connection: {}", e.getMessage());
+        }
+    }
+}
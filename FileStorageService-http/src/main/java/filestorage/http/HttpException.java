@@ -0,0 +1,20 @@
+package filestorage.http;
+
+/**
+ * Request which can't be served. The connection is answered with the 'status' and closed.
+ *
+ * @author Bogdan Kovalev
+ */
+public class HttpException extends Exception {
+
+    private final int status;
+
+    public HttpException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,186 @@
+package filestorage.http;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Request line and headers of a request. The body isn't a part of the request, it is read from the connection
+ * by a {@link RequestBody}.
+ *
+ * @author Bogdan Kovalev
+ */
+public class HttpRequest {
+
+    private final String method;
+    private final String target;
+    private final String version;
+    private final Map<String, String> headers;
+
+    private HttpRequest(String method, String target, String version, Map<String, String> headers) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headers = headers;
+    }
+
+    /**
+     * Parses the head of the next request from the 'input' and moves the position of the 'input' to the first byte
+     * after the head.
+     *
+     * @param input bytes read from the connection
+     * @return request or null if the head isn't read completely
+     * @throws HttpException if the head is invalid or doesn't fit into the 'input'
+     */
+    public static HttpRequest parse(ByteBuffer input) throws HttpException {
+        // empty lines before the request line are ignored
+        while (input.remaining() >= 2 && input.get(input.position()) == '\r' && input.get(input.position() + 1) == '\n') {
+            input.position(input.position() + 2);
+        }
+
+        final int end = headEnd(input);
+        if (end < 0) {
+            if (input.remaining() == input.capacity())
+                throw new HttpException(431, "Request head is too large");
+            return null;
+        }
+
+        final byte[] head = new byte[end - input.position()];
+        input.get(head);
+        input.position(end + 4);
+
+        final String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+        final String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3)
+            throw new HttpException(400, "Invalid request line: " + lines[0]);
+        if (!requestLine[2].startsWith("HTTP/1."))
+            throw new HttpException(505, "Unsupported version: " + requestLine[2]);
+
+        final Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            if (colon <= 0 || Character.isWhitespace(lines[i].charAt(0)))
+                throw new HttpException(400, "Invalid header: " + lines[i]);
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+        }
+        return new HttpRequest(requestLine[0], requestLine[1], requestLine[2], headers);
+    }
+
+    private static int headEnd(ByteBuffer input) {
+        for (int i = input.position(); i + 3 < input.limit(); i++) {
+            if (input.get(i) == '\r' && input.get(i + 1) == '\n' && input.get(i + 2) == '\r' && input.get(i + 3) == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @param name case-insensitive name
+     * @return value of the header or null if the request has no such header
+     */
+    public String header(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return true if the connection stays open after the response
+     */
+    public boolean isKeepAlive() {
+        final String connection = header("Connection");
+        if ("HTTP/1.0".equals(version))
+            return connection != null && hasToken(connection, "keep-alive");
+        return connection == null || !hasToken(connection, "close");
+    }
+
+    public boolean expectsContinue() {
+        return !"HTTP/1.0".equals(version) && "100-continue".equalsIgnoreCase(header("Expect"));
+    }
+
+    /**
+     * @return length of the body or -1 if the request has no 'Content-Length'
+     * @throws HttpException if the length is invalid
+     */
+    public long contentLength() throws HttpException {
+        final String length = header("Content-Length");
+        if (length == null) return -1;
+        try {
+            final long contentLength = Long.parseLong(length);
+            if (contentLength < 0) throw new NumberFormatException();
+            return contentLength;
+        } catch (NumberFormatException e) {
+            throw new HttpException(400, "Invalid Content-Length: " + length);
+        }
+    }
+
+    /**
+     * @return true if the body is sent in chunks
+     * @throws HttpException if the body is encoded differently
+     */
+    public boolean isChunked() throws HttpException {
+        final String encoding = header("Transfer-Encoding");
+        if (encoding == null) return false;
+        if (!"chunked".equalsIgnoreCase(encoding))
+            throw new HttpException(501, "Unsupported Transfer-Encoding: " + encoding);
+        return true;
+    }
+
+    public boolean hasBody() throws HttpException {
+        return isChunked() || contentLength() > 0;
+    }
+
+    /**
+     * @return percent-decoded path of the target without the leading '/'
+     * @throws HttpException if the path is empty or invalid
+     */
+    public String key() throws HttpException {
+        final int query = target.indexOf('?');
+        final String path = query < 0 ? target : target.substring(0, query);
+        if (!path.startsWith("/") || path.length() == 1)
+            throw new HttpException(400, "Invalid key: " + target);
+
+        final ByteArrayOutputStream key = new ByteArrayOutputStream(path.length());
+        for (int i = 1; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (c != '%') {
+                key.write(c);
+                continue;
+            }
+            if (i + 2 >= path.length())
+                throw new HttpException(400, "Invalid key: " + target);
+            final int high = Character.digit(path.charAt(i + 1), 16);
+            final int low = Character.digit(path.charAt(i + 2), 16);
+            if (high < 0 || low < 0)
+                throw new HttpException(400, "Invalid key: " + target);
+            key.write(high << 4 | low);
+            i += 2;
+        }
+        return new String(key.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static boolean hasToken(String value, String token) {
+        for (String element : value.split(",")) {
+            if (element.trim().equalsIgnoreCase(token)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return method + ' ' + target + ' ' + version;
+    }
+}
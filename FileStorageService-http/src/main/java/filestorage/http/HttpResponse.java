@@ -0,0 +1,88 @@
+package filestorage.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Status line and headers of a response.
+ *
+ * @author Bogdan Kovalev
+ */
+public class HttpResponse {
+
+    private final int status;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    public HttpResponse(int status) {
+        this.status = status;
+    }
+
+    public HttpResponse header(String name, Object value) {
+        headers.put(name, String.valueOf(value));
+        return this;
+    }
+
+    public boolean hasHeader(String name) {
+        return headers.containsKey(name);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return encoded status line and headers which end with an empty line
+     */
+    public ByteBuffer head() {
+        final StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    static String reason(int status) {
+        switch (status) {
+            case 100:
+                return "Continue";
+            case 200:
+                return "OK";
+            case 201:
+                return "Created";
+            case 204:
+                return "No Content";
+            case 206:
+                return "Partial Content";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 409:
+                return "Conflict";
+            case 411:
+                return "Length Required";
+            case 416:
+                return "Range Not Satisfiable";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 500:
+                return "Internal Server Error";
+            case 501:
+                return "Not Implemented";
+            case 503:
+                return "Service Unavailable";
+            case 505:
+                return "HTTP Version Not Supported";
+            case 507:
+                return "Insufficient Storage";
+            default:
+                return "Unknown";
+        }
+    }
+}
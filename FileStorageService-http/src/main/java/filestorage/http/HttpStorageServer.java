@@ -0,0 +1,257 @@
+package filestorage.http;
+
+import filestorage.FileStorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embedded HTTP/1.1 front-end of a {@link FileStorageService} built on NIO of the JDK. Keep-alive connections wait
+ * for requests in a few {@link SelectorLoop}s, and every request is served by a worker thread in the blocking
+ * mode, so uploads are streamed into the storage and downloads are sent from files without copying through the
+ * heap. See {@link StorageRequestHandler} for the mapping of requests.
+ * <p>
+ * Blocking reads and writes have no timeout, so a watchdog closes the connections whose requests are not active
+ * longer than the request timeout, and the blocked worker is released by the closed channel.
+ *
+ * @author Bogdan Kovalev
+ */
+public class HttpStorageServer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HttpStorageServer.class);
+
+    private static final long TERMINATION_TIMEOUT = 10000;
+    private static final long DEFAULT_REQUEST_TIMEOUT = 30 * 1000;
+    private static final long MAX_WATCHDOG_PERIOD = 1000;
+
+    private final InetSocketAddress address;
+    private final StorageRequestHandler handler;
+    private final SelectorLoop[] loops;
+    private final Thread[] loopThreads;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    /**
+     * Connections which are given to the workers.
+     */
+    private final Set<HttpConnection> requests = Collections.newSetFromMap(new ConcurrentHashMap<HttpConnection, Boolean>());
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("http-watchdog-"));
+
+    private long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private ServerSocketChannel serverChannel;
+    private Thread acceptorThread;
+
+    /**
+     * @param fileStorageService started service which serves the requests
+     * @param address            address to listen, port 0 means any free port
+     * @param selectorThreads    number of threads which watch idle connections
+     * @param workerThreads      number of threads which serve requests
+     * @throws IOException if selectors can't be opened
+     */
+    public HttpStorageServer(FileStorageService fileStorageService, InetSocketAddress address, int selectorThreads,
+                             int workerThreads) throws IOException {
+        this.address = address;
+        this.handler = new StorageRequestHandler(fileStorageService);
+        this.loops = new SelectorLoop[selectorThreads];
+        this.loopThreads = new Thread[selectorThreads];
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("http-worker-"));
+
+        final SelectorLoop.Dispatcher dispatcher = new SelectorLoop.Dispatcher() {
+            @Override
+            public void dispatch(final HttpConnection connection, final HttpRequest request) {
+                requests.add(connection);
+                try {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(connection, request);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    requests.remove(connection);
+                    connection.close();
+                }
+            }
+        };
+        for (int i = 0; i < selectorThreads; i++) {
+            loops[i] = new SelectorLoop(dispatcher);
+        }
+    }
+
+    /**
+     * Sets the time in milliseconds which a request, including the wait for a worker, may go without reading or
+     * writing before its connection is closed. It must be called before the server is started.
+     *
+     * @param requestTimeout 30 seconds by default
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        if (requestTimeout <= 0)
+            throw new IllegalArgumentException("Invalid request timeout: " + requestTimeout);
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Binds the address and starts accepting connections.
+     *
+     * @throws IOException if the address can't be bound
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+
+        final long period = Math.max(1, Math.min(MAX_WATCHDOG_PERIOD, requestTimeout / 2));
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeStalledRequests();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < loops.length; i++) {
+            loopThreads[i] = new Thread(loops[i], "http-selector-" + (i + 1));
+            loopThreads[i].setDaemon(true);
+            loopThreads[i].start();
+        }
+
+        acceptorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "http-acceptor");
+        acceptorThread.setDaemon(true);
+        acceptorThread.start();
+
+        if (LOG.isInfoEnabled())
+            LOG.info("HTTP server is started on {}", serverChannel.getLocalAddress());
+    }
+
+    /**
+     * @return bound port
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void accept() {
+        while (serverChannel.isOpen()) {
+            try {
+                final SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                final SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+                loop.register(new HttpConnection(channel, loop));
+            } catch (ClosedChannelException e) {
+                // stopped
+            } catch (IOException e) {
+                if (LOG.isWarnEnabled())
+                    LOG.warn("Connection isn't accepted: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void closeStalledRequests() {
+        final long now = System.currentTimeMillis();
+        for (HttpConnection connection : requests) {
+            if (connection.isStalled(now, requestTimeout)) {
+                if (LOG.isInfoEnabled())
+                    LOG.info("Request is stalled longer than {} milliseconds, the connection is closed", requestTimeout);
+                requests.remove(connection);
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Serves the request and the following pipelined requests, then returns the connection to its loop.
+     */
+    private void serve(HttpConnection connection, HttpRequest request) {
+        try {
+            connection.channel().configureBlocking(true);
+            while (request != null) {
+                if (!handler.handle(connection, request)) {
+                    connection.close();
+                    return;
+                }
+                request = connection.nextRequest();
+            }
+            connection.channel().configureBlocking(false);
+            connection.loop().register(connection);
+        } catch (HttpException e) {
+            connection.reject(e.getStatus());
+        } catch (IOException e) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("Connection is broken: {}", e.getMessage());
+            connection.close();
+        } finally {
+            requests.remove(connection);
+        }
+    }
+
+    /**
+     * Stops accepting connections, waits for the requests in progress and closes all connections. The connections of
+     * requests which are not finished in time are closed, so their workers are released.
+     */
+    @Override
+    public void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Server socket can't be closed: {}", e.getMessage());
+        }
+
+        for (SelectorLoop loop : loops) {
+            loop.stop();
+        }
+        workers.shutdown();
+        try {
+            acceptorThread.join();
+            for (Thread loopThread : loopThreads) {
+                loopThread.join();
+            }
+            if (!workers.awaitTermination(TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                if (LOG.isWarnEnabled())
+                    LOG.warn("Requests are not finished in {} milliseconds", TERMINATION_TIMEOUT);
+                for (HttpConnection connection : requests) {
+                    connection.close();
+                }
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            watchdog.shutdownNow();
+        }
+
+        if (LOG.isInfoEnabled())
+            LOG.info("HTTP server is stopped.");
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger number = new AtomicInteger();
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable task) {
+            final Thread thread = new Thread(task, prefix + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package filestorage.http;
+
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Body of the current request read from the connection. Closing of the body doesn't close the connection.
+ *
+ * @author Bogdan Kovalev
+ */
+public abstract class RequestBody implements ReadableByteChannel {
+
+    protected final HttpConnection connection;
+
+    protected RequestBody(HttpConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * @return body of the 'request'
+     * @throws HttpException if the request has neither 'Content-Length' nor chunks
+     */
+    public static RequestBody of(HttpConnection connection, HttpRequest request) throws HttpException {
+        if (request.isChunked())
+            return new ChunkedBody(connection);
+
+        final long length = request.contentLength();
+        if (length < 0)
+            throw new HttpException(411, "Content-Length is required");
+        return new FixedLengthBody(connection, length);
+    }
+
+    /**
+     * @return number of bytes in the body or -1 if it is unknown
+     */
+    public abstract long size();
+
+    /**
+     * @return true if the whole body is read, so the next request can be read from the connection
+     */
+    public abstract boolean isFinished();
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
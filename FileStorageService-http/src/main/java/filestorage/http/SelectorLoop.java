@@ -0,0 +1,162 @@
+package filestorage.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Watches idle keep-alive connections and reads heads of their requests without blocking, so one thread keeps
+ * many connections. When the head of a request is read, the connection leaves the selector and is given to the
+ * {@link Dispatcher}. Connections which are idle longer than the timeout are closed.
+ *
+ * @author Bogdan Kovalev
+ */
+public class SelectorLoop implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SelectorLoop.class);
+
+    /**
+     * Serves the request read from the connection.
+     */
+    static interface Dispatcher {
+        void dispatch(HttpConnection connection, HttpRequest request);
+    }
+
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final Selector selector;
+    private final Dispatcher dispatcher;
+    private final Queue<HttpConnection> registrations = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public SelectorLoop(Dispatcher dispatcher) throws IOException {
+        this.selector = Selector.open();
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Puts the non-blocking connection under watch of this loop. It may be called from any thread.
+     *
+     * @param connection
+     */
+    public void register(HttpConnection connection) {
+        if (!running) {
+            connection.close();
+            return;
+        }
+        connection.touch();
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        final Map<HttpConnection, HttpRequest> ready = new LinkedHashMap<>();
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT);
+                registerConnections();
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable())
+                        readRequest(key, ready);
+                }
+
+                if (!ready.isEmpty()) {
+                    // cancelled keys are dropped before the connections are switched to the blocking mode
+                    selector.selectNow();
+                    for (Map.Entry<HttpConnection, HttpRequest> request : ready.entrySet()) {
+                        dispatcher.dispatch(request.getKey(), request.getValue());
+                    }
+                    ready.clear();
+                }
+
+                closeIdleConnections();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running && LOG.isErrorEnabled())
+                LOG.error("Selector loop is failed: {}", e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Stops the loop and closes the connections which it watches.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void registerConnections() {
+        HttpConnection connection;
+        while ((connection = registrations.poll()) != null) {
+            try {
+                connection.channel().register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private void readRequest(SelectionKey key, Map<HttpConnection, HttpRequest> ready) {
+        final HttpConnection connection = (HttpConnection) key.attachment();
+        try {
+            if (connection.fill() < 0) {
+                key.cancel();
+                connection.close();
+                return;
+            }
+
+            final HttpRequest request = connection.nextRequest();
+            if (request != null) {
+                key.cancel();
+                ready.put(connection, request);
+            }
+        } catch (HttpException e) {
+            key.cancel();
+            connection.reject(e.getStatus());
+        } catch (IOException e) {
+            key.cancel();
+            connection.close();
+        }
+    }
+
+    private void closeIdleConnections() {
+        final long deadline = System.currentTimeMillis() - IDLE_TIMEOUT;
+        for (SelectionKey key : selector.keys()) {
+            final HttpConnection connection = (HttpConnection) key.attachment();
+            if (key.isValid() && connection.getLastActiveTime() < deadline) {
+                key.cancel();
+                connection.close();
+            }
+        }
+    }
+
+    private void closeAll() {
+        HttpConnection connection;
+        while ((connection = registrations.poll()) != null) {
+            connection.close();
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((HttpConnection) key.attachment()).close();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Selector can't be closed: {}", e.getMessage());
+        }
+    }
+}
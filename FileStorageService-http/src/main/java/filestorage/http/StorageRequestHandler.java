@@ -0,0 +1,192 @@
+package filestorage.http;
+
+import filestorage.FileRangeChannel;
+import filestorage.FileStorageService;
+import filestorage.impl.exception.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+
+/**
+ * Maps requests to the operations of the {@link FileStorageService}:
+ * <ul>
+ * <li>PUT saves the body, the life time in milliseconds may be given by the 'X-Life-Time' header;</li>
+ * <li>GET and HEAD read the file or its single range given by the 'Range' header;</li>
+ * <li>DELETE deletes the file.</li>
+ * </ul>
+ * The path of the request without the leading '/' is the key of the file. Requests are served in the blocking
+ * mode: the body is read from the socket by the storage and files are sent by {@link FileRangeChannel#transferTo},
+ * so their content isn't copied through the heap.
+ *
+ * @author Bogdan Kovalev
+ */
+public class StorageRequestHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StorageRequestHandler.class);
+
+    public static final String LIFE_TIME_HEADER = "X-Life-Time";
+
+    private static final String ALLOWED_METHODS = "GET, HEAD, PUT, DELETE";
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final FileStorageService fileStorageService;
+
+    public StorageRequestHandler(FileStorageService fileStorageService) {
+        this.fileStorageService = fileStorageService;
+    }
+
+    /**
+     * Serves the 'request' and writes the response into the blocking connection.
+     *
+     * @return true if the next request can be read from the connection
+     * @throws IOException if the connection is broken
+     */
+    public boolean handle(HttpConnection connection, HttpRequest request) throws IOException {
+        try {
+            switch (request.getMethod()) {
+                case "GET":
+                    return read(connection, request, true);
+                case "HEAD":
+                    return read(connection, request, false);
+                case "PUT":
+                    return save(connection, request);
+                case "DELETE":
+                    return delete(connection, request);
+                default:
+                    return respond(connection, request, new HttpResponse(405).header("Allow", ALLOWED_METHODS),
+                            !request.hasBody());
+            }
+        } catch (HttpException e) {
+            if (LOG.isInfoEnabled())
+                LOG.info("Request '{}' is rejected: {}", request, e.getMessage());
+            return respond(connection, request, new HttpResponse(e.getStatus()), false);
+        }
+    }
+
+    private boolean save(HttpConnection connection, HttpRequest request) throws HttpException, IOException {
+        final String key = request.key();
+        final long lifeTime = lifeTimeOf(request);
+        final RequestBody body = RequestBody.of(connection, request);
+        if (request.expectsContinue())
+            connection.write(ByteBuffer.wrap(CONTINUE));
+
+        int status;
+        try {
+            // the channel of known size is written without copying, other bodies are read as streams
+            if (lifeTime >= 0)
+                fileStorageService.saveFile(key, Channels.newInputStream(body), lifeTime);
+            else if (body.size() >= 0)
+                fileStorageService.saveFile(key, body, body.size());
+            else
+                fileStorageService.saveFile(key, Channels.newInputStream(body));
+            status = 201;
+        } catch (FileAlreadyExistsException e) {
+            status = 409;
+        } catch (NotEnoughFreeSpaceException e) {
+            status = 507;
+        } catch (StorageServiceIsNotStartedError e) {
+            status = 503;
+        } catch (StorageCorruptedException | RuntimeException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("File '{}' isn't saved: {}", key, e.getMessage());
+            status = 500;
+        }
+        return respond(connection, request, new HttpResponse(status), body.isFinished());
+    }
+
+    private static long lifeTimeOf(HttpRequest request) throws HttpException {
+        final String lifeTime = request.header(LIFE_TIME_HEADER);
+        if (lifeTime == null) return -1;
+        try {
+            final long millis = Long.parseLong(lifeTime);
+            if (millis < 0) throw new NumberFormatException();
+            return millis;
+        } catch (NumberFormatException e) {
+            throw new HttpException(400, "Invalid " + LIFE_TIME_HEADER + ": " + lifeTime);
+        }
+    }
+
+    private boolean read(HttpConnection connection, HttpRequest request, boolean withBody) throws HttpException, IOException {
+        final String key = request.key();
+        final boolean keepAlive = !request.hasBody();
+
+        FileRangeChannel content;
+        try {
+            content = fileStorageService.readRange(key, 0, Long.MAX_VALUE);
+        } catch (FileNotFoundException e) {
+            return respond(connection, request, new HttpResponse(404), keepAlive);
+        } catch (StorageServiceIsNotStartedError e) {
+            return respond(connection, request, new HttpResponse(503), keepAlive);
+        }
+
+        try {
+            final long size = content.remaining();
+            final ByteRange range = ByteRange.parse(request.header("Range"), size);
+            if (range == ByteRange.UNSATISFIABLE)
+                return respond(connection, request, new HttpResponse(416).header("Content-Range", "bytes */" + size), keepAlive);
+
+            final HttpResponse response;
+            if (range == null) {
+                response = new HttpResponse(200);
+            } else {
+                content.close();
+                content = fileStorageService.readRange(key, range.getFirst(), range.length());
+                response = new HttpResponse(206).header("Content-Range",
+                        "bytes " + range.getFirst() + '-' + (range.getFirst() + content.remaining() - 1) + '/' + size);
+            }
+
+            final long length = content.remaining();
+            response.header("Accept-Ranges", "bytes")
+                    .header("Content-Type", "application/octet-stream")
+                    .header("Content-Length", length);
+            final boolean open = respond(connection, request, response, keepAlive);
+            if (!withBody) return open;
+
+            // the response is cut if the file is shorter than announced, so the connection can't be reused
+            return connection.send(content) == length && open;
+        } catch (FileNotFoundException e) {
+            return respond(connection, request, new HttpResponse(404), keepAlive);
+        } catch (StorageServiceIsNotStartedError e) {
+            return respond(connection, request, new HttpResponse(503), keepAlive);
+        } finally {
+            content.close();
+        }
+    }
+
+    private boolean delete(HttpConnection connection, HttpRequest request) throws HttpException, IOException {
+        final String key = request.key();
+
+        int status;
+        try {
+            fileStorageService.deleteFile(key);
+            status = 204;
+        } catch (MaybeFileInUseException e) {
+            status = 409;
+        } catch (StorageServiceIsNotStartedError e) {
+            status = 503;
+        }
+        return respond(connection, request, new HttpResponse(status), !request.hasBody());
+    }
+
+    /**
+     * Writes the head of the 'response'.
+     *
+     * @param keepAlive false if the rest of the request can't be read, for example, its body is skipped
+     * @return true if the connection stays open
+     */
+    private static boolean respond(HttpConnection connection, HttpRequest request, HttpResponse response,
+                                   boolean keepAlive) throws IOException {
+        keepAlive &= request.isKeepAlive();
+        if (response.getStatus() != 204 && !response.hasHeader("Content-Length"))
+            response.header("Content-Length", 0);
+        response.header("Connection", keepAlive ? "keep-alive" : "close");
+        connection.write(response.head());
+        return keepAlive;
+    }
+}
@@ -0,0 +1,256 @@
+package filestorage.http;
+
+import filestorage.impl.DefaultFileStorageService;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+public class HttpStorageServerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HttpStorageServerTest.class);
+
+    private static final String STORAGE_ROOT = "storage-http";
+    private static final long REQUEST_TIMEOUT = 2000;
+
+    private static DefaultFileStorageService fileStorageService;
+    private static HttpStorageServer server;
+    private static Random random = new Random();
+
+    @BeforeClass
+    public static void startServer() throws Throwable {
+        deleteStorage();
+        fileStorageService = new DefaultFileStorageService(16 * 1024 * 1024, STORAGE_ROOT);
+        fileStorageService.startService();
+        server = new HttpStorageServer(fileStorageService, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, 4);
+        server.setRequestTimeout(REQUEST_TIMEOUT);
+        server.start();
+    }
+
+    @AfterClass
+    public static void stopServer() throws IOException {
+        server.close();
+        fileStorageService.stopService();
+        deleteStorage();
+    }
+
+    private static void deleteStorage() throws IOException {
+        final Path root = Paths.get(STORAGE_ROOT);
+        if (!Files.exists(root)) return;
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static HttpURLConnection open(String method, String key) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/" + key).openConnection();
+        connection.setRequestMethod(method);
+        return connection;
+    }
+
+    private static int put(String key, byte[] data, boolean chunked, Long lifeTime) throws IOException {
+        final HttpURLConnection connection = open("PUT", key);
+        connection.setDoOutput(true);
+        if (chunked)
+            connection.setChunkedStreamingMode(1000);
+        else
+            connection.setFixedLengthStreamingMode(data.length);
+        if (lifeTime != null)
+            connection.setRequestProperty(StorageRequestHandler.LIFE_TIME_HEADER, String.valueOf(lifeTime));
+        try (final OutputStream out = connection.getOutputStream()) {
+            out.write(data);
+        }
+        return connection.getResponseCode();
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] randomData(int size) {
+        final byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testUploadAndDownload() throws Throwable {
+        LOG.info("############  testUploadAndDownload() ############\n");
+        final byte[] data = randomData(300 * 1024);
+        assertTrue(put("files/fixed", data, false, null) == 201);
+        assertTrue("Existing file is overwritten", put("files/fixed", data, false, null) == 409);
+
+        final byte[] chunkedData = randomData(100 * 1024 + 7);
+        assertTrue(put("files/chunked%20name", chunkedData, true, null) == 201);
+
+        HttpURLConnection connection = open("GET", "files/fixed");
+        assertTrue(connection.getResponseCode() == 200);
+        assertTrue(connection.getContentLengthLong() == data.length);
+        try (final InputStream inputStream = connection.getInputStream()) {
+            assertTrue("Content differs", Arrays.equals(data, readAll(inputStream)));
+        }
+
+        connection = open("GET", "files/chunked%20name");
+        try (final InputStream inputStream = connection.getInputStream()) {
+            assertTrue("Content differs", Arrays.equals(chunkedData, readAll(inputStream)));
+        }
+        fileStorageService.readFile("files/chunked name").close();
+
+        connection = open("HEAD", "files/fixed");
+        assertTrue(connection.getResponseCode() == 200);
+        assertTrue(connection.getContentLengthLong() == data.length);
+        assertTrue("bytes".equals(connection.getHeaderField("Accept-Ranges")));
+
+        connection = open("DELETE", "files/fixed");
+        assertTrue(connection.getResponseCode() == 204);
+        assertTrue(open("GET", "files/fixed").getResponseCode() == 404);
+        assertTrue(open("POST", "files/fixed").getResponseCode() == 405);
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        LOG.info("############  testRanges() ############\n");
+        final byte[] data = randomData(10000);
+        assertTrue(put("ranges", data, false, null) == 201);
+
+        HttpURLConnection connection = open("GET", "ranges");
+        connection.setRequestProperty("Range", "bytes=100-199");
+        assertTrue(connection.getResponseCode() == 206);
+        assertTrue("bytes 100-199/10000".equals(connection.getHeaderField("Content-Range")));
+        try (final InputStream inputStream = connection.getInputStream()) {
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, 100, 200), readAll(inputStream)));
+        }
+
+        connection = open("GET", "ranges");
+        connection.setRequestProperty("Range", "bytes=-500");
+        assertTrue(connection.getResponseCode() == 206);
+        try (final InputStream inputStream = connection.getInputStream()) {
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, 9500, 10000), readAll(inputStream)));
+        }
+
+        connection = open("GET", "ranges");
+        connection.setRequestProperty("Range", "bytes=9000-");
+        try (final InputStream inputStream = connection.getInputStream()) {
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, 9000, 10000), readAll(inputStream)));
+        }
+
+        connection = open("GET", "ranges");
+        connection.setRequestProperty("Range", "bytes=10000-");
+        assertTrue(connection.getResponseCode() == 416);
+        assertTrue("bytes */10000".equals(connection.getHeaderField("Content-Range")));
+    }
+
+    @Test
+    public void testLifeTime() throws IOException, InterruptedException {
+        LOG.info("############  testLifeTime() ############\n");
+        assertTrue(put("expiring", randomData(100), false, 300L) == 201);
+        assertTrue(open("GET", "expiring").getResponseCode() == 200);
+
+        int status = 200;
+        for (int i = 0; i < 50 && status == 200; i++) {
+            Thread.sleep(100);
+            status = open("HEAD", "expiring").getResponseCode();
+        }
+        assertTrue("Expired file is found", status == 404);
+
+        final HttpURLConnection connection = open("PUT", "invalid-life-time");
+        connection.setDoOutput(true);
+        connection.setRequestProperty(StorageRequestHandler.LIFE_TIME_HEADER, "soon");
+        connection.getOutputStream().close();
+        assertTrue(connection.getResponseCode() == 400);
+    }
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        LOG.info("############  testKeepAlive() ############\n");
+        try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            final OutputStream out = socket.getOutputStream();
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            // two requests in one packet and one more request on the same connection
+            out.write(("PUT /keep-alive HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                    "5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n" +
+                    "GET /keep-alive HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            assertTrue(readHead(in).startsWith("HTTP/1.1 201"));
+            final String head = readHead(in);
+            assertTrue(head.startsWith("HTTP/1.1 200") && head.contains("Content-Length: 11"));
+            final byte[] body = new byte[11];
+            new DataInputStream(in).readFully(body);
+            assertTrue("hello world".equals(new String(body, StandardCharsets.ISO_8859_1)));
+
+            out.write("DELETE /keep-alive HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            final String deleted = readHead(in);
+            assertTrue(deleted.startsWith("HTTP/1.1 204") && deleted.contains("Connection: close"));
+            assertTrue("Connection isn't closed", in.read() == -1);
+        }
+    }
+
+    @Test
+    public void testStalledRequest() throws IOException {
+        LOG.info("############  testStalledRequest() ############\n");
+        try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            socket.setSoTimeout((int) (10 * REQUEST_TIMEOUT));
+            final OutputStream out = socket.getOutputStream();
+            // the client sends a part of the body and stops
+            out.write(("PUT /stalled HTTP/1.1\r\nHost: localhost\r\nContent-Length: 100\r\n\r\n0123456789")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            final long start = System.currentTimeMillis();
+            boolean closed;
+            try {
+                closed = socket.getInputStream().read() == -1;
+            } catch (SocketException e) {
+                closed = true;
+            }
+            assertTrue("Stalled connection isn't closed", closed);
+            assertTrue(System.currentTimeMillis() - start >= REQUEST_TIMEOUT / 2);
+        }
+        assertTrue("Worker isn't released", open("HEAD", "stalled").getResponseCode() == 404);
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        final StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            final int b = in.read();
+            if (b < 0) throw new EOFException(head.toString());
+            head.append((char) b);
+        }
+        return head.toString();
+    }
+}
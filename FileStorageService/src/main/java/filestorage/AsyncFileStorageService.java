@@ -0,0 +1,57 @@
+package filestorage;
+
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking variant of {@link FileStorageService}. Every method returns at once and its future is completed
+ * by the I/O thread with the result or with the exception of the corresponding blocking method. If the operation
+ * can't be queued, its future is failed with {@link java.util.concurrent.RejectedExecutionException}.
+ *
+ * @author Bogdan Kovalev
+ */
+public interface AsyncFileStorageService extends AutoCloseable {
+
+    /**
+     * @see FileStorageService#saveFile(String, InputStream)
+     */
+    CompletableFuture<Void> saveFileAsync(String key, InputStream inputStream);
+
+    /**
+     * @see FileStorageService#saveFile(String, InputStream, long)
+     */
+    CompletableFuture<Void> saveFileAsync(String key, InputStream inputStream, long lifeTimeMillis);
+
+    /**
+     * @see FileStorageService#readFile(String)
+     */
+    CompletableFuture<InputStream> readFileAsync(String key);
+
+    /**
+     * @return future of the number of transferred bytes
+     * @see FileStorageService#readFile(String, WritableByteChannel)
+     */
+    CompletableFuture<Long> readFileAsync(String key, WritableByteChannel target);
+
+    /**
+     * @see FileStorageService#deleteFile(String)
+     */
+    CompletableFuture<Void> deleteFileAsync(String key);
+
+    /**
+     * @see FileStorageService#purge(float)
+     */
+    CompletableFuture<Void> purgeAsync(float requiredFreeSpaceInPercents);
+
+    /**
+     * @see FileStorageService#purge(long)
+     */
+    CompletableFuture<Void> purgeAsync(long requiredFreeSpaceInBytes);
+
+    /**
+     * Stops accepting new operations and waits for the started ones.
+     */
+    @Override
+    void close();
+}
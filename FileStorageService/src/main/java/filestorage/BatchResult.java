@@ -0,0 +1,52 @@
+package filestorage;
+
+import java.util.*;
+
+/**
+ * Per-key result of a batch operation. Keys are listed in the order in which they were processed.
+ *
+ * @author Bogdan Kovalev
+ */
+public class BatchResult {
+
+    private final List<String> succeeded = new ArrayList<>();
+    private final Map<String, Throwable> failures = new LinkedHashMap<>();
+
+    public void addSuccess(String key) {
+        succeeded.add(key);
+    }
+
+    /**
+     * @param key
+     * @param cause exception which the single operation with this 'key' would throw
+     */
+    public void addFailure(String key, Throwable cause) {
+        failures.put(key, cause);
+    }
+
+    /**
+     * @return keys processed successfully
+     */
+    public List<String> getSucceeded() {
+        return Collections.unmodifiableList(succeeded);
+    }
+
+    /**
+     * @return failed keys with their exceptions
+     */
+    public Map<String, Throwable> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return true if no key failed
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{succeeded=" + succeeded.size() + ", failures=" + failures + '}';
+    }
+}
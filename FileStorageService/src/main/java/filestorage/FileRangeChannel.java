@@ -0,0 +1,145 @@
+package filestorage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Readable channel over the region of a file. The region is read by positional reads, so the channel doesn't
+ * change the position of the underlying file channel and one file channel may be shared by many ranges.
+ * Closing of the range closes the file channel or calls the given 'onClose' instead.
+ * <p>
+ * Subclasses may read the region differently, for example, decompress it.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class FileRangeChannel implements ReadableByteChannel {
+
+    private final FileChannel fileChannel;
+    private final Closeable onClose;
+    private final long end;
+    private long position;
+    private boolean open = true;
+
+    /**
+     * @param fileChannel
+     * @param offset      first byte of the region
+     * @param length      number of bytes in the region
+     */
+    public FileRangeChannel(FileChannel fileChannel, long offset, long length) {
+        this(fileChannel, offset, length, fileChannel);
+    }
+
+    /**
+     * @param fileChannel
+     * @param offset      first byte of the region
+     * @param length      number of bytes in the region
+     * @param onClose     closed instead of the shared 'fileChannel'
+     */
+    public FileRangeChannel(FileChannel fileChannel, long offset, long length, Closeable onClose) {
+        this.fileChannel = fileChannel;
+        this.onClose = onClose;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        final long remaining = remaining();
+        if (remaining == 0) return -1;
+
+        final int limit = dst.limit();
+        if (dst.remaining() > remaining)
+            dst.limit(dst.position() + (int) remaining);
+        try {
+            final int read = fileChannel.read(dst, position);
+            if (read > 0)
+                position += read;
+            return read;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    /**
+     * Writes the rest of the region into the 'target' by {@link FileChannel#transferTo}, so the data may be sent
+     * without copying it into the user space.
+     *
+     * @param target
+     * @return number of transferred bytes
+     * @throws IOException
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (remaining() > 0) {
+            final long count = fileChannel.transferTo(position, remaining(), target);
+            if (count <= 0) break;
+            position += count;
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    /**
+     * @param next closed after the current 'onClose'
+     * @return range over the rest of this region which replaces this one
+     */
+    public FileRangeChannel thenClose(Closeable next) {
+        return new FileRangeChannel(fileChannel, position, remaining(), chainClose(next));
+    }
+
+    /**
+     * @param next closed after the current 'onClose'
+     * @return closeable which closes both
+     */
+    protected Closeable chainClose(final Closeable next) {
+        final Closeable previous = onClose;
+        return new Closeable() {
+            @Override
+            public void close() throws IOException {
+                try {
+                    previous.close();
+                } finally {
+                    next.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return read-only mapping of the rest of the region, which stays valid after the channel is closed
+     * @throws IOException
+     */
+    public ByteBuffer map() throws IOException {
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, position, remaining());
+    }
+
+    /**
+     * @return position of the next byte in the file
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * @return number of bytes left in the region
+     */
+    public long remaining() {
+        return end - position;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open && fileChannel.isOpen();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) return;
+        open = false;
+        onClose.close();
+    }
+}
@@ -3,8 +3,15 @@ package filestorage;
 import filestorage.impl.exception.*;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * @author Bogdan Kovalev
@@ -38,6 +45,72 @@ public interface FileStorageService {
     void saveFile(String key, InputStream inputStream, long lifeTimeMillis)
             throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException;
 
+    /**
+     * Saves exactly 'size' bytes of the 'channel' into file in storage. The space for the file is reserved before
+     * writing, so a file which doesn't fit into the storage is rejected without writing.
+     *
+     * @param key
+     * @param channel
+     * @param size    number of bytes in the channel, streams of unknown size are saved by
+     *                {@link #saveFile(String, InputStream)}
+     * @throws IllegalArgumentException   if the 'size' is negative
+     * @throws FileAlreadyExistsException
+     * @throws StorageServiceIsNotStartedError
+     * @throws NotEnoughFreeSpaceException
+     * @throws StorageCorruptedException
+     */
+    void saveFile(String key, ReadableByteChannel channel, long size)
+            throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException;
+
+    /**
+     * Saves the content of the 'source' file into file in storage.
+     *
+     * @param key
+     * @param source
+     * @throws FileAlreadyExistsException
+     * @throws StorageServiceIsNotStartedError
+     * @throws NotEnoughFreeSpaceException
+     * @throws StorageCorruptedException
+     * @throws FileNotFoundException           if the 'source' doesn't exist
+     */
+    void saveFile(String key, Path source)
+            throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException, FileNotFoundException;
+
+    /**
+     * Saves every stream of the 'files' into file in storage with the key of the stream. Failure of one file
+     * doesn't stop the batch.
+     *
+     * @param files streams by their keys
+     * @return result of every key
+     * @throws StorageServiceIsNotStartedError
+     */
+    BatchResult saveFiles(Map<String, InputStream> files) throws StorageServiceIsNotStartedError;
+
+    /**
+     * Saves the 'files' like {@link #saveFiles(Map)}. Saved files will be deleted from storage after
+     * 'lifeTimeMillis' milliseconds.
+     *
+     * @param files          streams by their keys
+     * @param lifeTimeMillis
+     * @return result of every key
+     * @throws StorageServiceIsNotStartedError
+     */
+    BatchResult saveFiles(Map<String, InputStream> files, long lifeTimeMillis) throws StorageServiceIsNotStartedError;
+
+    /**
+     * Saves the 'inputStream' into file in storage instead of the existing file with this 'key' or as a new file.
+     * The content is swapped atomically: readers which opened the previous content keep reading it and new
+     * readers get the new content.
+     *
+     * @param key
+     * @param inputStream
+     * @throws StorageServiceIsNotStartedError
+     * @throws NotEnoughFreeSpaceException
+     * @throws StorageCorruptedException
+     */
+    void replaceFile(String key, InputStream inputStream)
+            throws StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException;
+
     /**
      * Reads file with this 'key' from storage disk space
      *
@@ -48,6 +121,51 @@ public interface FileStorageService {
      */
     InputStream readFile(String key) throws StorageServiceIsNotStartedError, FileNotFoundException;
 
+    /**
+     * Writes file with this 'key' into the 'target' channel. The file is transferred by the file system, so for
+     * sockets and files its content isn't copied through the heap.
+     *
+     * @param key
+     * @param target
+     * @return number of transferred bytes
+     * @throws StorageServiceIsNotStartedError
+     * @throws FileNotFoundException
+     * @throws IOException                     if the 'target' can't be written
+     */
+    long readFile(String key, WritableByteChannel target) throws StorageServiceIsNotStartedError, IOException;
+
+    /**
+     * Opens the part of file with this 'key' which starts at 'offset' and has 'length' bytes. The part is cut at
+     * the end of the file, so the range which starts beyond the end is empty.
+     *
+     * @param key
+     * @param offset
+     * @param length
+     * @return channel which must be closed by the caller
+     * @throws StorageServiceIsNotStartedError
+     * @throws FileNotFoundException
+     */
+    FileRangeChannel readRange(String key, long offset, long length) throws StorageServiceIsNotStartedError, FileNotFoundException;
+
+    /**
+     * Maps file with this 'key' into memory. Mappings are pooled, so repeated reads of the same file share one
+     * mapping. The mapping must be released by {@link #releaseMapping} when it isn't used anymore.
+     *
+     * @param key
+     * @return read-only view of the file content
+     * @throws StorageServiceIsNotStartedError
+     * @throws FileNotFoundException
+     */
+    ByteBuffer mapFile(String key) throws StorageServiceIsNotStartedError, FileNotFoundException;
+
+    /**
+     * Releases the mapping acquired by {@link #mapFile}.
+     *
+     * @param mapping buffer returned by {@link #mapFile}
+     * @throws StorageServiceIsNotStartedError
+     */
+    void releaseMapping(ByteBuffer mapping) throws StorageServiceIsNotStartedError;
+
     /**
      * Deletes file with this 'key' from storage disk space.
      *
@@ -57,6 +175,15 @@ public interface FileStorageService {
      */
     void deleteFile(String key) throws StorageServiceIsNotStartedError, MaybeFileInUseException;
 
+    /**
+     * Deletes files with these 'keys' from storage disk space. Failure of one file doesn't stop the batch.
+     *
+     * @param keys
+     * @return result of every key
+     * @throws StorageServiceIsNotStartedError
+     */
+    BatchResult deleteFiles(Collection<String> keys) throws StorageServiceIsNotStartedError;
+
     /**
      * @return free storage disk space in bytes
      * @throws StorageServiceIsNotStartedError
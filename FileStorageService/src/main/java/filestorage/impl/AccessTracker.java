@@ -0,0 +1,62 @@
+package filestorage.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records how often and how recently stored files are read. The frequency is estimated by a
+ * {@link FrequencySketch}, so it fades out with time, and the time of the last read is kept for every read file
+ * until the file is deleted. Only successful reads must be recorded and every deletion must be reported by
+ * {@link #forget}, so the times are kept only for stored files.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class AccessTracker {
+
+    private final FrequencySketch sketch;
+    private final ConcurrentMap<String, Long> lastAccessTimes = new ConcurrentHashMap<>();
+
+    /**
+     * @param expectedEntries expected number of stored files
+     */
+    public AccessTracker(int expectedEntries) {
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /**
+     * @param name file name
+     */
+    public void recordAccess(String name) {
+        synchronized (sketch) {
+            sketch.increment(name);
+        }
+        lastAccessTimes.put(name, System.currentTimeMillis());
+    }
+
+    /**
+     * @param name file name
+     * @return estimated number of recent reads, at most 15
+     */
+    public int frequency(String name) {
+        synchronized (sketch) {
+            return sketch.frequency(name);
+        }
+    }
+
+    /**
+     * @param name        file name
+     * @param defaultTime time returned if the file wasn't read, for example, its creation time
+     * @return time in milliseconds of the last read
+     */
+    public long lastAccessTime(String name, long defaultTime) {
+        final Long time = lastAccessTimes.get(name);
+        return time == null ? defaultTime : time;
+    }
+
+    /**
+     * @param name file name of the deleted file
+     */
+    public void forget(String name) {
+        lastAccessTimes.remove(name);
+    }
+}
@@ -0,0 +1,246 @@
+package filestorage.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed area of the storage. Each unique content is stored once as a blob named by its SHA-256,
+ * files in the data folder are hard links to blobs.
+ * <p>
+ * The number of references to a blob is its link count, so the file system keeps it consistent with the links
+ * and it survives restarts without a journal. Blobs are found by the identity of the file ({@link BasicFileAttributes#fileKey()}),
+ * which is the same for all links. Blobs are linked and unlinked under a lock of their hash, so a blob is never
+ * deleted while a new reference to it is created.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class BlobStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BlobStore.class);
+
+    private static final int LOCK_STRIPES = 64;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Path blobsFolderPath;
+
+    /**
+     * Hashes of blobs by the identities of their files.
+     */
+    private final Map<Object, String> blobs = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * @param blobsFolderPath
+     * @throws IOException if the blobs can't be read or the file system doesn't support hard links with link
+     *                     counts and file identities
+     */
+    public BlobStore(Path blobsFolderPath) throws IOException {
+        this.blobsFolderPath = blobsFolderPath;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+
+        Files.createDirectories(blobsFolderPath);
+        if (!blobsFolderPath.getFileSystem().supportedFileAttributeViews().contains("unix")
+                || Files.readAttributes(blobsFolderPath, BasicFileAttributes.class).fileKey() == null)
+            throw new IOException("Deduplication isn't supported by the file system of '" + blobsFolderPath + "'");
+
+        Files.walkFileTree(blobsFolderPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (!attributes.isRegularFile()) return FileVisitResult.CONTINUE;
+
+                // a blob without references is left by an interrupted deletion
+                if ((Integer) Files.getAttribute(file, "unix:nlink") == 1)
+                    Files.delete(file);
+                else
+                    blobs.put(attributes.fileKey(), String.valueOf(file.getFileName()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        if (LOG.isInfoEnabled())
+            LOG.info("{} blobs found", blobs.size());
+    }
+
+    /**
+     * @return digest which hashes the content of a blob
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * @param digest digest of the content
+     * @return hash of the blob
+     */
+    public static String toHash(MessageDigest digest) {
+        final byte[] bytes = digest.digest();
+        final char[] hash = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hash[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hash[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hash);
+    }
+
+    /**
+     * Links the 'filePath' to the blob of the content written into the 'tempPath'. If there is no such blob yet,
+     * the temporary file becomes the blob. The temporary file is deleted if the link is created.
+     *
+     * @param tempPath written content
+     * @param hash     hash of the content
+     * @param filePath path of the file in the data folder
+     * @return true if the content is stored as a new blob, false if the blob already existed
+     * @throws FileAlreadyExistsException if the file already exists
+     * @throws IOException
+     */
+    public boolean link(Path tempPath, String hash, Path filePath) throws IOException {
+        return link(tempPath, hash, filePath, false);
+    }
+
+    /**
+     * Links the 'filePath' to the blob like {@link #link} but atomically replaces the existing file, so the file is
+     * never missing. The blob of the replaced file keeps its space until it is {@link #release released}.
+     *
+     * @param tempPath written content
+     * @param hash     hash of the content
+     * @param filePath path of the file in the data folder
+     * @return true if the content is stored as a new blob, false if the blob already existed
+     * @throws IOException
+     */
+    public boolean replace(Path tempPath, String hash, Path filePath) throws IOException {
+        return link(tempPath, hash, filePath, true);
+    }
+
+    private boolean link(Path tempPath, String hash, Path filePath, boolean replace) throws IOException {
+        final Path blobPath = blobPath(hash);
+        synchronized (lock(hash)) {
+            boolean stored = false;
+            if (!Files.exists(blobPath)) {
+                Files.createDirectories(blobPath.getParent());
+                Files.createLink(blobPath, tempPath);
+                blobs.put(fileKey(blobPath), hash);
+                stored = true;
+            }
+
+            try {
+                if (replace) {
+                    final Path linkPath = tempPath.resolveSibling(tempPath.getFileName() + ".link");
+                    Files.createLink(linkPath, blobPath);
+                    try {
+                        Files.move(linkPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } finally {
+                        // the rename does nothing if both names are links to this blob
+                        Files.deleteIfExists(linkPath);
+                    }
+                } else {
+                    try {
+                        Files.createLink(filePath, blobPath);
+                    } catch (NoSuchFileException e) {
+                        Files.createDirectories(filePath.getParent());
+                        Files.createLink(filePath, blobPath);
+                    }
+                }
+            } catch (IOException e) {
+                if (stored) {
+                    blobs.remove(fileKey(blobPath));
+                    Files.delete(blobPath);
+                }
+                throw e;
+            }
+
+            Files.delete(tempPath);
+            return stored;
+        }
+    }
+
+    /**
+     * Deletes the file of the data folder if it is linked to a blob. The blob is deleted with its last reference.
+     *
+     * @param filePath path of the file in the data folder
+     * @return number of released bytes or -1 if the file isn't linked to a blob
+     * @throws NoSuchFileException if the file doesn't exist
+     * @throws IOException
+     */
+    public long unlink(Path filePath) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        final String hash = blobs.get(attributes.fileKey());
+        if (hash == null) return -1;
+
+        final Path blobPath = blobPath(hash);
+        synchronized (lock(hash)) {
+            Files.delete(filePath);
+            if ((Integer) Files.getAttribute(blobPath, "unix:nlink") > 1) return 0;
+
+            blobs.remove(attributes.fileKey());
+            Files.delete(blobPath);
+            return attributes.size();
+        }
+    }
+
+    /**
+     * @param filePath path of the file in the data folder
+     * @return hash of the blob which the file is linked to or null if it isn't linked to a blob
+     * @throws IOException
+     */
+    public String hashOf(Path filePath) throws IOException {
+        final Object fileKey = Files.readAttributes(filePath, BasicFileAttributes.class).fileKey();
+        return fileKey != null ? blobs.get(fileKey) : null;
+    }
+
+    /**
+     * Releases the reference of a file which is already replaced. The blob is deleted if it has no other references.
+     *
+     * @param hash hash of the blob of the replaced file
+     * @return number of released bytes
+     * @throws IOException
+     */
+    public long release(String hash) throws IOException {
+        final Path blobPath = blobPath(hash);
+        synchronized (lock(hash)) {
+            final BasicFileAttributes attributes = Files.readAttributes(blobPath, BasicFileAttributes.class);
+            if ((Integer) Files.getAttribute(blobPath, "unix:nlink") > 1) return 0;
+
+            blobs.remove(attributes.fileKey());
+            Files.delete(blobPath);
+            return attributes.size();
+        }
+    }
+
+    /**
+     * @param fileKey identity of a file
+     * @return true if the file is a blob or a link to a blob
+     */
+    public boolean isBlob(Object fileKey) {
+        return fileKey != null && blobs.containsKey(fileKey);
+    }
+
+    public int getBlobCount() {
+        return blobs.size();
+    }
+
+    private Path blobPath(String hash) {
+        return blobsFolderPath.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Object lock(String hash) {
+        return locks[(hash.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    private static Object fileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+}
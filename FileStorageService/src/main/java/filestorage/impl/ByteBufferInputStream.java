@@ -0,0 +1,45 @@
+package filestorage.impl;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream over the content of a buffer.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) return 0;
+        if (!buffer.hasRemaining()) return -1;
+
+        final int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        final int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,72 @@
+package filestorage.impl;
+
+/**
+ * Snapshot of the {@link ContentCache} counters.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class CacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long loads;
+    private final long evictions;
+    private final long rejections;
+    private final long weight;
+
+    CacheStats(long hits, long misses, long loads, long evictions, long rejections, long weight) {
+        this.hits = hits;
+        this.misses = misses;
+        this.loads = loads;
+        this.evictions = evictions;
+        this.rejections = rejections;
+        this.weight = weight;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of disk reads made by the cache
+     */
+    public long getLoads() {
+        return loads;
+    }
+
+    /**
+     * @return number of entries removed from the cache to free space for others
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of loaded entries not admitted to the cache because they are less popular than the victim
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * @return bytes of cached content
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    public double getHitRate() {
+        final long requests = hits + misses;
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hits + ", misses=" + misses + ", loads=" + loads + ", evictions=" + evictions +
+                ", rejections=" + rejections + ", weight=" + weight + '}';
+    }
+}
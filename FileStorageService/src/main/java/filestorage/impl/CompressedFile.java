@@ -0,0 +1,282 @@
+package filestorage.impl;
+
+import filestorage.impl.exception.CorruptedContentException;
+import filestorage.impl.exception.NotEnoughFreeSpaceException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stored file which content is compressed by chunks, so any range of the content is read by decompressing only
+ * the chunks of the range.
+ * <p>
+ * Format: header, chunks, index. Header: magic (long), chunk size (int), number of chunks (int), length of the
+ * content (long), offset of the index (long), CRC32 of the previous header fields (int). A chunk is deflated or
+ * kept raw if deflating doesn't make it smaller. Index: stored length of every chunk (int), a chunk is raw if its
+ * stored length equals its length.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class CompressedFile {
+
+    public static final int HEADER_SIZE = 36;
+
+    /**
+     * Content is compressed if its first chunk shrinks at least to this part of its length.
+     */
+    private static final double MAX_COMPRESSION_RATIO = 0.9;
+
+    private static final long MAGIC = 0x4653435a43484b31L;
+
+    private final int chunkSize;
+    private final long length;
+
+    /**
+     * Offsets of the chunks in the file, the last element is the offset of the index.
+     */
+    private final long[] chunkOffsets;
+
+    private CompressedFile(int chunkSize, long length, long[] chunkOffsets) {
+        this.chunkSize = chunkSize;
+        this.length = length;
+        this.chunkOffsets = chunkOffsets;
+    }
+
+    /**
+     * @param channel stored file
+     * @return compressed file or null if the file isn't compressed
+     * @throws IOException
+     */
+    public static CompressedFile open(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) return null;
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getLong() != MAGIC) return null;
+
+        final int chunkSize = header.getInt();
+        final int chunkCount = header.getInt();
+        final long length = header.getLong();
+        final long indexOffset = header.getLong();
+        if (header.getInt() != checksum(header.array()))
+            return null;
+
+        final ByteBuffer index = ByteBuffer.allocate(chunkCount * 4);
+        readFully(channel, index, indexOffset);
+        index.flip();
+
+        final long[] chunkOffsets = new long[chunkCount + 1];
+        chunkOffsets[0] = HEADER_SIZE;
+        for (int i = 0; i < chunkCount; i++) {
+            chunkOffsets[i + 1] = chunkOffsets[i] + index.getInt();
+        }
+        return new CompressedFile(chunkSize, length, chunkOffsets);
+    }
+
+    /**
+     * @param firstChunk   first chunk of the content
+     * @param length       length of the chunk
+     * @param storedLength length of the chunk deflated by {@link Writer#deflate}
+     * @return true if the content starting with these bytes is worth compressing or can't be stored raw, because
+     * it looks like a compressed file
+     */
+    public static boolean shouldCompress(byte[] firstChunk, int length, int storedLength) {
+        if (length >= 8 && ByteBuffer.wrap(firstChunk, 0, 8).getLong() == MAGIC) return true;
+        return storedLength <= length * MAX_COMPRESSION_RATIO;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return number of the chunk which contains the byte at the 'position' of the content
+     */
+    public int chunkOf(long position) {
+        return (int) (position / chunkSize);
+    }
+
+    /**
+     * @return position of the first byte of the chunk in the content
+     */
+    public long chunkStart(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    /**
+     * Reads and decompresses the chunk.
+     *
+     * @param channel  stored file
+     * @param chunk    number of the chunk
+     * @param stored   buffer for the stored bytes of at least the chunk size
+     * @param output   buffer for the content of at least the chunk size
+     * @param inflater
+     * @return length of the chunk content
+     * @throws CorruptedContentException if the chunk can't be decompressed
+     * @throws IOException
+     */
+    public int readChunk(FileChannel channel, int chunk, byte[] stored, byte[] output, Inflater inflater) throws IOException {
+        final int chunkLength = (int) Math.min(chunkSize, length - chunkStart(chunk));
+        final int storedLength = (int) (chunkOffsets[chunk + 1] - chunkOffsets[chunk]);
+        if (storedLength == chunkLength) {
+            readFully(channel, ByteBuffer.wrap(output, 0, chunkLength), chunkOffsets[chunk]);
+            return chunkLength;
+        }
+
+        readFully(channel, ByteBuffer.wrap(stored, 0, storedLength), chunkOffsets[chunk]);
+        inflater.reset();
+        inflater.setInput(stored, 0, storedLength);
+        try {
+            int inflated = 0;
+            while (inflated < chunkLength && !inflater.finished()) {
+                final int count = inflater.inflate(output, inflated, chunkLength - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += count;
+            }
+            if (inflated != chunkLength)
+                throw new CorruptedContentException("Chunk " + chunk + " is corrupted");
+        } catch (DataFormatException e) {
+            throw new CorruptedContentException("Chunk " + chunk + " is corrupted: " + e.getMessage());
+        }
+        return chunkLength;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read == -1)
+                throw new IOException("Unexpected end of the compressed file");
+            position += read;
+        }
+    }
+
+    private static int checksum(byte[] header) {
+        final CRC32 crc = new CRC32();
+        crc.update(header, 0, HEADER_SIZE - 4);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the content into the compressed file chunk by chunk. Every stored byte is acquired from the
+     * reservation before it is written, so the quota counts compressed bytes. Nothing is written or acquired
+     * until the first chunk is written, so the first chunk may be deflated to decide whether the content is
+     * compressed at all.
+     */
+    public static class Writer implements AutoCloseable {
+
+        private final FileChannel out;
+        private final int chunkSize;
+        private final SpaceReservation reservation;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final byte[] compressed;
+
+        private int[] storedLengths = new int[16];
+        private int chunkCount;
+        private long length;
+        private long position = HEADER_SIZE;
+
+        /**
+         * @param out         empty file
+         * @param chunkSize   length of every chunk except the last one
+         * @param reservation
+         */
+        public Writer(FileChannel out, int chunkSize, SpaceReservation reservation) throws NotEnoughFreeSpaceException {
+            this.out = out;
+            this.chunkSize = chunkSize;
+            this.reservation = reservation;
+            this.compressed = new byte[chunkSize];
+        }
+
+        /**
+         * Deflates the chunk into the buffer of this writer.
+         *
+         * @param chunk  content of the chunk
+         * @param length length of the chunk
+         * @return length of the deflated chunk or the 'length' if deflating doesn't make it smaller
+         */
+        public int deflate(byte[] chunk, int length) {
+            deflater.reset();
+            deflater.setInput(chunk, 0, length);
+            deflater.finish();
+            int storedLength = 0;
+            while (!deflater.finished() && storedLength < length) {
+                storedLength += deflater.deflate(compressed, storedLength, Math.min(compressed.length, length) - storedLength);
+            }
+            return deflater.finished() && storedLength < length ? storedLength : length;
+        }
+
+        /**
+         * @param chunk  content of the chunk
+         * @param length length of the chunk, less than the chunk size only for the last chunk
+         */
+        public void write(byte[] chunk, int length) throws IOException, NotEnoughFreeSpaceException {
+            write(chunk, length, deflate(chunk, length));
+        }
+
+        /**
+         * Writes the chunk which was just deflated by {@link #deflate}.
+         *
+         * @param chunk        content of the chunk
+         * @param length       length of the chunk, less than the chunk size only for the last chunk
+         * @param storedLength length returned by {@link #deflate}
+         */
+        public void write(byte[] chunk, int length, int storedLength) throws IOException, NotEnoughFreeSpaceException {
+            if (chunkCount == 0)
+                reservation.acquire(HEADER_SIZE);
+            final ByteBuffer stored = ByteBuffer.wrap(storedLength < length ? compressed : chunk, 0, storedLength);
+
+            reservation.acquire(storedLength);
+            writeFully(stored, position);
+            position += storedLength;
+
+            if (chunkCount == storedLengths.length)
+                storedLengths = Arrays.copyOf(storedLengths, chunkCount * 2);
+            storedLengths[chunkCount++] = storedLength;
+            this.length += length;
+        }
+
+        /**
+         * Writes the index and the header.
+         */
+        public void finish() throws IOException, NotEnoughFreeSpaceException {
+            if (chunkCount == 0)
+                reservation.acquire(HEADER_SIZE);
+            final ByteBuffer index = ByteBuffer.allocate(chunkCount * 4);
+            for (int i = 0; i < chunkCount; i++) {
+                index.putInt(storedLengths[i]);
+            }
+            index.flip();
+            reservation.acquire(index.remaining());
+            writeFully(index, position);
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC).putInt(chunkSize).putInt(chunkCount).putLong(length).putLong(position);
+            header.putInt(checksum(header.array()));
+            header.flip();
+            writeFully(header, 0);
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+        }
+    }
+}
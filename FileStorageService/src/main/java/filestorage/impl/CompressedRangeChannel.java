@@ -0,0 +1,134 @@
+package filestorage.impl;
+
+import filestorage.FileRangeChannel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Inflater;
+
+/**
+ * Range of the content of the {@link CompressedFile}. Chunks of the range are decompressed one by one while the
+ * range is read, so reading from the middle of a large file doesn't decompress the beginning.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class CompressedRangeChannel extends FileRangeChannel {
+
+    private final FileChannel fileChannel;
+    private final CompressedFile compressedFile;
+    private final long end;
+    private long position;
+
+    /**
+     * Allocated on the first read, because a range replaced by {@link #thenClose} is never read.
+     */
+    private Inflater inflater;
+    private byte[] stored;
+    private byte[] chunk;
+    private int chunkNumber = -1;
+    private int chunkLength;
+
+    /**
+     * @param fileChannel    stored file
+     * @param compressedFile
+     * @param offset         first byte of the range in the content
+     * @param length         number of bytes of the content in the range
+     * @param onClose        closed instead of the 'fileChannel'
+     */
+    public CompressedRangeChannel(FileChannel fileChannel, CompressedFile compressedFile, long offset, long length, Closeable onClose) {
+        super(fileChannel, 0, 0, onClose);
+        this.fileChannel = fileChannel;
+        this.compressedFile = compressedFile;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    public CompressedRangeChannel(FileChannel fileChannel, CompressedFile compressedFile, long offset, long length) {
+        this(fileChannel, compressedFile, offset, length, fileChannel);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (remaining() == 0) return -1;
+
+        final int number = compressedFile.chunkOf(position);
+        if (number != chunkNumber) {
+            if (inflater == null) {
+                inflater = new Inflater(true);
+                stored = new byte[compressedFile.getChunkSize()];
+                chunk = new byte[compressedFile.getChunkSize()];
+            }
+            chunkLength = compressedFile.readChunk(fileChannel, number, stored, chunk, inflater);
+            chunkNumber = number;
+        }
+
+        final int offset = (int) (position - compressedFile.chunkStart(number));
+        final int count = (int) Math.min(Math.min(dst.remaining(), chunkLength - offset), remaining());
+        dst.put(chunk, offset, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * The content is decompressed, so it is copied through the user space.
+     */
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(compressedFile.getChunkSize());
+        long transferred = 0;
+        while (read(buffer) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                transferred += target.write(buffer);
+            }
+            buffer.clear();
+        }
+        return transferred;
+    }
+
+    @Override
+    public FileRangeChannel thenClose(Closeable next) {
+        return new CompressedRangeChannel(fileChannel, compressedFile, position, remaining(), chainClose(next));
+    }
+
+    /**
+     * @return read-only buffer with the decompressed rest of the range
+     */
+    @Override
+    public ByteBuffer map() throws IOException {
+        if (remaining() > Integer.MAX_VALUE)
+            throw new IOException("Range is too large: " + remaining());
+
+        final long start = position;
+        final ByteBuffer content = ByteBuffer.allocateDirect((int) remaining());
+        while (content.hasRemaining()) {
+            if (read(content) == -1) break;
+        }
+        position = start;
+        content.flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public long remaining() {
+        return end - position;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (inflater != null)
+                inflater.end();
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package filestorage.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Byte-weighted cache of file contents with the W-TinyLFU policy. The content is kept in direct buffers, out of
+ * the heap.
+ * <p>
+ * New entries get into a small LRU window. An entry leaving the window is admitted into the main space only if
+ * it is accessed more often than the entry it would evict, according to the {@link FrequencySketch}. The main
+ * space is a segmented LRU: entries hit in the probation segment are promoted to the protected one.
+ * <p>
+ * Concurrent misses of the same key wait for one load. Deleted files are invalidated as a
+ * {@link FileRemovalListener}, a load which is in progress at the moment isn't cached.
+ * <p>
+ * Keys are spread over independent segments by their hash, so readers of different files rarely wait for the
+ * same monitor.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class ContentCache implements FileRemovalListener {
+
+    /**
+     * Reads the content of the file.
+     */
+    static interface Loader {
+        /**
+         * @return content or null if the file must not be cached
+         */
+        ByteBuffer load(String key) throws IOException;
+    }
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int AVERAGE_ENTRY_SIZE = 4096;
+
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Minimum capacity of a segment in the largest entries.
+     */
+    private static final int MIN_SEGMENT_ENTRIES = 16;
+
+    private final Segment[] segments;
+    private final int mask;
+
+    /**
+     * @param capacity     in bytes
+     * @param maxEntrySize size of the largest entry in bytes, it defines how many segments the cache has
+     */
+    public ContentCache(long capacity, long maxEntrySize) {
+        int count = 1;
+        while (count < MAX_SEGMENTS && capacity / (count * 2) >= MIN_SEGMENT_ENTRIES * Math.max(1, maxEntrySize)) {
+            count *= 2;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(capacity / count);
+        }
+        this.mask = count - 1;
+    }
+
+    /**
+     * @param key
+     * @param loader reads the content on a miss
+     * @return read-only view of the content or null if the loader returned null
+     * @throws IOException if the loader failed
+     */
+    public ByteBuffer get(String key, Loader loader) throws IOException {
+        return segmentOf(key).get(key, loader);
+    }
+
+    @Override
+    public void fileRemoved(String name) {
+        segmentOf(name).fileRemoved(name);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public CacheStats getStats() {
+        final long[] stats = new long[6];
+        for (Segment segment : segments) {
+            segment.addStats(stats);
+        }
+        return new CacheStats(stats[0], stats[1], stats[2], stats[3], stats[4], stats[5]);
+    }
+
+    private Segment segmentOf(String key) {
+        final int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    private static class Segment {
+        private final long windowCapacity;
+        private final long mainCapacity;
+        private final long protectedCapacity;
+
+        private final LinkedHashMap<String, ByteBuffer> window = new LinkedHashMap<>();
+        private final LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<String, ByteBuffer> protectedSegment = new LinkedHashMap<>();
+        private long windowWeight;
+        private long probationWeight;
+        private long protectedWeight;
+
+        private final FrequencySketch sketch;
+        private final Map<String, FutureTask<ByteBuffer>> loading = new HashMap<>();
+
+        private long hits;
+        private long misses;
+        private long loads;
+        private long evictions;
+        private long rejections;
+
+        private Segment(long capacity) {
+            this.windowCapacity = Math.max(1, capacity * WINDOW_PERCENT / 100);
+            this.mainCapacity = capacity - windowCapacity;
+            this.protectedCapacity = mainCapacity * PROTECTED_PERCENT / 100;
+            this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, Math.max(1, capacity / AVERAGE_ENTRY_SIZE)));
+        }
+
+        private ByteBuffer get(String key, final Loader loader) throws IOException {
+            FutureTask<ByteBuffer> task;
+            boolean owner = false;
+
+            synchronized (this) {
+                sketch.increment(key);
+                final ByteBuffer cached = hit(key);
+                if (cached != null) {
+                    hits++;
+                    return cached.asReadOnlyBuffer();
+                }
+                misses++;
+
+                task = loading.get(key);
+                if (task == null) {
+                    final String loadedKey = key;
+                    task = new FutureTask<>(new Callable<ByteBuffer>() {
+                        @Override
+                        public ByteBuffer call() throws IOException {
+                            return loader.load(loadedKey);
+                        }
+                    });
+                    loading.put(key, task);
+                    owner = true;
+                    loads++;
+                }
+            }
+
+            if (owner) {
+                task.run();
+                synchronized (this) {
+                    // the file could be deleted while it was loaded
+                    if (loading.get(key) == task) {
+                        loading.remove(key);
+                        final ByteBuffer content = getDone(task);
+                        if (content != null)
+                            admit(key, content);
+                    }
+                }
+            }
+
+            final ByteBuffer content = getDone(task);
+            return content != null ? content.asReadOnlyBuffer() : null;
+        }
+
+        private synchronized void fileRemoved(String name) {
+            loading.remove(name);
+            remove(name);
+        }
+
+        private synchronized void clear() {
+            loading.clear();
+            window.clear();
+            probation.clear();
+            protectedSegment.clear();
+            windowWeight = probationWeight = protectedWeight = 0;
+        }
+
+        private synchronized void addStats(long[] stats) {
+            stats[0] += hits;
+            stats[1] += misses;
+            stats[2] += loads;
+            stats[3] += evictions;
+            stats[4] += rejections;
+            stats[5] += windowWeight + probationWeight + protectedWeight;
+        }
+
+        private ByteBuffer hit(String key) {
+            ByteBuffer content = window.remove(key);
+            if (content != null) {
+                window.put(key, content);
+                return content;
+            }
+
+            content = protectedSegment.remove(key);
+            if (content != null) {
+                protectedSegment.put(key, content);
+                return content;
+            }
+
+            content = probation.remove(key);
+            if (content != null) {
+                probationWeight -= content.capacity();
+                protectedSegment.put(key, content);
+                protectedWeight += content.capacity();
+                demoteProtected();
+            }
+            return content;
+        }
+
+        private void admit(String key, ByteBuffer content) {
+            if (content.capacity() > windowCapacity + mainCapacity) return;
+
+            window.put(key, content);
+            windowWeight += content.capacity();
+
+            final Iterator<Map.Entry<String, ByteBuffer>> candidates = window.entrySet().iterator();
+            while (windowWeight > windowCapacity && candidates.hasNext()) {
+                final Map.Entry<String, ByteBuffer> candidate = candidates.next();
+                candidates.remove();
+                windowWeight -= candidate.getValue().capacity();
+                admitToMain(candidate.getKey(), candidate.getValue());
+            }
+        }
+
+        /**
+         * The candidate from the window replaces the least recently used entries of the main space while it is more
+         * popular than them.
+         */
+        private void admitToMain(String key, ByteBuffer content) {
+            final int frequency = sketch.frequency(key);
+            while (probationWeight + protectedWeight + content.capacity() > mainCapacity) {
+                final boolean fromProbation = !probation.isEmpty();
+                final LinkedHashMap<String, ByteBuffer> segment = fromProbation ? probation : protectedSegment;
+                if (segment.isEmpty() || sketch.frequency(segment.keySet().iterator().next()) >= frequency) {
+                    rejections++;
+                    return;
+                }
+
+                final Iterator<ByteBuffer> victims = segment.values().iterator();
+                final ByteBuffer victim = victims.next();
+                victims.remove();
+                if (fromProbation)
+                    probationWeight -= victim.capacity();
+                else
+                    protectedWeight -= victim.capacity();
+                evictions++;
+            }
+
+            probation.put(key, content);
+            probationWeight += content.capacity();
+        }
+
+        private void demoteProtected() {
+            final Iterator<Map.Entry<String, ByteBuffer>> entries = protectedSegment.entrySet().iterator();
+            while (protectedWeight > protectedCapacity && entries.hasNext()) {
+                final Map.Entry<String, ByteBuffer> entry = entries.next();
+                entries.remove();
+                protectedWeight -= entry.getValue().capacity();
+                probation.put(entry.getKey(), entry.getValue());
+                probationWeight += entry.getValue().capacity();
+            }
+        }
+
+        private void remove(String key) {
+            ByteBuffer content;
+            if ((content = window.remove(key)) != null)
+                windowWeight -= content.capacity();
+            else if ((content = probation.remove(key)) != null)
+                probationWeight -= content.capacity();
+            else if ((content = protectedSegment.remove(key)) != null)
+                protectedWeight -= content.capacity();
+        }
+    }
+
+    private static ByteBuffer getDone(FutureTask<ByteBuffer> task) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package filestorage.impl;
+
+/**
+ * Listener of stored files which content is found corrupted, either by a verified read or by the {@link Scrubber}.
+ *
+ * @author Bogdan Kovalev.
+ */
+public interface CorruptionListener {
+
+    /**
+     * @param name name of the corrupted file, its key is returned by {@link FileNameValidator#decode(String)}
+     */
+    void fileCorrupted(String name);
+}
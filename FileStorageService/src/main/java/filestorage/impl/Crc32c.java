@@ -0,0 +1,92 @@
+package filestorage.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) of a stream of bytes. Bytes are processed by eight at a time with the slicing-by-8 tables,
+ * so the checksum is computed inline with writes and reads at a small part of the disk bandwidth.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class Crc32c implements Checksum {
+
+    private static final int POLYNOMIAL = 0x82f63b78;
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int table = 1; table < 8; table++) {
+                final int previous = TABLES[table - 1][i];
+                TABLES[table][i] = (previous >>> 8) ^ TABLES[0][previous & 0xff];
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] bytes, int offset, int length) {
+        int c = crc;
+        int i = offset;
+        final int end = offset + length;
+        for (; end - i >= 8; i += 8) {
+            c ^= (bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff) << 16 | (bytes[i + 3] & 0xff) << 24;
+            c = TABLES[7][c & 0xff] ^ TABLES[6][(c >>> 8) & 0xff] ^ TABLES[5][(c >>> 16) & 0xff] ^ TABLES[4][c >>> 24]
+                    ^ TABLES[3][bytes[i + 4] & 0xff] ^ TABLES[2][bytes[i + 5] & 0xff]
+                    ^ TABLES[1][bytes[i + 6] & 0xff] ^ TABLES[0][bytes[i + 7] & 0xff];
+        }
+        for (; i < end; i++) {
+            c = (c >>> 8) ^ TABLES[0][(c ^ bytes[i]) & 0xff];
+        }
+        crc = c;
+    }
+
+    /**
+     * Updates the checksum with the remaining bytes of the buffer without consuming them.
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+
+        final ByteBuffer bytes = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int c = crc;
+        while (bytes.remaining() >= 8) {
+            final long word = bytes.getLong();
+            c ^= (int) word;
+            final int high = (int) (word >>> 32);
+            c = TABLES[7][c & 0xff] ^ TABLES[6][(c >>> 8) & 0xff] ^ TABLES[5][(c >>> 16) & 0xff] ^ TABLES[4][c >>> 24]
+                    ^ TABLES[3][high & 0xff] ^ TABLES[2][(high >>> 8) & 0xff]
+                    ^ TABLES[1][(high >>> 16) & 0xff] ^ TABLES[0][high >>> 24];
+        }
+        while (bytes.hasRemaining()) {
+            c = (c >>> 8) ^ TABLES[0][(c ^ bytes.get()) & 0xff];
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xffffffff;
+    }
+}
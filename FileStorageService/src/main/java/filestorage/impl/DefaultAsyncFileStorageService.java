@@ -0,0 +1,179 @@
+package filestorage.impl;
+
+import filestorage.AsyncFileStorageService;
+import filestorage.FileStorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default implementation of AsyncFileStorageService. Operations of the wrapped service are run by a fixed pool
+ * of I/O threads with a bounded queue. When the queue is full, the future of the operation fails with
+ * {@link RejectedExecutionException} at once, so the calling thread never does the I/O itself and producers
+ * decide how to back off.
+ *
+ * @author Bogdan Kovalev
+ */
+public class DefaultAsyncFileStorageService implements AsyncFileStorageService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DefaultAsyncFileStorageService.class);
+
+    private static final long TERMINATION_TIMEOUT = 10000;
+
+    /**
+     * Blocking operation of the wrapped service.
+     */
+    static interface StorageCall<T> {
+        T call() throws Throwable;
+    }
+
+    private final FileStorageService fileStorageService;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param fileStorageService started service which does the operations
+     * @param ioThreads          number of I/O threads
+     * @param queueCapacity      maximum number of waiting operations
+     */
+    public DefaultAsyncFileStorageService(FileStorageService fileStorageService, int ioThreads, int queueCapacity) {
+        this.fileStorageService = fileStorageService;
+        this.executor = new ThreadPoolExecutor(ioThreads, ioThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new IoThreadFactory(), new Rejection());
+    }
+
+    @Override
+    public CompletableFuture<Void> saveFileAsync(final String key, final InputStream inputStream) {
+        return submit(new StorageCall<Void>() {
+            @Override
+            public Void call() throws Throwable {
+                fileStorageService.saveFile(key, inputStream);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveFileAsync(final String key, final InputStream inputStream, final long lifeTimeMillis) {
+        return submit(new StorageCall<Void>() {
+            @Override
+            public Void call() throws Throwable {
+                fileStorageService.saveFile(key, inputStream, lifeTimeMillis);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<InputStream> readFileAsync(final String key) {
+        return submit(new StorageCall<InputStream>() {
+            @Override
+            public InputStream call() throws Throwable {
+                return fileStorageService.readFile(key);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> readFileAsync(final String key, final WritableByteChannel target) {
+        return submit(new StorageCall<Long>() {
+            @Override
+            public Long call() throws Throwable {
+                return fileStorageService.readFile(key, target);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteFileAsync(final String key) {
+        return submit(new StorageCall<Void>() {
+            @Override
+            public Void call() throws Throwable {
+                fileStorageService.deleteFile(key);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> purgeAsync(final float requiredFreeSpaceInPercents) {
+        return submit(new StorageCall<Void>() {
+            @Override
+            public Void call() throws Throwable {
+                fileStorageService.purge(requiredFreeSpaceInPercents);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> purgeAsync(final long requiredFreeSpaceInBytes) {
+        return submit(new StorageCall<Void>() {
+            @Override
+            public Void call() throws Throwable {
+                fileStorageService.purge(requiredFreeSpaceInBytes);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS) && LOG.isWarnEnabled())
+                LOG.warn("I/O threads are not finished in {} milliseconds", TERMINATION_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return future of the call which is done by an I/O thread or is rejected
+     */
+    <T> CompletableFuture<T> submit(final StorageCall<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(call.call());
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Explains why the operation isn't queued.
+     */
+    private static class Rejection implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("Service is closed");
+            throw new RejectedExecutionException("Queue of I/O operations is full: "
+                    + executor.getQueue().size() + " operations are waiting");
+        }
+    }
+
+    private static class IoThreadFactory implements ThreadFactory {
+        private final AtomicInteger number = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            final Thread thread = new Thread(task, "storage-io-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
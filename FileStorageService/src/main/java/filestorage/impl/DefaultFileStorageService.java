@@ -1,19 +1,32 @@
 package filestorage.impl;
 
+import filestorage.BatchResult;
+import filestorage.FileRangeChannel;
 import filestorage.FileStorageService;
 import filestorage.impl.exception.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Default implementation of FileStorageService.
@@ -26,7 +39,47 @@ public class DefaultFileStorageService implements FileStorageService {
 
     static final String SYSTEM_FOLDER_NAME = "system";
     static final String SYSTEM_FILE_NAME = "system.data";
+    static final String EXPIRY_FILE_NAME = "expiry.data";
+    static final String EXPIRY_JOURNAL_NAME = "expiry.journal";
+    static final String USAGE_MANIFEST_NAME = "usage.manifest";
+    static final String LAYOUT_FILE_NAME = "layout.properties";
+    static final String NAMING_FILE_NAME = "naming";
+    static final String COMPRESSION_FILE_NAME = "compression";
     static final String DATA_FOLDER_NAME = "data";
+    static final String SEGMENTS_FOLDER_NAME = "segments";
+    static final String TEMP_FOLDER_NAME = "tmp";
+    static final String BLOBS_FOLDER_NAME = "blobs";
+
+    private static final String REVERSIBLE_NAMING = "reversible";
+    private static final String LEGACY_NAMING = "legacy";
+
+    private static final long UNKNOWN_SIZE = -1;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Direct buffers are expensive to allocate, so each writing thread reuses its own buffer.
+     */
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        }
+    };
+
+    private static final int COMPRESSION_CHUNK_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> COMPRESSION_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COMPRESSION_CHUNK_SIZE];
+        }
+    };
+
+    private static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int KEY_LOCK_STRIPES = 256;
+    private static final int TEMP_SHARDS = 16;
+    private static final int MAX_MAPPINGS = 1024;
+    private static final long MAX_MAPPED_BYTES = 256 * 1024 * 1024;
 
     private final String STORAGE_ROOT;
 
@@ -34,11 +87,44 @@ public class DefaultFileStorageService implements FileStorageService {
 
     private final long diskSpace;
     private final String dataFolderPath;
+    private final Path tempFolderPath;
 
     private LifeTimeWatcher lifeTimeWatcher;
     private StorageSpaceInspector storageSpaceInspector;
-    private PathConstructor pathConstructor = new PathConstructor();
+    private ShardDirectories shardDirectories;
+    private LayoutMigration layoutMigration;
+    private Thread layoutMigrationThread;
+    private final KeyLockManager keyLocks = new KeyLockManager(KEY_LOCK_STRIPES);
+    private final MappingPool mappingPool = new MappingPool(MAX_MAPPINGS, MAX_MAPPED_BYTES);
+    private ContentCache contentCache;
+    private long maxCachedFileSize;
+    private SegmentStore segmentStore;
+    private int maxPackedFileSize;
+    private boolean legacyNames;
+    private boolean deduplication;
+    private boolean compression;
+    private boolean checksums;
+    private boolean verifyOnRead;
+    private long scrubbingRate;
+    private Scrubber scrubber;
+    private Thread scrubberThread;
+    private final AtomicLong corruptions = new AtomicLong();
+    private final List<CorruptionListener> corruptionListeners = new CopyOnWriteArrayList<>();
+    private final CorruptionListener corruptionReporter = new CorruptionListener() {
+        @Override
+        public void fileCorrupted(String name) {
+            corruptions.incrementAndGet();
+            if (LOG.isErrorEnabled())
+                LOG.error("Content of the file '{}' is corrupted", name);
+            for (CorruptionListener listener : corruptionListeners) {
+                listener.fileCorrupted(name);
+            }
+        }
+    };
+    private BlobStore blobStore;
     private Thread lifeTimeWatcherThread;
+    private final ServiceMetrics metrics = new ServiceMetrics();
+    private ObjectName metricsName;
 
     /**
      * @param diskSpace   Maximum disk space that service can use for work
@@ -53,6 +139,8 @@ public class DefaultFileStorageService implements FileStorageService {
             LOG.info("New storage. Disk space: {}. Storage root: {}", diskSpace, storageRoot);
 
         this.dataFolderPath = String.valueOf(Paths.get(STORAGE_ROOT, DATA_FOLDER_NAME));
+        this.tempFolderPath = Paths.get(STORAGE_ROOT, TEMP_FOLDER_NAME);
+        this.shardDirectories = new ShardDirectories(new PathConstructor(), Paths.get(dataFolderPath));
 
         if (!createStorage()) {
             throw new UnableToCreateStorageException();
@@ -78,18 +166,113 @@ public class DefaultFileStorageService implements FileStorageService {
             return;
         }
 
-        storageSpaceInspector = new StorageSpaceInspector(diskSpace, STORAGE_ROOT);
+        deleteTemporaryFiles();
+
+        try {
+            layoutMigration = LayoutMigration.prepare(Paths.get(STORAGE_ROOT, SYSTEM_FOLDER_NAME, LAYOUT_FILE_NAME),
+                    shardDirectories, keyLocks);
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Service start is failed. Layout of the data folder can't be prepared: {}", e.getMessage());
+            throw new ServiceStartError();
+        }
+
+        try {
+            legacyNames = prepareNaming();
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Service start is failed. Naming of files can't be recorded: {}", e.getMessage());
+            throw new ServiceStartError();
+        }
+
+        try {
+            if (!prepareCompression()) {
+                if (LOG.isErrorEnabled())
+                    LOG.error("Service start is failed. The storage may have compressed files, but compression isn't enabled");
+                throw new ServiceStartError();
+            }
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Service start is failed. Compression of files can't be recorded: {}", e.getMessage());
+            throw new ServiceStartError();
+        }
+
+        // segments written while packing was enabled stay readable after it is disabled
+        final Path segmentsFolder = Paths.get(STORAGE_ROOT, SEGMENTS_FOLDER_NAME);
+        try {
+            if (maxPackedFileSize > 0 || SegmentStore.exists(segmentsFolder))
+                segmentStore = new SegmentStore(segmentsFolder, MAX_SEGMENT_SIZE);
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Service start is failed. Segments can't be read.");
+            throw new ServiceStartError();
+        }
+
+        if (deduplication) {
+            try {
+                blobStore = new BlobStore(Paths.get(STORAGE_ROOT, BLOBS_FOLDER_NAME));
+            } catch (IOException e) {
+                if (LOG.isErrorEnabled())
+                    LOG.error("Service start is failed. Blobs can't be read: {}", e.getMessage());
+                throw new ServiceStartError();
+            }
+        }
+
+        try {
+            if (checksums && !FileChecksums.isSupported(Paths.get(STORAGE_ROOT)))
+                throw new IOException("extended attributes aren't supported");
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Service start is failed. Checksums can't be stored: {}", e.getMessage());
+            throw new ServiceStartError();
+        }
+
+        storageSpaceInspector = new StorageSpaceInspector(diskSpace, STORAGE_ROOT, shardDirectories, segmentStore, keyLocks,
+                blobStore, metrics);
+        storageSpaceInspector.addFileRemovalListener(mappingPool);
+        if (contentCache != null)
+            storageSpaceInspector.addFileRemovalListener(contentCache);
 
         try {
-            lifeTimeWatcher = new LifeTimeWatcher(STORAGE_ROOT, storageSpaceInspector, pathConstructor);
+            lifeTimeWatcher = new LifeTimeWatcher(STORAGE_ROOT, storageSpaceInspector, shardDirectories, metrics);
         } catch (IOException e) {
             if (LOG.isErrorEnabled())
                 LOG.error("Service start is failed.");
             throw new ServiceStartError();
         }
 
+        storageSpaceInspector.addFileRemovalListener(lifeTimeWatcher);
+
         lifeTimeWatcherThread = new Thread(lifeTimeWatcher);
         lifeTimeWatcherThread.start();
+        if (segmentStore != null)
+            segmentStore.startCompaction();
+        if (layoutMigration != null) {
+            layoutMigrationThread = new Thread(layoutMigration, "layout-migration");
+            layoutMigrationThread.setDaemon(true);
+            layoutMigrationThread.start();
+        }
+        if (scrubbingRate > 0) {
+            scrubber = new Scrubber(Paths.get(dataFolderPath), new Scrubber.Opener() {
+                @Override
+                public FileRangeChannel open(String name) throws IOException {
+                    final FileRangeChannel range = openRange(name, 0, Long.MAX_VALUE, true);
+                    if (range instanceof VerifyingRangeChannel || range instanceof SegmentStore.VerifyingRecordRange)
+                        return range;
+                    range.close();
+                    return null;
+                }
+
+                @Override
+                public List<String> packedNames() {
+                    return segmentStore != null ? segmentStore.names() : Collections.<String>emptyList();
+                }
+            }, scrubbingRate);
+            scrubberThread = new Thread(scrubber, "scrubber");
+            scrubberThread.setDaemon(true);
+            scrubberThread.start();
+        }
+        registerMetrics();
         serviceIsStarted = true;
 
         if (LOG.isInfoEnabled())
@@ -120,31 +303,423 @@ public class DefaultFileStorageService implements FileStorageService {
 
         lifeTimeWatcher = null;
         lifeTimeWatcherThread = null;
+
+        if (layoutMigrationThread != null) {
+            layoutMigrationThread.interrupt();
+            try {
+                layoutMigrationThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            layoutMigrationThread = null;
+        }
+        if (scrubberThread != null) {
+            scrubberThread.interrupt();
+            try {
+                scrubberThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scrubberThread = null;
+        }
+        unregisterMetrics();
         serviceIsStarted = false;
 
+        if (segmentStore != null) {
+            segmentStore.close();
+            segmentStore = null;
+        }
+        storageSpaceInspector.storeUsageManifest();
+        mappingPool.clear();
+        if (contentCache != null)
+            contentCache.clear();
+
         if (LOG.isInfoEnabled())
             LOG.info("Service is stopped.");
     }
 
+    /**
+     * The metrics are published as 'filestorage:type=FileStorageService,root="storage root"'. The service works
+     * without them if they can't be published.
+     */
+    private void registerMetrics() {
+        try {
+            metricsName = new ObjectName("filestorage:type=FileStorageService,root=" + ObjectName.quote(STORAGE_ROOT));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            metricsName = null;
+            if (LOG.isWarnEnabled())
+                LOG.warn("Metrics aren't published over JMX: {}", e.getMessage());
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Metrics can't be unpublished: {}", e.getMessage());
+        }
+        metricsName = null;
+    }
+
     @Override
     public void saveFile(String key, InputStream inputStream) throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException {
+        saveChannel(key, Channels.newChannel(inputStream), UNKNOWN_SIZE);
+    }
+
+    @Override
+    public void saveFile(String key, ReadableByteChannel channel, long size) throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException {
+        if (size < 0)
+            throw new IllegalArgumentException("Invalid size: " + size);
+
+        saveChannel(key, channel, size);
+    }
 
+    /**
+     * @param size number of bytes in the channel or {@code UNKNOWN_SIZE}
+     */
+    private void saveChannel(String key, ReadableByteChannel channel, long size) throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException {
         if (LOG.isInfoEnabled())
             LOG.info("Saving of '{}' ...", key);
 
         if (!serviceIsStarted)
             throw new StorageServiceIsNotStartedError();
 
-        final String validFileName = FileNameValidator.validate(key);
-        final String destinationPath = pathConstructor.calculateDestinationPath(validFileName, dataFolderPath);
-        final Path filePath = Paths.get(destinationPath, validFileName);
+        storeFile(key, channel, size);
+
+        if (LOG.isInfoEnabled())
+            LOG.info("File '{}' saved", key);
+    }
+
+    @Override
+    public BatchResult saveFiles(Map<String, InputStream> files) throws StorageServiceIsNotStartedError {
+        if (LOG.isInfoEnabled())
+            LOG.info("Saving of {} files ...", files.size());
+
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        final BatchResult result = new BatchResult();
+        for (Map.Entry<String, InputStream> file : files.entrySet()) {
+            try {
+                storeFile(file.getKey(), Channels.newChannel(file.getValue()), UNKNOWN_SIZE);
+                result.addSuccess(file.getKey());
+            } catch (FileAlreadyExistsException | StorageException | RuntimeException e) {
+                result.addFailure(file.getKey(), e);
+            }
+        }
+
+        if (LOG.isInfoEnabled())
+            LOG.info("{} of {} files saved", result.getSucceeded().size(), files.size());
+        return result;
+    }
+
+    @Override
+    public BatchResult saveFiles(Map<String, InputStream> files, long lifeTimeMillis) throws StorageServiceIsNotStartedError {
+        final BatchResult result = saveFiles(files);
+        final List<String> names = new ArrayList<>(result.getSucceeded().size());
+        for (String key : result.getSucceeded()) {
+            names.add(FileNameValidator.encode(key));
+        }
+        lifeTimeWatcher.addFiles(names, lifeTimeMillis);
+        return result;
+    }
+
+    /**
+     * This method saves the file without logging, so batches don't pay for a log record per file.
+     */
+    private void storeFile(String key, ReadableByteChannel channel, long size) throws FileAlreadyExistsException,
+            NotEnoughFreeSpaceException, StorageCorruptedException {
+        final long start = System.nanoTime();
+        try {
+            metrics.addBytesIn(writeAndPublish(key, channel, size));
+        } catch (NotEnoughFreeSpaceException e) {
+            metrics.notEnoughFreeSpace();
+            throw e;
+        } finally {
+            metrics.saveLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * @return number of stored bytes
+     */
+    private long writeAndPublish(String key, ReadableByteChannel channel, long size) throws FileAlreadyExistsException,
+            NotEnoughFreeSpaceException, StorageCorruptedException {
+        final String name = FileNameValidator.encode(key);
+        final Path filePath = shardDirectories.resolve(name);
+
+        if (maxPackedFileSize > 0 && (size == UNKNOWN_SIZE || size <= maxPackedFileSize)) {
+            final ByteBuffer head = readHead(channel, size);
+            if (head.remaining() <= maxPackedFileSize) {
+                savePacked(key, name, filePath, head);
+                return head.limit();
+            }
+            // the file is too large for packing, so its already read head is written first
+            channel = Channels.newChannel(new SequenceInputStream(
+                    new ByteArrayInputStream(head.array(), 0, head.limit()), Channels.newInputStream(channel)));
+        }
+
+        if (existsInDataFolder(name, filePath) || isPacked(name) || legacyFileExists(key))
+            throw fileAlreadyExists(key);
+
+        // the file is written aside and appears in the data folder only when it is complete
+        final Path tempPath = createTempFile(name);
+        final MessageDigest digest = blobStore != null ? BlobStore.newDigest() : null;
+        final long writtenSize = writeFile(tempPath, channel, size, digest);
+
+        keyLocks.lockWrite(name);
+        try {
+            if (isPacked(name) || shardDirectories.locatePrevious(name) != null || legacyFileExists(key)) {
+                discardTempFile(tempPath, writtenSize);
+                throw fileAlreadyExists(key);
+            }
+
+            if (digest != null)
+                publishBlob(key, tempPath, name, filePath, writtenSize, BlobStore.toHash(digest), false);
+            else
+                publish(key, tempPath, name, filePath, writtenSize);
+            storageSpaceInspector.registerFile(name, writtenSize);
+        } finally {
+            keyLocks.unlockWrite(name);
+        }
+        return writtenSize;
+    }
+
+    @Override
+    public void replaceFile(String key, InputStream inputStream) throws StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException {
+        if (LOG.isInfoEnabled())
+            LOG.info("Replacing of '{}' ...", key);
+
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        final long start = System.nanoTime();
+        try {
+            replace(key, inputStream);
+        } catch (NotEnoughFreeSpaceException e) {
+            metrics.notEnoughFreeSpace();
+            throw e;
+        } finally {
+            metrics.replaceLatency.recordSince(start);
+        }
+
+        if (LOG.isInfoEnabled())
+            LOG.info("File '{}' replaced", key);
+    }
+
+    private void replace(String key, InputStream inputStream) throws NotEnoughFreeSpaceException, StorageCorruptedException {
+        final String name = nameOf(key);
+        final Path filePath = shardDirectories.resolve(name);
+
+        final Path tempPath = createTempFile(name);
+        final MessageDigest digest = blobStore != null ? BlobStore.newDigest() : null;
+        final long writtenSize = writeFile(tempPath, Channels.newChannel(inputStream), UNKNOWN_SIZE, digest);
+        metrics.addBytesIn(writtenSize);
+
+        keyLocks.lockWrite(name);
+        try {
+            final Path previousPath = shardDirectories.locate(name);
+            long previousSize = -1;
+            String previousHash = null;
+            try {
+                previousSize = Files.size(previousPath);
+                if (blobStore != null && previousPath.equals(filePath))
+                    previousHash = blobStore.hashOf(previousPath);
+            } catch (NoSuchFileException ignored) {
+            } catch (IOException e) {
+                discardTempFile(tempPath, writtenSize);
+                throw new IllegalStateException(e.getMessage());
+            }
+
+            // readers which opened the previous file keep reading it, and it is released only when the new file is
+            // in place
+            if (digest != null) {
+                try {
+                    publishBlob(key, tempPath, name, filePath, writtenSize, BlobStore.toHash(digest), true);
+                } catch (FileAlreadyExistsException e) {
+                    throw new IllegalStateException(e.getMessage());
+                }
+            } else {
+                moveIntoPlace(tempPath, name, filePath, writtenSize, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (previousSize >= 0)
+                previousSize = releaseReplaced(previousPath, filePath, previousSize, previousHash);
+            try {
+                storageSpaceInspector.registerReplacedFile(name, previousSize, writtenSize);
+            } catch (IOException e) {
+                if (LOG.isErrorEnabled())
+                    LOG.error("Can't delete the replaced packed file '{}'", key);
+                throw new IllegalStateException(e.getMessage());
+            }
+        } finally {
+            keyLocks.unlockWrite(name);
+        }
+    }
+
+    /**
+     * Releases the file which is replaced by the file at the 'filePath'.
+     *
+     * @param previousHash hash of the blob of the replaced file at the 'filePath' or null
+     * @return number of released bytes
+     */
+    private long releaseReplaced(Path previousPath, Path filePath, long previousSize, String previousHash) {
+        try {
+            if (!previousPath.equals(filePath))
+                return storageSpaceInspector.deleteFromDataFolder(previousPath, previousSize);
+            return previousHash != null ? blobStore.release(previousHash) : previousSize;
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Can't delete the replaced file '{}'", previousPath);
+            return 0;
+        }
+    }
+
+    private boolean isPacked(String name) {
+        return segmentStore != null && segmentStore.contains(name);
+    }
+
+    /**
+     * Storages created before keys were encoded reversibly may keep files by their legacy names. The naming is
+     * recorded in the system folder, so a new storage never looks for legacy names.
+     *
+     * @return true if the storage may contain files with legacy names
+     */
+    private boolean prepareNaming() throws IOException {
+        final Path namingFilePath = Paths.get(STORAGE_ROOT, SYSTEM_FOLDER_NAME, NAMING_FILE_NAME);
+        if (Files.exists(namingFilePath))
+            return LEGACY_NAMING.equals(new String(Files.readAllBytes(namingFilePath), StandardCharsets.UTF_8).trim());
+
+        final boolean legacy = hasStoredFiles(STORAGE_ROOT);
+        Files.createDirectories(namingFilePath.getParent());
+        Files.write(namingFilePath, (legacy ? LEGACY_NAMING : REVERSIBLE_NAMING).getBytes(StandardCharsets.UTF_8));
+        return legacy;
+    }
+
+    /**
+     * A storage is marked when it is started with compression, because its compressed files would be read as
+     * raw bytes without it.
+     *
+     * @return false if the storage is marked but compression isn't enabled
+     */
+    private boolean prepareCompression() throws IOException {
+        final Path markerPath = Paths.get(STORAGE_ROOT, SYSTEM_FOLDER_NAME, COMPRESSION_FILE_NAME);
+        if (!compression) return !Files.exists(markerPath);
+
+        if (!Files.exists(markerPath)) {
+            Files.createDirectories(markerPath.getParent());
+            Files.createFile(markerPath);
+        }
+        return true;
+    }
+
+    private static boolean isEmptyFolder(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) return true;
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            return !files.iterator().hasNext();
+        }
+    }
+
+    /**
+     * @return name of the existing file of the 'key', which is its legacy name if only a file with that name exists
+     */
+    private String nameOf(String key) {
+        final String name = FileNameValidator.encode(key);
+        if (!legacyNames) return name;
+
+        final String legacyName = FileNameValidator.legacyName(key);
+        if (legacyName == null || exists(name) || !exists(legacyName)) return name;
+        return legacyName;
+    }
+
+    private boolean legacyFileExists(String key) {
+        if (!legacyNames) return false;
+        final String legacyName = FileNameValidator.legacyName(key);
+        return legacyName != null && exists(legacyName);
+    }
+
+    private boolean exists(String name) {
+        return isPacked(name) || existsInDataFolder(name, shardDirectories.resolve(name));
+    }
+
+    /**
+     * @return the whole file of the known 'size' or at most {@code maxPackedFileSize + 1} bytes of the file of
+     * unknown size
+     */
+    private ByteBuffer readHead(ReadableByteChannel channel, long size) {
+        final ByteBuffer head = ByteBuffer.allocate(size == UNKNOWN_SIZE ? maxPackedFileSize + 1 : (int) size);
+        try {
+            while (head.hasRemaining()) {
+                if (channel.read(head) == -1) break;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+
+        if (size != UNKNOWN_SIZE && head.hasRemaining())
+            throw new IllegalStateException("Unexpected end of the data: " + head.position() + " of " + size + " bytes read");
+
+        head.flip();
+        return head;
+    }
+
+    private void savePacked(String key, String name, Path filePath, ByteBuffer data) throws FileAlreadyExistsException, NotEnoughFreeSpaceException {
+        keyLocks.lockWrite(name);
+        try {
+            if (existsInDataFolder(name, filePath) || legacyFileExists(key))
+                throw fileAlreadyExists(key);
+            writePacked(name, data);
+        } finally {
+            keyLocks.unlockWrite(name);
+        }
+    }
+
+    private void writePacked(String name, ByteBuffer data) throws FileAlreadyExistsException, NotEnoughFreeSpaceException {
 
-        atomicallyCreateFile(key, validFileName, destinationPath, filePath);
+        final long recordLength = SegmentStore.recordLength(name, data.remaining());
+        final SpaceReservation reservation = storageSpaceInspector.newReservation();
+        reservation.reserve(recordLength);
+
+        final long creationTime = System.currentTimeMillis();
+        try {
+            segmentStore.put(name, data, creationTime);
+        } catch (FileAlreadyExistsException e) {
+            reservation.rollback();
+            throw e;
+        } catch (IOException e) {
+            reservation.rollback();
+            if (LOG.isErrorEnabled())
+                LOG.error("Can't write the packed file: '{}'", name);
+            throw new IllegalStateException(e.getMessage());
+        }
 
-        writeFile(filePath, Channels.newChannel(inputStream));
+        reservation.acquire(recordLength);
+        reservation.commit();
+        storageSpaceInspector.registerFile(name, recordLength);
 
         if (LOG.isInfoEnabled())
-            LOG.info("File '{}' saved", validFileName);
+            LOG.info("File '{}' saved into a segment", name);
+    }
+
+    @Override
+    public void saveFile(String key, Path source) throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException, FileNotFoundException {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        try (final FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            saveFile(key, channel, channel.size());
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(String.valueOf(source));
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Can't read the file: '{}'", source);
+            throw new IllegalStateException(e.getMessage());
+        }
     }
 
     @Override
@@ -157,7 +732,7 @@ public class DefaultFileStorageService implements FileStorageService {
 
         saveFile(key, inputStream);
 
-        lifeTimeWatcher.addFile(key, lifeTimeMillis);
+        lifeTimeWatcher.addFile(FileNameValidator.encode(key), lifeTimeMillis);
     }
 
     @Override
@@ -168,9 +743,222 @@ public class DefaultFileStorageService implements FileStorageService {
         if (!serviceIsStarted)
             throw new StorageServiceIsNotStartedError();
 
-        Path filePath = Paths.get(pathConstructor.calculateDestinationPath(key, dataFolderPath), key);
+        final long start = System.nanoTime();
+        final String name = nameOf(key);
+        if (contentCache != null && storageSpaceInspector.getStoredSize(name) <= maxCachedFileSize) {
+            final ByteBuffer content = readCached(name);
+            if (content != null) {
+                metrics.addBytesOut(content.remaining());
+                metrics.readLatency.recordSince(start);
+                return new ByteBufferInputStream(content);
+            }
+        }
+
+        final FileRangeChannel range = openRange(name, 0, Long.MAX_VALUE);
+        metrics.addBytesOut(range.remaining());
+        metrics.readLatency.recordSince(start);
+        return new BufferedInputStream(new FileRangeInputStream(range));
+    }
+
+    /**
+     * The name is locked for reading as for a read from the disk, so a hit doesn't return the content of a file
+     * which is being written or deleted.
+     *
+     * @return cached content or null if the file is too large for the cache
+     */
+    private ByteBuffer readCached(String name) throws FileNotFoundException {
+        if (!keyLocks.lockRead(name))
+            throw new FileNotFoundException(name);
+
+        try {
+            return contentCache.get(name, new ContentCache.Loader() {
+                @Override
+                public ByteBuffer load(String name) throws IOException {
+                    try (final FileRangeChannel range = openRange(name, 0, Long.MAX_VALUE)) {
+                        if (range.remaining() > maxCachedFileSize) return null;
+
+                        final ByteBuffer content = ByteBuffer.allocateDirect((int) range.remaining());
+                        while (content.hasRemaining()) {
+                            if (range.read(content) == -1) break;
+                        }
+                        content.flip();
+                        return content;
+                    }
+                }
+            });
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Can't read the file: '{}'", name);
+            throw new IllegalStateException(e.getMessage());
+        } finally {
+            keyLocks.unlockRead(name);
+        }
+    }
+
+    @Override
+    public long readFile(String key, WritableByteChannel target) throws StorageServiceIsNotStartedError, IOException {
+        try (final FileRangeChannel range = readRange(key, 0, Long.MAX_VALUE)) {
+            return range.transferTo(target);
+        }
+    }
+
+    @Override
+    public FileRangeChannel readRange(String key, long offset, long length) throws StorageServiceIsNotStartedError, FileNotFoundException {
+        if (LOG.isInfoEnabled())
+            LOG.info("Reading of '{}' from {} ...", key, offset);
+
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException("Invalid range: " + offset + ", " + length);
+
+        final long start = System.nanoTime();
+        final FileRangeChannel range = openRange(nameOf(key), offset, length);
+        metrics.addBytesOut(range.remaining());
+        metrics.readLatency.recordSince(start);
+        return range;
+    }
+
+    /**
+     * Opens the range of the packed file or of the file in the data folder. The name is locked for reading until
+     * the range is closed, so the file isn't deleted while it is read.
+     */
+    private FileRangeChannel openRange(String name, long offset, long length) throws FileNotFoundException {
+        return openRange(name, offset, length, verifyOnRead);
+    }
+
+    /**
+     * @param verify if true, a range over the whole content of a file with a checksum is verified while it is read
+     */
+    private FileRangeChannel openRange(final String name, long offset, long length, boolean verify) throws FileNotFoundException {
+        if (!keyLocks.lockRead(name))
+            throw new FileNotFoundException(name);
+
+        boolean opened = false;
+        try {
+            final FileRangeChannel range = openUnlockedRange(name, offset, length, verify).thenClose(new Closeable() {
+                @Override
+                public void close() {
+                    keyLocks.unlockRead(name);
+                }
+            });
+            opened = true;
+            return range;
+        } finally {
+            if (!opened)
+                keyLocks.unlockRead(name);
+        }
+    }
+
+    private FileRangeChannel openUnlockedRange(String name, long offset, long length, boolean verify) throws FileNotFoundException {
+        final FileRangeChannel packed = segmentStore != null
+                ? segmentStore.openRange(name, offset, length, verify ? corruptionReporter : null) : null;
+        if (packed != null) return packed;
+
+        Path filePath = shardDirectories.resolve(name);
+
+        long checksum = verify && offset == 0 ? storedChecksum(filePath) : -1;
+        FileChannel channel;
+        try {
+            channel = openForReading(filePath);
+        } catch (FileNotFoundException e) {
+            // the file may be not moved from the previous layout yet
+            filePath = shardDirectories.locatePrevious(name);
+            if (filePath == null) throw e;
+            checksum = verify && offset == 0 ? storedChecksum(filePath) : -1;
+            channel = openForReading(filePath);
+        }
+        try {
+            final FileRangeChannel range;
+            final long contentLength;
+            final CompressedFile compressedFile = compression ? CompressedFile.open(channel) : null;
+            if (compressedFile != null) {
+                contentLength = compressedFile.getLength();
+                final long start = Math.min(offset, contentLength);
+                range = new CompressedRangeChannel(channel, compressedFile, start, Math.min(length, contentLength - start));
+            } else {
+                contentLength = channel.size();
+                final long start = Math.min(offset, contentLength);
+                range = new FileRangeChannel(channel, start, Math.min(length, contentLength - start));
+            }
+
+            // the checksum is read before and after the opening, so a file replaced meanwhile isn't verified
+            if (checksum < 0 || range.remaining() < contentLength || storedChecksum(filePath) != checksum)
+                return range;
+            return new VerifyingRangeChannel(channel, range, name, checksum, corruptionReporter);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            if (LOG.isErrorEnabled())
+                LOG.error("Can't read the file: '{}'", filePath);
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    @Override
+    public ByteBuffer mapFile(final String key) throws StorageServiceIsNotStartedError, FileNotFoundException {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        final long start = System.nanoTime();
+        final String name = nameOf(key);
+        try {
+            final ByteBuffer mapping = mappingPool.acquire(name, new MappingPool.RegionOpener() {
+                @Override
+                public FileRangeChannel open() throws IOException {
+                    return openRange(name, 0, Long.MAX_VALUE);
+                }
+            });
+            metrics.addBytesOut(mapping.remaining());
+            metrics.mapLatency.recordSince(start);
+            return mapping;
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Can't map the file: '{}'", key);
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void releaseMapping(ByteBuffer mapping) throws StorageServiceIsNotStartedError {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        mappingPool.release(mapping);
+    }
+
+    private static FileChannel openForReading(Path filePath) throws FileNotFoundException {
+        try {
+            return FileChannel.open(filePath, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(String.valueOf(filePath));
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return checksum of the content of the file or -1 if it is unknown
+     */
+    private static long storedChecksum(Path filePath) {
+        try {
+            return FileChecksums.read(filePath);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
 
-        return new BufferedInputStream(new FileInputStream(String.valueOf(filePath)));
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Can't close '{}'", closeable);
+        }
     }
 
     @Override
@@ -181,22 +969,45 @@ public class DefaultFileStorageService implements FileStorageService {
         if (!serviceIsStarted)
             throw new StorageServiceIsNotStartedError();
 
-        Path filePath = Paths.get(pathConstructor.calculateDestinationPath(key, dataFolderPath), key);
+        final long start = System.nanoTime();
+        try {
+            storageSpaceInspector.deleteFile(nameOf(key));
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Can't delete file '{}'", key);
+            throw new MaybeFileInUseException(key);
+        } finally {
+            metrics.deleteLatency.recordSince(start);
+        }
+
+        if (LOG.isInfoEnabled())
+            LOG.info("File '{}' deleted.", key);
+    }
+
+    @Override
+    public BatchResult deleteFiles(Collection<String> keys) throws StorageServiceIsNotStartedError {
+        if (LOG.isInfoEnabled())
+            LOG.info("Deleting of {} files ...", keys.size());
+
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
 
-        if (Files.exists(filePath)) {
+        final BatchResult result = new BatchResult();
+        for (String key : keys) {
+            final long start = System.nanoTime();
             try {
-                final long length = Files.size(filePath);
-                Files.delete(filePath);
-                storageSpaceInspector.decrementUsedSpace(length);
+                storageSpaceInspector.deleteFile(nameOf(key));
+                result.addSuccess(key);
             } catch (IOException e) {
-                if (LOG.isWarnEnabled())
-                    LOG.warn("Can't delete file '{}'", key);
-                throw new MaybeFileInUseException(key);
+                result.addFailure(key, new MaybeFileInUseException(key));
+            } finally {
+                metrics.deleteLatency.recordSince(start);
             }
         }
 
         if (LOG.isInfoEnabled())
-            LOG.info("File '{}' deleted.", key);
+            LOG.info("{} of {} files deleted", result.getSucceeded().size(), keys.size());
+        return result;
     }
 
     @Override
@@ -233,6 +1044,144 @@ public class DefaultFileStorageService implements FileStorageService {
             LOG.info("{} bytes of the storage disk space was successfully purged.", requiredFreeSpaceInBytes);
     }
 
+    /**
+     * This method puts the cache of file contents in front of {@link #readFile(String)}. Files larger than
+     * 'maxCachedFileSize' are always read from the disk. It must be called before the service is started.
+     *
+     * @param capacityInBytes   maximum size of the cached contents
+     * @param maxCachedFileSize in bytes
+     */
+    public void enableContentCache(long capacityInBytes, long maxCachedFileSize) {
+        if (serviceIsStarted)
+            throw new IllegalStateException("Service is already started");
+
+        this.maxCachedFileSize = Math.min(maxCachedFileSize, Integer.MAX_VALUE);
+        this.contentCache = new ContentCache(capacityInBytes, this.maxCachedFileSize);
+    }
+
+    /**
+     * This method turns on packing of files not larger than 'maxPackedFileSize' into segment files. Packed files
+     * are read, deleted and purged as other files. It must be called before the service is started.
+     *
+     * @param maxPackedFileSize in bytes
+     */
+    public void enableSmallFilePacking(int maxPackedFileSize) {
+        if (serviceIsStarted)
+            throw new IllegalStateException("Service is already started");
+
+        this.maxPackedFileSize = maxPackedFileSize;
+    }
+
+    /**
+     * This method sets the layout of the data folder. If files were stored by another layout, they are moved into
+     * the new one in the background and found at their previous places until then. It must be called before the
+     * service is started.
+     *
+     * @param shardFunction hash function of the keys
+     * @param depth         level of the folders nesting
+     * @param levelCapacity maximum number of subdirectories in directory on each level of nesting
+     */
+    public void configureLayout(ShardFunction shardFunction, int depth, int levelCapacity) {
+        if (serviceIsStarted)
+            throw new IllegalStateException("Service is already started");
+
+        this.shardDirectories = new ShardDirectories(new PathConstructor(shardFunction, depth, levelCapacity),
+                Paths.get(dataFolderPath));
+    }
+
+    /**
+     * @return true if no files are left in previous layouts of the data folder
+     */
+    public boolean layoutMigrationIsFinished() {
+        return layoutMigration == null || layoutMigration.isFinished();
+    }
+
+    /**
+     * This method turns on deduplication of file contents. Each unique content is stored once in the blobs folder
+     * and files with the same content share it, so the used space counts physical bytes. Packed files aren't
+     * deduplicated. It must be called before the service is started.
+     */
+    public void enableDeduplication() {
+        if (serviceIsStarted)
+            throw new IllegalStateException("Service is already started");
+
+        this.deduplication = true;
+    }
+
+    /**
+     * This method turns on compression of file contents. Files are compressed by chunks while they are written,
+     * a file which first chunk doesn't compress well is stored raw. The used space counts stored bytes. Packed
+     * files aren't compressed. A storage started with compression is marked and doesn't start without it
+     * anymore. It must be called before the service is started.
+     */
+    public void enableCompression() {
+        if (serviceIsStarted)
+            throw new IllegalStateException("Service is already started");
+
+        this.compression = true;
+    }
+
+    /**
+     * This method turns on checksums of file contents. The CRC32C of a file is computed while the file is written
+     * and is kept in an extended attribute of the file. Packed files are protected by the checksums of their
+     * segment records instead. It must be called before the service is started.
+     *
+     * @param verifyOnRead if true, every read of a whole file verifies its content while it is streamed, and
+     *                     the last read throws {@link filestorage.impl.exception.CorruptedContentException} on
+     *                     a mismatch
+     */
+    public void enableChecksums(boolean verifyOnRead) {
+        if (serviceIsStarted)
+            throw new IllegalStateException("Service is already started");
+
+        this.checksums = true;
+        this.verifyOnRead = verifyOnRead;
+    }
+
+    /**
+     * This method turns on the background verification of all files with checksums, it turns on checksums too.
+     * It must be called before the service is started.
+     *
+     * @param bytesPerSecond maximum rate of reading by the scrubber
+     */
+    public void enableScrubbing(long bytesPerSecond) {
+        if (serviceIsStarted)
+            throw new IllegalStateException("Service is already started");
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException("Invalid scrubbing rate: " + bytesPerSecond);
+
+        this.checksums = true;
+        this.scrubbingRate = bytesPerSecond;
+    }
+
+    /**
+     * @param listener notified of files which content is found corrupted
+     */
+    public void addCorruptionListener(CorruptionListener listener) {
+        corruptionListeners.add(listener);
+    }
+
+    /**
+     * @return snapshot of the metrics which are also published over JMX while the service is started
+     */
+    public MetricsSnapshot getMetrics() {
+        return metrics.snapshot();
+    }
+
+    public IntegrityStats getIntegrityStats() {
+        final Scrubber scrubber = this.scrubber;
+        return scrubber != null
+                ? new IntegrityStats(scrubber.getScrubbedFiles(), scrubber.getScrubbedBytes(), scrubber.getPasses(), corruptions.get())
+                : new IntegrityStats(0, 0, 0, corruptions.get());
+    }
+
+    /**
+     * @return statistics of the content cache or null if the cache isn't enabled
+     */
+    public CacheStats getContentCacheStats() {
+        return contentCache != null ? contentCache.getStats() : null;
+    }
+
     public long getSystemFolderSize() throws StorageServiceIsNotStartedError {
         if (!serviceIsStarted)
             throw new StorageServiceIsNotStartedError();
@@ -244,59 +1193,382 @@ public class DefaultFileStorageService implements FileStorageService {
             LOG.info("Deleting of an empty directories.");
 
         storageSpaceInspector.deleteEmptyDirectories(new File(dataFolderPath));
+        shardDirectories.forgetCreated();
 
         if (LOG.isInfoEnabled())
             LOG.info("Empty directories are deleted");
     }
 
+    /**
+     * @return stored files from the oldest to the newest
+     */
+    List<FileAgeIndex.Entry> getStoredFiles() throws StorageServiceIsNotStartedError {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+        return storageSpaceInspector.getStoredFiles();
+    }
+
+    /**
+     * @param name file name
+     * @return time in milliseconds when the file will be deleted or -1 if it has no life time
+     */
+    long getDeadline(String name) throws StorageServiceIsNotStartedError {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+        return lifeTimeWatcher.getDeadline(name);
+    }
+
+    /**
+     * @param key
+     * @return true if the file is stored, it is checked without opening the file
+     */
+    boolean containsFile(String key) throws StorageServiceIsNotStartedError {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+        return exists(nameOf(key));
+    }
+
+    /**
+     * @param name file name
+     * @return true if the file is stored, it is checked without opening the file
+     */
+    boolean containsName(String name) throws StorageServiceIsNotStartedError {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+        return exists(name);
+    }
+
+    /**
+     * Adds the listener of files deleted from the started service. Listeners are dropped when the service is stopped.
+     */
+    void addFileRemovalListener(FileRemovalListener listener) throws StorageServiceIsNotStartedError {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+        storageSpaceInspector.addFileRemovalListener(listener);
+    }
+
+    /**
+     * Saves the file of the known 'size' with the life time, so a copy of the file keeps its size and its deadline.
+     */
+    void saveFile(String key, ReadableByteChannel channel, long size, long lifeTimeMillis) throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException {
+        saveFile(key, channel, size);
+        lifeTimeWatcher.addFile(FileNameValidator.encode(key), lifeTimeMillis);
+    }
+
+    /**
+     * @param storageRoot
+     * @return true if the storage has files in its data folder or segments
+     */
+    static boolean hasStoredFiles(String storageRoot) throws IOException {
+        return !isEmptyFolder(Paths.get(storageRoot, DATA_FOLDER_NAME)) || SegmentStore.exists(Paths.get(storageRoot, SEGMENTS_FOLDER_NAME));
+    }
+
     public boolean serviceIsStarted() {
         return serviceIsStarted;
     }
 
-    private void atomicallyCreateFile(String key, String validFileName, String destinationPath, Path filePath) throws FileAlreadyExistsException {
+    /**
+     * @return new empty file in the temporary folder of the shard of the 'name'
+     */
+    private Path createTempFile(String name) {
+        final Path shardPath = tempFolderPath.resolve(String.valueOf(PathConstructor.hash(name) & (TEMP_SHARDS - 1)));
         try {
-            Files.createDirectories(Paths.get(destinationPath));
-            Files.createFile(filePath);
-        } catch (FileAlreadyExistsException e) {
-            LOG.warn("File '{}' already exist", key);
-            throw new FileAlreadyExistsException(key);
+            Files.createDirectories(shardPath);
+            return Files.createTempFile(shardPath, "save", ".tmp");
         } catch (IOException e) {
             if (LOG.isErrorEnabled())
-                LOG.error("Can't create the file {}", validFileName);
+                LOG.error("Can't create a temporary file in '{}'", shardPath);
             throw new IllegalStateException(e.getMessage());
         }
     }
 
-    private void writeFile(Path filePath, ReadableByteChannel channel) throws StorageCorruptedException,
-            NotEnoughFreeSpaceException, StorageServiceIsNotStartedError {
-        if (LOG.isInfoEnabled())
-            LOG.info("Writing of '{}' onto a disk space...", filePath);
+    /**
+     * This method moves the written temporary file into the data folder. A hard link is created instead of the
+     * move, because it fails atomically if the file already exists.
+     */
+    private void publish(String key, Path tempPath, String name, Path filePath, long size)
+            throws FileAlreadyExistsException, StorageCorruptedException {
+        try {
+            shardDirectories.ensureCreated(name);
+            try {
+                Files.createLink(filePath, tempPath);
+            } catch (NoSuchFileException e) {
+                shardDirectories.recreate(name);
+                Files.createLink(filePath, tempPath);
+            }
+        } catch (FileAlreadyExistsException e) {
+            discardTempFile(tempPath, size);
+            throw fileAlreadyExists(key);
+        } catch (UnsupportedOperationException e) {
+            moveIntoPlace(tempPath, name, filePath, size);
+            return;
+        } catch (IOException e) {
+            discardTempFile(tempPath, size);
+            if (LOG.isErrorEnabled())
+                LOG.error("Can't publish the file '{}'", filePath);
+            throw new StorageCorruptedException();
+        }
+        deleteIncompleteFile(tempPath);
+    }
 
-        try (final FileChannel out = new FileOutputStream(String.valueOf(filePath)).getChannel()) {
+    private void moveIntoPlace(Path tempPath, String name, Path filePath, long size, CopyOption... options)
+            throws StorageCorruptedException {
+        try {
+            shardDirectories.ensureCreated(name);
+            try {
+                Files.move(tempPath, filePath, options);
+            } catch (NoSuchFileException e) {
+                shardDirectories.recreate(name);
+                Files.move(tempPath, filePath, options);
+            }
+        } catch (IOException e) {
+            discardTempFile(tempPath, size);
+            if (LOG.isErrorEnabled())
+                LOG.error("Can't publish the file '{}'", filePath);
+            throw new StorageCorruptedException();
+        }
+    }
+
+    /**
+     * This method links the written temporary file to the blob of its content. If the content is already stored,
+     * the written copy is deleted and its space is released, so the storage keeps only physical bytes.
+     *
+     * @param replace true if the existing file is atomically replaced
+     */
+    private void publishBlob(String key, Path tempPath, String name, Path filePath, long size, String hash,
+                             boolean replace) throws FileAlreadyExistsException, StorageCorruptedException {
+        try {
+            shardDirectories.ensureCreated(name);
+            if (!(replace ? blobStore.replace(tempPath, hash, filePath) : blobStore.link(tempPath, hash, filePath)))
+                storageSpaceInspector.decrementUsedSpace(size);
+        } catch (FileAlreadyExistsException e) {
+            discardTempFile(tempPath, size);
+            throw fileAlreadyExists(key);
+        } catch (IOException e) {
+            discardTempFile(tempPath, size);
+            if (LOG.isErrorEnabled())
+                LOG.error("Can't publish the file '{}'", filePath);
+            throw new StorageCorruptedException();
+        }
+    }
+
+    /**
+     * Deletes the written temporary file which isn't published and releases its space.
+     */
+    private void discardTempFile(Path tempPath, long size) {
+        deleteIncompleteFile(tempPath);
+        storageSpaceInspector.decrementUsedSpace(size);
+    }
+
+    private boolean existsInDataFolder(String name, Path filePath) {
+        return Files.exists(filePath) || shardDirectories.locatePrevious(name) != null;
+    }
+
+    private FileAlreadyExistsException fileAlreadyExists(String key) {
+        metrics.fileAlreadyExists();
+        if (LOG.isWarnEnabled())
+            LOG.warn("File '{}' already exist", key);
+        return new FileAlreadyExistsException(key);
+    }
+
+    /**
+     * Temporary files are left only by interrupted writes, so they are deleted before the used space is evaluated.
+     */
+    private void deleteTemporaryFiles() {
+        if (!Files.isDirectory(tempFolderPath)) return;
 
-            final ByteBuffer buffer = ByteBuffer.allocate(1024);
-            while (channel.read(buffer) != -1) {
-                if (getFreeStorageSpaceInBytes() < 1024) {
-                    throw new NotEnoughFreeSpaceException();
+        try {
+            Files.walkFileTree(tempFolderPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
                 }
-                buffer.flip();
-                out.write(buffer);
+            });
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Can't delete temporary files");
+        }
+    }
+
+    /**
+     * This method writes the content of the 'channel' into the file. If the 'size' is known, the space is reserved
+     * once before writing and a file channel is copied by {@link FileChannel#transferFrom}, otherwise the space is
+     * reserved while the data is read.
+     *
+     * @param size   number of bytes to write or {@code UNKNOWN_SIZE} to write until the end of the channel
+     * @param digest digest which is updated with the written bytes or null
+     * @return number of written bytes
+     */
+    private long writeFile(Path filePath, ReadableByteChannel channel, long size, MessageDigest digest) throws StorageCorruptedException,
+            NotEnoughFreeSpaceException {
+        if (LOG.isInfoEnabled())
+            LOG.info("Writing of '{}' onto a disk space...", filePath);
 
-                storageSpaceInspector.incrementUsedSpace(buffer.position());
+        final SpaceReservation reservation = storageSpaceInspector.newReservation();
+        final Crc32c crc = checksums ? new Crc32c() : null;
 
+        try (final FileChannel out = new FileOutputStream(String.valueOf(filePath)).getChannel()) {
+
+            if (compression) {
+                writeCompressed(out, channel, size, reservation, digest, crc);
+            } else if (size == UNKNOWN_SIZE) {
+                final ByteBuffer buffer = WRITE_BUFFER.get();
                 buffer.clear();
+                while (channel.read(buffer) != -1) {
+                    reservation.acquire(buffer.position());
+
+                    buffer.flip();
+                    update(digest, crc, buffer);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } else {
+                reservation.reserve(size);
+                final long written = channel instanceof FileChannel && digest == null && crc == null
+                        ? transferFromFile((FileChannel) channel, out, size)
+                        : transfer(channel, out, size, digest, crc);
+                if (written < size)
+                    throw new IOException("Unexpected end of the data: " + written + " of " + size + " bytes read");
+                reservation.acquire(written);
             }
+
+            if (crc != null)
+                FileChecksums.write(filePath, crc.getValue());
+        } catch (NotEnoughFreeSpaceException e) {
+            reservation.rollback();
+            deleteIncompleteFile(filePath);
+            throw e;
         } catch (FileNotFoundException e) {
             // arises when destination folders hierarchy corrupted
+            reservation.rollback();
             throw new StorageCorruptedException();
         } catch (IOException e) {
+            reservation.rollback();
+            deleteIncompleteFile(filePath);
             if (LOG.isErrorEnabled())
                 LOG.error("Can't write to the file: '{}'", filePath);
             throw new IllegalStateException(e.getMessage());
         }
 
+        reservation.commit();
+
         if (LOG.isInfoEnabled())
             LOG.info("'{}' successfully written", filePath);
+
+        return reservation.getUsed();
+    }
+
+    /**
+     * This method writes the content by chunks. If the first chunk doesn't compress well, the content is written
+     * raw, otherwise it is written as the {@link CompressedFile}.
+     */
+    private static void writeCompressed(FileChannel out, ReadableByteChannel channel, long size, SpaceReservation reservation,
+                                        MessageDigest digest, Crc32c crc) throws IOException, NotEnoughFreeSpaceException {
+        final byte[] chunk = COMPRESSION_BUFFER.get();
+        long read = 0;
+        int length = readChunk(channel, chunk, size, read);
+
+        try (final CompressedFile.Writer writer = new CompressedFile.Writer(out, COMPRESSION_CHUNK_SIZE, reservation)) {
+            // the deflated first chunk decides whether the content is compressed and is written as is
+            int storedLength = writer.deflate(chunk, length);
+            final boolean compress = CompressedFile.shouldCompress(chunk, length, storedLength);
+            while (length > 0) {
+                read += length;
+                if (digest != null)
+                    digest.update(chunk, 0, length);
+                if (crc != null)
+                    crc.update(chunk, 0, length);
+
+                if (compress) {
+                    writer.write(chunk, length, storedLength);
+                } else {
+                    reservation.acquire(length);
+                    final ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+                length = readChunk(channel, chunk, size, read);
+                if (compress && length > 0)
+                    storedLength = writer.deflate(chunk, length);
+            }
+
+            if (size != UNKNOWN_SIZE && read < size)
+                throw new IOException("Unexpected end of the data: " + read + " of " + size + " bytes read");
+            if (compress)
+                writer.finish();
+        }
+    }
+
+    /**
+     * Fills the chunk unless the data ends.
+     *
+     * @param size number of bytes of the data or {@code UNKNOWN_SIZE}
+     * @param read number of bytes of the data read before
+     * @return length of the chunk
+     */
+    private static int readChunk(ReadableByteChannel channel, byte[] chunk, long size, long read) throws IOException {
+        final int limit = size == UNKNOWN_SIZE ? chunk.length : (int) Math.min(chunk.length, size - read);
+        final ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, limit);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) break;
+        }
+        return buffer.position();
+    }
+
+    private static long transferFromFile(FileChannel source, FileChannel out, long size) throws IOException {
+        final long start = source.position();
+        long written = 0;
+        while (written < size) {
+            final long transferred = out.transferFrom(source, written, size - written);
+            if (transferred <= 0) break;
+            written += transferred;
+            source.position(start + written);
+        }
+        return written;
+    }
+
+    private static long transfer(ReadableByteChannel source, FileChannel out, long size, MessageDigest digest, Crc32c crc)
+            throws IOException {
+        final ByteBuffer buffer = WRITE_BUFFER.get();
+        long written = 0;
+        while (written < size) {
+            buffer.clear();
+            if (size - written < buffer.capacity())
+                buffer.limit((int) (size - written));
+            if (source.read(buffer) == -1) break;
+
+            buffer.flip();
+            update(digest, crc, buffer);
+            while (buffer.hasRemaining()) {
+                written += out.write(buffer);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Updates the digest and the checksum with the remaining bytes of the buffer without consuming them.
+     */
+    private static void update(MessageDigest digest, Crc32c crc, ByteBuffer buffer) {
+        if (crc != null)
+            crc.update(buffer);
+        if (digest == null) return;
+        buffer.mark();
+        digest.update(buffer);
+        buffer.reset();
+    }
+
+    private void deleteIncompleteFile(Path filePath) {
+        try {
+            Files.deleteIfExists(filePath);
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Can't delete incomplete file '{}'", filePath);
+        }
     }
 
     private boolean createStorage() {
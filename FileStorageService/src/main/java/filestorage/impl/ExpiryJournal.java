@@ -0,0 +1,329 @@
+package filestorage.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+/**
+ * This class persists the content of the {@link ExpiryQueue}.
+ * Every change of the queue is appended to the journal file as a small checksummed record, so registering a life-time
+ * costs O(1) in I/O. From time to time the journal is compacted into the snapshot file. On start the state is restored
+ * by replaying the snapshot and then the journal.
+ * <p>
+ * Record format: payload length (int), operation (byte), deadline (long), UTF-8 key bytes, CRC32 of the payload (int).
+ * Every written record is counted in the used space, so an expired file releases its bytes without the size of the
+ * record of its removal.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class ExpiryJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExpiryJournal.class);
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+
+    private static final int PAYLOAD_HEADER_SIZE = 1 + 8;
+    private static final int MAX_PAYLOAD_SIZE = PAYLOAD_HEADER_SIZE + 64 * 1024;
+
+    /**
+     * Journal is compacted when it contains at least this number of records and more records than the queue has keys.
+     */
+    static final int COMPACTION_MIN_RECORDS = 1024;
+
+    private final Path snapshotPath;
+    private final Path journalPath;
+    private final StorageSpaceInspector storageSpaceInspector;
+
+    private FileChannel journal;
+    private int journalRecords;
+
+    public ExpiryJournal(Path systemFolder, StorageSpaceInspector inspector) {
+        this.snapshotPath = systemFolder.resolve(DefaultFileStorageService.EXPIRY_FILE_NAME);
+        this.journalPath = systemFolder.resolve(DefaultFileStorageService.EXPIRY_JOURNAL_NAME);
+        this.storageSpaceInspector = inspector;
+    }
+
+    /**
+     * @return true if neither snapshot nor journal exists.
+     */
+    public boolean isEmpty() {
+        return !Files.exists(snapshotPath) && !Files.exists(journalPath);
+    }
+
+    /**
+     * This method restores the 'queue' from the snapshot and the journal and opens the journal for appending.
+     * A torn or corrupted tail of the journal is cut off.
+     *
+     * @param queue
+     * @throws IOException
+     */
+    public synchronized void replay(ExpiryQueue queue) throws IOException {
+        if (Files.exists(snapshotPath))
+            readRecords(snapshotPath, queue);
+
+        journal = openJournal();
+
+        final long validLength = readRecords(journalPath, queue);
+        final long length = journal.size();
+        if (validLength < length) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Expiry journal is corrupted after {} bytes, the rest {} bytes are dropped", validLength, length - validLength);
+            journal.truncate(validLength);
+            storageSpaceInspector.decrementUsedSpace(length - validLength);
+        }
+    }
+
+    public void appendAdd(String key, long deadline) {
+        append(encode(ADD, key, deadline));
+    }
+
+    public void appendRemove(String key) {
+        append(encode(REMOVE, key, 0));
+    }
+
+    /**
+     * Appends records of all 'keys' by one write.
+     *
+     * @param keys
+     * @param deadline
+     */
+    public void appendAdds(Collection<String> keys, long deadline) {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (String key : keys) {
+            final byte[] record = encode(ADD, key, deadline);
+            records.write(record, 0, record.length);
+        }
+        append(records.toByteArray(), keys.size());
+    }
+
+    /**
+     * @param key
+     * @return size of a record of the 'key' in bytes
+     */
+    static int recordSize(String key) {
+        return 4 + PAYLOAD_HEADER_SIZE + key.getBytes(StandardCharsets.UTF_8).length + 4;
+    }
+
+    /**
+     * @param liveEntries current number of keys in the queue
+     * @return true if the journal has grown enough to be compacted
+     */
+    public synchronized boolean needsCompaction(int liveEntries) {
+        return journalRecords >= COMPACTION_MIN_RECORDS && journalRecords > liveEntries;
+    }
+
+    /**
+     * This method writes the content of the 'queue' into the new snapshot and leaves in the journal only records
+     * that were appended while the snapshot was written.
+     *
+     * @param queue
+     */
+    public void compact(ExpiryQueue queue) {
+        final long snapshotStart;
+        synchronized (this) {
+            try {
+                snapshotStart = journal.size();
+            } catch (IOException e) {
+                if (LOG.isWarnEnabled())
+                    LOG.warn("Expiry journal compaction failed");
+                return;
+            }
+        }
+
+        // The queue is changed before a record is appended, so the copy contains at least everything written before
+        // 'snapshotStart'. Records after 'snapshotStart' are kept in the journal and replayed over the snapshot.
+        final ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        queue.forEach(new ExpiryQueue.Consumer() {
+            @Override
+            public void accept(String key, long deadline) {
+                final byte[] record = encode(ADD, key, deadline);
+                snapshot.write(record, 0, record.length);
+            }
+        });
+
+        final Path snapshotTmp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        final Path journalTmp = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+
+        synchronized (this) {
+            long reserved = 0;
+            try {
+                final long sizeBefore = sizeOf(snapshotPath) + journal.size();
+                final long sizeAfter = snapshot.size() + journal.size() - snapshotStart;
+                if (!storageSpaceInspector.tryReserve(sizeAfter)) {
+                    if (LOG.isWarnEnabled())
+                        LOG.warn("Haven't enough free space to compact the expiry journal");
+                    return;
+                }
+                reserved = sizeAfter;
+
+                writeFile(snapshotTmp, ByteBuffer.wrap(snapshot.toByteArray()));
+
+                final ByteBuffer tail = ByteBuffer.allocate((int) (journal.size() - snapshotStart));
+                try (final FileChannel in = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+                    while (tail.hasRemaining()) {
+                        if (in.read(tail, snapshotStart + tail.position()) < 0) break;
+                    }
+                }
+                tail.flip();
+                writeFile(journalTmp, tail.duplicate());
+
+                // if the process dies between these moves, the old journal is replayed over the new snapshot,
+                // which gives the same state because records of the same key are applied in order
+                Files.move(snapshotTmp, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(journalTmp, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+                journal.close();
+                journal = openJournal();
+                journalRecords = countRecords(tail);
+
+                // the new files are already counted by the reservation
+                storageSpaceInspector.decrementUsedSpace(sizeBefore);
+
+                if (LOG.isInfoEnabled())
+                    LOG.info("Expiry journal compacted: {} -> {} bytes", sizeBefore, sizeAfter);
+            } catch (IOException e) {
+                storageSpaceInspector.decrementUsedSpace(reserved);
+                if (LOG.isWarnEnabled())
+                    LOG.warn("Expiry journal compaction failed");
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Expiry journal closing failed");
+        }
+    }
+
+    private void append(byte[] record) {
+        append(record, 1);
+    }
+
+    private synchronized void append(byte[] record, int count) {
+        if (!storageSpaceInspector.tryReserve(record.length)) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Haven't enough free space to store system data");
+            return;
+        }
+
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+            journalRecords += count;
+        } catch (IOException e) {
+            storageSpaceInspector.decrementUsedSpace(record.length);
+            if (LOG.isWarnEnabled())
+                LOG.warn("System data storing failed");
+        }
+    }
+
+    /**
+     * @return number of bytes of valid records in the file
+     */
+    private long readRecords(Path path, ExpiryQueue queue) throws IOException {
+        long validLength = 0;
+        int records = 0;
+
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int payloadSize;
+                try {
+                    payloadSize = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (payloadSize < PAYLOAD_HEADER_SIZE || payloadSize > MAX_PAYLOAD_SIZE) break;
+
+                final byte[] payload = new byte[payloadSize];
+                final int checksum;
+                try {
+                    in.readFully(payload);
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != checksum) break;
+
+                final ByteBuffer record = ByteBuffer.wrap(payload);
+                final byte operation = record.get();
+                final long deadline = record.getLong();
+                final String key = new String(payload, PAYLOAD_HEADER_SIZE, payloadSize - PAYLOAD_HEADER_SIZE, StandardCharsets.UTF_8);
+
+                if (operation == ADD)
+                    queue.put(key, deadline);
+                else
+                    queue.remove(key);
+
+                validLength += 4 + payloadSize + 4;
+                records++;
+            }
+        }
+
+        if (path.equals(journalPath))
+            journalRecords = records;
+        return validLength;
+    }
+
+    private FileChannel openJournal() throws IOException {
+        return FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static byte[] encode(byte operation, String key, long deadline) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final int payloadSize = PAYLOAD_HEADER_SIZE + keyBytes.length;
+
+        final ByteBuffer record = ByteBuffer.allocate(4 + payloadSize + 4);
+        record.putInt(payloadSize).put(operation).putLong(deadline).put(keyBytes);
+
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, payloadSize);
+        record.putInt((int) crc.getValue());
+
+        return record.array();
+    }
+
+    private static int countRecords(ByteBuffer records) {
+        int count = 0;
+        while (records.remaining() >= 4) {
+            final int payloadSize = records.getInt();
+            records.position(records.position() + payloadSize + 4);
+            count++;
+        }
+        return count;
+    }
+
+    private static void writeFile(Path path, ByteBuffer content) throws IOException {
+        try (final FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) {
+                out.write(content);
+            }
+            out.force(true);
+        }
+    }
+
+    private static long sizeOf(Path path) throws IOException {
+        return Files.exists(path) ? Files.size(path) : 0;
+    }
+}
@@ -0,0 +1,173 @@
+package filestorage.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class keeps file keys ordered by their absolute expiration time (deadline) in milliseconds.
+ * It is a binary min-heap over a primitive array of deadlines, so the head of the queue is always the key
+ * that must be deleted first.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class ExpiryQueue {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] deadlines = new long[INITIAL_CAPACITY];
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Position of each key in the heap arrays. It is needed to update or remove a key in O(log n).
+     */
+    private final Map<String, Integer> positions = new HashMap<>();
+
+    /**
+     * Adds the 'key' to the queue or moves it to the new 'deadline' if it is already queued.
+     * Threads waiting in {@link #awaitNextDeadline(long)} are woken up if the head of the queue changed.
+     *
+     * @param key
+     * @param deadline time in milliseconds when the key expires
+     */
+    public synchronized void put(String key, long deadline) {
+        final long headBefore = nextDeadline();
+
+        final Integer position = positions.get(key);
+        if (position == null) {
+            if (size == deadlines.length) {
+                deadlines = Arrays.copyOf(deadlines, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            set(size++, key, deadline);
+            siftUp(size - 1);
+        } else {
+            final long oldDeadline = deadlines[position];
+            deadlines[position] = deadline;
+            if (deadline < oldDeadline) siftUp(position);
+            else siftDown(position);
+        }
+
+        if (nextDeadline() < headBefore)
+            notifyAll();
+    }
+
+    /**
+     * Removes the 'key' from the queue.
+     *
+     * @param key
+     * @return true if the key was queued
+     */
+    public synchronized boolean remove(String key) {
+        final Integer position = positions.get(key);
+        if (position == null) return false;
+        removeAt(position);
+        return true;
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return key with the earliest deadline if this deadline is not later than 'now', otherwise null
+     */
+    public synchronized String pollExpired(long now) {
+        if (size == 0 || deadlines[0] > now) return null;
+        final String key = keys[0];
+        removeAt(0);
+        return key;
+    }
+
+    /**
+     * @param key
+     * @return deadline of the 'key' or -1 if it isn't queued
+     */
+    public synchronized long deadlineOf(String key) {
+        final Integer position = positions.get(key);
+        return position == null ? -1 : deadlines[position];
+    }
+
+    /**
+     * @return the earliest deadline or {@code Long.MAX_VALUE} if the queue is empty
+     */
+    public synchronized long nextDeadline() {
+        return size == 0 ? Long.MAX_VALUE : deadlines[0];
+    }
+
+    /**
+     * Blocks until the earliest deadline comes, an earlier deadline is added or 'maxWait' milliseconds elapse.
+     *
+     * @param maxWait in milliseconds
+     * @throws InterruptedException
+     */
+    public synchronized void awaitNextDeadline(long maxWait) throws InterruptedException {
+        final long delay = nextDeadline() - System.currentTimeMillis();
+        if (delay > 0)
+            wait(Math.min(delay, maxWait));
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * This method will be accept the consumer for all queued keys in no particular order.
+     * The queue is locked during the iteration, so the consumer must be fast.
+     *
+     * @param consumer
+     */
+    public synchronized void forEach(Consumer consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(keys[i], deadlines[i]);
+        }
+    }
+
+    private void removeAt(int position) {
+        positions.remove(keys[position]);
+        final int last = --size;
+        if (position != last) {
+            final long movedDeadline = deadlines[last];
+            set(position, keys[last], movedDeadline);
+            siftDown(position);
+            siftUp(position);
+        }
+        keys[last] = null;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            final int parent = (position - 1) >>> 1;
+            if (deadlines[parent] <= deadlines[position]) break;
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            final int left = 2 * position + 1;
+            if (left >= size) break;
+            final int right = left + 1;
+            final int smallest = right < size && deadlines[right] < deadlines[left] ? right : left;
+            if (deadlines[position] <= deadlines[smallest]) break;
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        final String key = keys[i];
+        final long deadline = deadlines[i];
+        set(i, keys[j], deadlines[j]);
+        set(j, key, deadline);
+    }
+
+    private void set(int position, String key, long deadline) {
+        keys[position] = key;
+        deadlines[position] = deadline;
+        positions.put(key, position);
+    }
+
+    static interface Consumer {
+        public void accept(String key, long deadline);
+    }
+}
@@ -0,0 +1,105 @@
+package filestorage.impl;
+
+import java.util.*;
+
+/**
+ * In-memory index of stored files ordered by their creation time.
+ * Size and time of a file are captured when the file is saved, so the oldest files can be found without any
+ * file system calls.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class FileAgeIndex {
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private final TreeSet<Entry> byAge = new TreeSet<>(new Comparator<Entry>() {
+        @Override
+        public int compare(Entry entry1, Entry entry2) {
+            final int cmp = Long.compare(entry1.creationTime, entry2.creationTime);
+            return cmp != 0 ? cmp : Long.compare(entry1.sequence, entry2.sequence);
+        }
+    });
+
+    private long sequence;
+
+    /**
+     * Adds the file or replaces the previous entry with the same 'name'.
+     *
+     * @param name         file name
+     * @param size         in bytes
+     * @param creationTime in milliseconds
+     */
+    public synchronized void add(String name, long size, long creationTime) {
+        add(new Entry(name, size, creationTime, sequence++));
+    }
+
+    public synchronized void add(Entry entry) {
+        final Entry previous = entries.put(entry.name, entry);
+        if (previous != null)
+            byAge.remove(previous);
+        byAge.add(entry);
+    }
+
+    /**
+     * @param name
+     * @return removed entry or null if the index doesn't contain the file
+     */
+    public synchronized Entry remove(String name) {
+        final Entry entry = entries.remove(name);
+        if (entry != null)
+            byAge.remove(entry);
+        return entry;
+    }
+
+    /**
+     * @return removed entry of the oldest file or null if the index is empty
+     */
+    public synchronized Entry pollOldest() {
+        final Entry entry = byAge.pollFirst();
+        if (entry != null)
+            entries.remove(entry.name);
+        return entry;
+    }
+
+    public synchronized Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return copy of all entries from the oldest to the newest
+     */
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(byAge);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public static class Entry {
+        private final String name;
+        private final long size;
+        private final long creationTime;
+        private final long sequence;
+
+        private Entry(String name, long size, long creationTime, long sequence) {
+            this.name = name;
+            this.size = size;
+            this.creationTime = creationTime;
+            this.sequence = sequence;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCreationTime() {
+            return creationTime;
+        }
+    }
+}
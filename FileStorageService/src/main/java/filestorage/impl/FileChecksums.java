@@ -0,0 +1,68 @@
+package filestorage.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * This is util class. It keeps the {@link Crc32c} of the content of a stored file in the extended attribute
+ * 'user.crc32c' of the file. The attribute belongs to the file itself, so it moves with the file, and links
+ * of a deduplicated blob share it.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class FileChecksums {
+
+    private static final String ATTRIBUTE_NAME = "crc32c";
+    private static final int CHECKSUM_SIZE = 4;
+
+    /**
+     * @param folder folder of stored files
+     * @return true if files of the folder can keep checksums
+     */
+    public static boolean isSupported(Path folder) throws IOException {
+        return Files.getFileStore(folder).supportsFileAttributeView(UserDefinedFileAttributeView.class);
+    }
+
+    /**
+     * @param filePath
+     * @param checksum checksum of the content of the file
+     * @throws IOException
+     */
+    public static void write(Path filePath, long checksum) throws IOException {
+        final ByteBuffer value = ByteBuffer.allocate(CHECKSUM_SIZE);
+        value.putInt((int) checksum).flip();
+        view(filePath).write(ATTRIBUTE_NAME, value);
+    }
+
+    /**
+     * @param filePath
+     * @return checksum of the content of the file or -1 if the file has no checksum
+     * @throws NoSuchFileException if the file doesn't exist
+     * @throws IOException
+     */
+    public static long read(Path filePath) throws IOException {
+        final ByteBuffer value = ByteBuffer.allocate(CHECKSUM_SIZE);
+        try {
+            if (view(filePath).read(ATTRIBUTE_NAME, value) != CHECKSUM_SIZE) return -1;
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (FileSystemException e) {
+            // the attribute doesn't exist
+            return -1;
+        }
+        value.flip();
+        return value.getInt() & 0xffffffffL;
+    }
+
+    private static UserDefinedFileAttributeView view(Path filePath) throws IOException {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(filePath, UserDefinedFileAttributeView.class);
+        if (view == null)
+            throw new IOException("Checksums aren't supported by the file system of '" + filePath + "'");
+        return view;
+    }
+}
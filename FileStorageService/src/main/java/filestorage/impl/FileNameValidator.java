@@ -1,45 +1,220 @@
 package filestorage.impl;
 
-import com.google.common.base.Ascii;
-import com.google.common.escape.ArrayBasedCharEscaper;
-import com.google.common.escape.CharEscaper;
+import com.google.common.hash.Hashing;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
 
 /**
+ * Reversible encoding of keys into file names. The storage keeps files, locks, indexes and caches by encoded names,
+ * so every operation encodes the key once and works with the name.
+ * <p>
+ * Characters which are illegal in file names are replaced by '_' and a letter, '_' itself is doubled. Other
+ * control characters and unpaired surrogates are replaced by '_x' or '_u' and their hex code, the names "." and
+ * ".." are written as "_p" and "_p_p". A key which needs no escaping is returned as is, without allocations.
+ * <p>
+ * Names longer than {@link #MAX_NAME_BYTES} in UTF-8 are replaced by '_z' and the SHA-256 of the key. Such names
+ * can't be decoded.
+ * <p>
+ * Storages created before this encoding kept files by {@link #legacyName(String)}, which differs for keys with '_',
+ * non-ASCII or control characters.
+ *
  * @author Bogdan Kovalev
  */
 public class FileNameValidator {
 
-    private static final Map<Character, String> ILLEGAL_CHARACTERS_REPLACEMENT = new HashMap<Character, String>() {{
-        put('/', "_a");
-        put('\n', "_b");
-        put('\r', "_c");
-        put('\t', "_d");
-        put('\0', "_e");
-        put('\f', "_f");
-        put('`', "_g");
-        put('?', "_h");
-        put('*', "_i");
-        put('\\', "_j");
-        put('<', "_k");
-        put('>', "_l");
-        put('|', "_m");
-        put('\"', "_n");
-        put(':', "_o");
-    }};
-
-    public static String validate(String input) {
-
-        if (input == null) return null;
-        CharEscaper replacingEscaper = new ArrayBasedCharEscaper(ILLEGAL_CHARACTERS_REPLACEMENT, Ascii.MIN, Ascii.MAX) {
-            @Override
-            protected char[] escapeUnsafe(char c) {
-                return new char[0];
+    /**
+     * Maximum length of a file name in bytes on common file systems.
+     */
+    public static final int MAX_NAME_BYTES = 255;
+
+    private static final char ESCAPE = '_';
+    private static final char HASHED = 'z';
+    private static final char DOT = 'p';
+    private static final char CONTROL = 'x';
+    private static final char SURROGATE = 'u';
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Characters which are illegal in file names and their escape letters.
+     */
+    private static final String ILLEGAL_CHARACTERS = "/\n\r\t\0\f`?*\\<>|\":_";
+    private static final String ESCAPE_LETTERS = "abcdefghijklmno_";
+
+    /**
+     * Escape letters of ASCII characters, 0 for characters which are kept.
+     */
+    private static final char[] ESCAPES = new char[128];
+
+    static {
+        for (int i = 0; i < ILLEGAL_CHARACTERS.length(); i++) {
+            ESCAPES[ILLEGAL_CHARACTERS.charAt(i)] = ESCAPE_LETTERS.charAt(i);
+        }
+        for (char c = 0; c < ' '; c++) {
+            if (ESCAPES[c] == 0) ESCAPES[c] = CONTROL;
+        }
+        ESCAPES[0x7f] = CONTROL;
+    }
+
+    /**
+     * @param key
+     * @return file name of the 'key'
+     */
+    public static String encode(String key) {
+        if (key == null) return null;
+
+        final int length = key.length();
+        int bytes = 0;
+        boolean clean = !isDotName(key);
+        for (int i = 0; i < length && clean; i++) {
+            final char c = key.charAt(i);
+            if (c < 0x80) {
+                clean = ESCAPES[c] == 0;
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isSurrogate(c)) {
+                clean = isPairedSurrogate(key, i);
+                bytes += 2;
+            } else {
+                bytes += 3;
+            }
+        }
+        if (clean && bytes <= MAX_NAME_BYTES) return key;
+
+        final String name = clean ? key : escape(key);
+        return utf8Length(name) <= MAX_NAME_BYTES ? name : hashed(key);
+    }
+
+    /**
+     * The legacy name kept illegal characters escaped as now, but '_' wasn't doubled and characters out of ASCII
+     * were dropped.
+     *
+     * @param key
+     * @return name which storages created before the reversible encoding gave to the 'key' or null if it is the
+     * same as the encoded name
+     */
+    public static String legacyName(String key) {
+        if (key == null) return null;
+
+        final StringBuilder name = new StringBuilder(key.length() + 16);
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(i);
+            if (c >= 0x80) continue;
+
+            final int illegal = c == ESCAPE ? -1 : ILLEGAL_CHARACTERS.indexOf(c);
+            if (illegal >= 0)
+                name.append(ESCAPE).append(ESCAPE_LETTERS.charAt(illegal));
+            else
+                name.append(c);
+        }
+        final String legacyName = name.toString();
+        return legacyName.equals(encode(key)) ? null : legacyName;
+    }
+
+    /**
+     * @param name file name returned by {@link #encode(String)}
+     * @return key of the file or null if the name is hashed
+     * @throws IllegalArgumentException if the name isn't an encoded key
+     */
+    public static String decode(String name) {
+        if (name == null) return null;
+
+        final int escape = name.indexOf(ESCAPE);
+        if (escape < 0) return name;
+        if (name.length() > 1 && name.charAt(0) == ESCAPE && name.charAt(1) == HASHED) return null;
+
+        final StringBuilder key = new StringBuilder(name.length());
+        key.append(name, 0, escape);
+        for (int i = escape; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (c != ESCAPE) {
+                key.append(c);
+                continue;
             }
-        };
+            if (++i == name.length())
+                throw new IllegalArgumentException("Invalid file name: " + name);
+
+            final char letter = name.charAt(i);
+            if (letter == DOT) {
+                key.append('.');
+            } else if (letter == CONTROL) {
+                key.append((char) parseHex(name, i + 1, 2));
+                i += 2;
+            } else if (letter == SURROGATE) {
+                key.append((char) parseHex(name, i + 1, 4));
+                i += 4;
+            } else if (ESCAPE_LETTERS.indexOf(letter) >= 0) {
+                key.append(ILLEGAL_CHARACTERS.charAt(ESCAPE_LETTERS.indexOf(letter)));
+            } else {
+                throw new IllegalArgumentException("Invalid file name: " + name);
+            }
+        }
+        return key.toString();
+    }
+
+    private static String escape(String key) {
+        final StringBuilder name = new StringBuilder(key.length() + 16);
+        if (isDotName(key)) {
+            for (int i = 0; i < key.length(); i++) {
+                name.append(ESCAPE).append(DOT);
+            }
+            return name.toString();
+        }
+
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(i);
+            if (c < 0x80 && ESCAPES[c] == CONTROL) {
+                name.append(ESCAPE).append(CONTROL);
+                appendHex(name, c, 2);
+            } else if (c < 0x80 && ESCAPES[c] != 0) {
+                name.append(ESCAPE).append(ESCAPES[c]);
+            } else if (Character.isSurrogate(c) && !isPairedSurrogate(key, i)) {
+                name.append(ESCAPE).append(SURROGATE);
+                appendHex(name, c, 4);
+            } else {
+                name.append(c);
+            }
+        }
+        return name.toString();
+    }
+
+    private static String hashed(String key) {
+        return String.valueOf(ESCAPE) + HASHED + Hashing.sha256().hashString(key, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isDotName(String key) {
+        return key.equals(".") || key.equals("..");
+    }
+
+    private static boolean isPairedSurrogate(String key, int i) {
+        final char c = key.charAt(i);
+        if (Character.isHighSurrogate(c))
+            return i + 1 < key.length() && Character.isLowSurrogate(key.charAt(i + 1));
+        return i > 0 && Character.isHighSurrogate(key.charAt(i - 1));
+    }
+
+    private static int utf8Length(String name) {
+        int bytes = 0;
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return bytes;
+    }
+
+    private static void appendHex(StringBuilder builder, char c, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            builder.append(HEX_DIGITS[(c >> shift) & 0xf]);
+        }
+    }
 
-        return replacingEscaper.escape(input);
+    private static int parseHex(String name, int start, int digits) {
+        if (start + digits > name.length())
+            throw new IllegalArgumentException("Invalid file name: " + name);
+        try {
+            return Integer.parseInt(name.substring(start, start + digits), 16);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid file name: " + name);
+        }
     }
 }
@@ -0,0 +1,44 @@
+package filestorage.impl;
+
+import filestorage.FileRangeChannel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream over the {@link FileRangeChannel}. Unlike {@link java.nio.channels.Channels#newInputStream}, it
+ * knows the number of available bytes.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class FileRangeInputStream extends InputStream {
+
+    private final FileRangeChannel range;
+    private final byte[] single = new byte[1];
+
+    public FileRangeInputStream(FileRangeChannel range) {
+        this.range = range;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        return range.read(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(range.remaining(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        range.close();
+    }
+}
@@ -0,0 +1,15 @@
+package filestorage.impl;
+
+/**
+ * Listener of files deleted by the {@link StorageSpaceInspector}, either directly, by the purge or after the end of
+ * their life time.
+ *
+ * @author Bogdan Kovalev.
+ */
+public interface FileRemovalListener {
+
+    /**
+     * @param name name of the deleted file
+     */
+    void fileRemoved(String name);
+}
@@ -0,0 +1,78 @@
+package filestorage.impl;
+
+/**
+ * Count-min sketch of 4-bit counters which estimates how often keys were accessed recently.
+ * When the number of recorded accesses reaches the sample size, all counters are halved, so the old popularity
+ * fades out.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb492b66f, 0x9ae16a3b, 0xc949d7c7};
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries expected number of keys in the cache
+     */
+    public FrequencySketch(int expectedEntries) {
+        final int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+        this.counters = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    public void increment(String key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            final int index = indexOf(hash, i);
+            if (counters[i][index] < MAX_COUNT) {
+                counters[i][index]++;
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    /**
+     * @param key
+     * @return estimated number of recent accesses, at most 15
+     */
+    public int frequency(String key) {
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, counters[i][indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+        additions >>>= 1;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
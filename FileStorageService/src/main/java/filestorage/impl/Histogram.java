@@ -0,0 +1,93 @@
+package filestorage.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free recorder of the distribution of non-negative values, for example, latencies in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets like in HdrHistogram: values below {@link #SUB_BUCKETS} have own
+ * buckets, larger values share a bucket with values of the same highest bit and the same next 5 bits, so
+ * a percentile is reported with at most 1/32 relative error. Recording is one increment of a bucket and of two
+ * adders, without locks and allocations.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) ;
+    }
+
+    /**
+     * Records the time passed since the 'startNanos'.
+     *
+     * @param startNanos value of {@link System#nanoTime()} at the start
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public HistogramSnapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        final long maxValue = max.get();
+        return new HistogramSnapshot(total, total == 0 ? 0 : (double) sum.sum() / count.sum(), maxValue,
+                percentile(counts, total, 0.5, maxValue), percentile(counts, total, 0.9, maxValue),
+                percentile(counts, total, 0.99, maxValue), percentile(counts, total, 0.999, maxValue));
+    }
+
+    private static long percentile(long[] counts, long total, double percentile, long maxValue) {
+        if (total == 0) return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), maxValue);
+        }
+        return maxValue;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+
+        final int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = highestBit - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,52 @@
+package filestorage.impl;
+
+/**
+ * Snapshot of the counters of checksum verification and of the {@link Scrubber}.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class IntegrityStats {
+
+    private final long scrubbedFiles;
+    private final long scrubbedBytes;
+    private final long scrubPasses;
+    private final long corruptions;
+
+    IntegrityStats(long scrubbedFiles, long scrubbedBytes, long scrubPasses, long corruptions) {
+        this.scrubbedFiles = scrubbedFiles;
+        this.scrubbedBytes = scrubbedBytes;
+        this.scrubPasses = scrubPasses;
+        this.corruptions = corruptions;
+    }
+
+    /**
+     * @return number of files verified by the scrubber
+     */
+    public long getScrubbedFiles() {
+        return scrubbedFiles;
+    }
+
+    public long getScrubbedBytes() {
+        return scrubbedBytes;
+    }
+
+    /**
+     * @return number of completed passes of the scrubber over the data folder
+     */
+    public long getScrubPasses() {
+        return scrubPasses;
+    }
+
+    /**
+     * @return number of times a corrupted content was found by reads or by the scrubber
+     */
+    public long getCorruptions() {
+        return corruptions;
+    }
+
+    @Override
+    public String toString() {
+        return "IntegrityStats{scrubbedFiles=" + scrubbedFiles + ", scrubbedBytes=" + scrubbedBytes +
+                ", scrubPasses=" + scrubPasses + ", corruptions=" + corruptions + '}';
+    }
+}
@@ -0,0 +1,224 @@
+package filestorage.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Coordinates saving, reading and deleting of the same key without a global lock. Keys are spread over stripes
+ * by the hash of {@link PathConstructor}, a stripe only guards the short changes of the lock states of its keys,
+ * so operations on different keys never wait for each other.
+ * <p>
+ * Readers of a key wait until the writer of the key finishes. A deletion waits for the writer too, but it doesn't
+ * wait for readers: it is deferred and done by the last reader when it unlocks the key. New readers of a key
+ * with a deferred deletion are refused.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class KeyLockManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KeyLockManager.class);
+
+    /**
+     * Deletes the file of the key.
+     */
+    static interface Deletion {
+        void delete() throws IOException;
+    }
+
+    private final Stripe[] stripes;
+    private final int mask;
+
+    /**
+     * @param stripes number of stripes, rounded up to a power of two
+     */
+    public KeyLockManager(int stripes) {
+        final int size = Integer.highestOneBit(Math.max(1, stripes - 1) << 1);
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param key
+     * @return false if the key is being deleted
+     */
+    public boolean lockRead(String key) {
+        final Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            KeyState state = stripe.awaitNoWriter(key);
+            if (state == null) {
+                state = new KeyState();
+                stripe.states.put(key, state);
+            } else if (state.deletion != null) {
+                return false;
+            }
+            state.readers++;
+            return true;
+        }
+    }
+
+    public void unlockRead(String key) {
+        final Stripe stripe = stripe(key);
+        final Deletion deletion;
+        synchronized (stripe) {
+            final KeyState state = stripe.states.get(key);
+            if (--state.readers > 0 || state.deletion == null) {
+                stripe.removeIfUnused(key, state);
+                return;
+            }
+
+            // the last reader does the deferred deletion
+            deletion = state.deletion;
+            state.writer = true;
+        }
+
+        try {
+            deletion.delete();
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Deferred deleting of '{}' failed", key);
+        } finally {
+            unlockWrite(key);
+        }
+    }
+
+    /**
+     * Blocks until other writers and deletions of the key finish.
+     *
+     * @param key
+     */
+    public void lockWrite(String key) {
+        final Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.awaitWritable(key).writer = true;
+        }
+    }
+
+    /**
+     * @param key
+     * @return false if the key is read or written now
+     */
+    public boolean tryLockWrite(String key) {
+        final Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            KeyState state = stripe.states.get(key);
+            if (state == null) {
+                state = new KeyState();
+                stripe.states.put(key, state);
+            } else if (state.writer || state.readers > 0 || state.deletion != null) {
+                return false;
+            }
+            state.writer = true;
+            return true;
+        }
+    }
+
+    public void unlockWrite(String key) {
+        final Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            final KeyState state = stripe.states.get(key);
+            state.writer = false;
+            state.deletion = null;
+            stripe.removeIfUnused(key, state);
+            stripe.notifyAll();
+        }
+    }
+
+    /**
+     * Deletes the key after its writer finishes. If the key is read, the deletion is deferred until the last
+     * reader unlocks it.
+     *
+     * @param key
+     * @param deletion
+     * @return true if the deletion is done, false if it is deferred
+     * @throws IOException if the deletion failed
+     */
+    public boolean delete(String key, Deletion deletion) throws IOException {
+        final Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            final KeyState state = stripe.awaitWritable(key);
+            if (state.readers > 0) {
+                state.deletion = deletion;
+                return false;
+            }
+            state.writer = true;
+        }
+
+        try {
+            deletion.delete();
+        } finally {
+            unlockWrite(key);
+        }
+        return true;
+    }
+
+    private Stripe stripe(String key) {
+        return stripes[PathConstructor.hash(key) & mask];
+    }
+
+    private static class Stripe {
+        private final Map<String, KeyState> states = new HashMap<>();
+
+        /**
+         * @return state of the key without a writer or null if the key isn't locked
+         */
+        private KeyState awaitNoWriter(String key) {
+            boolean interrupted = false;
+            KeyState state;
+            while ((state = states.get(key)) != null && state.writer) {
+                interrupted |= awaitUninterruptibly();
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            return state;
+        }
+
+        /**
+         * @return state of the key without a writer and a deferred deletion
+         */
+        private KeyState awaitWritable(String key) {
+            boolean interrupted = false;
+            KeyState state;
+            while ((state = states.get(key)) != null && (state.writer || state.deletion != null)) {
+                interrupted |= awaitUninterruptibly();
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (state == null) {
+                state = new KeyState();
+                states.put(key, state);
+            }
+            return state;
+        }
+
+        private void removeIfUnused(String key, KeyState state) {
+            if (state.readers == 0 && !state.writer && state.deletion == null)
+                states.remove(key);
+        }
+
+        /**
+         * @return true if the thread was interrupted
+         */
+        private boolean awaitUninterruptibly() {
+            try {
+                wait();
+                return false;
+            } catch (InterruptedException e) {
+                return true;
+            }
+        }
+    }
+
+    private static class KeyState {
+        private int readers;
+        private boolean writer;
+        private Deletion deletion;
+    }
+}
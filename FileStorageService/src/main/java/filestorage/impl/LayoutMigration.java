@@ -0,0 +1,222 @@
+package filestorage.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Moves files of previous layouts of the data folder into the layout of the {@link ShardDirectories}.
+ * <p>
+ * The layout of the data folder is recorded in the system folder. If the storage is started with another layout,
+ * the previous one is recorded as not migrated, so files are found at their previous places until they are
+ * moved, even after a restart. The migration works in the background and moves a file only while its key isn't
+ * locked, busy files are moved by one of the next passes.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class LayoutMigration implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LayoutMigration.class);
+
+    private static final String LAYOUT_PROPERTY = "layout";
+    private static final String PREVIOUS_LAYOUTS_PROPERTY = "previous";
+
+    /**
+     * Layout of the storages created before the layout was recorded.
+     */
+    private static final String LEGACY_LAYOUT = new PathConstructor().getLayout();
+
+    /**
+     * Time in milliseconds between passes over files which were busy.
+     */
+    private static final int RETRY_DELAY = 500;
+
+    private final Path layoutFilePath;
+    private final ShardDirectories shardDirectories;
+    private final KeyLockManager keyLocks;
+
+    private volatile boolean finished;
+
+    private LayoutMigration(Path layoutFilePath, ShardDirectories shardDirectories, KeyLockManager keyLocks) {
+        this.layoutFilePath = layoutFilePath;
+        this.shardDirectories = shardDirectories;
+        this.keyLocks = keyLocks;
+    }
+
+    /**
+     * Records the layout of the 'shardDirectories' and tells them about previous layouts of which files aren't
+     * moved yet.
+     *
+     * @param layoutFilePath   file of the recorded layout
+     * @param shardDirectories current layout of the data folder
+     * @param keyLocks
+     * @return migration to start or null if files of all layouts are already in place
+     * @throws IOException if the recorded layout can't be read or written
+     */
+    public static LayoutMigration prepare(Path layoutFilePath, ShardDirectories shardDirectories, KeyLockManager keyLocks)
+            throws IOException {
+        final PathConstructor current = shardDirectories.getPathConstructor();
+        final List<String> layouts = new ArrayList<>();
+
+        if (Files.exists(layoutFilePath)) {
+            final Properties properties = new Properties();
+            try (final InputStream inputStream = new FileInputStream(String.valueOf(layoutFilePath))) {
+                properties.load(inputStream);
+            }
+            layouts.add(properties.getProperty(LAYOUT_PROPERTY, LEGACY_LAYOUT));
+            for (String layout : properties.getProperty(PREVIOUS_LAYOUTS_PROPERTY, "").split(",")) {
+                if (!layout.isEmpty() && !layouts.contains(layout))
+                    layouts.add(layout);
+            }
+        } else if (hasFiles(shardDirectories.getStartFolder())) {
+            layouts.add(LEGACY_LAYOUT);
+        }
+        layouts.remove(current.getLayout());
+
+        final List<PathConstructor> previousLayouts = new ArrayList<>();
+        for (String layout : layouts) {
+            try {
+                previousLayouts.add(PathConstructor.forLayout(layout, current.getShardFunction()));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        // the previous layouts are recorded before any file is placed by the new one
+        storeLayout(layoutFilePath, current.getLayout(), layouts);
+        shardDirectories.setPreviousLayouts(previousLayouts);
+
+        if (previousLayouts.isEmpty()) return null;
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Files of the layouts {} will be moved into the layout {}", layouts, current.getLayout());
+        return new LayoutMigration(layoutFilePath, shardDirectories, keyLocks);
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (migrate() > 0) {
+                Thread.sleep(RETRY_DELAY);
+            }
+
+            storeLayout(layoutFilePath, shardDirectories.getPathConstructor().getLayout(), new ArrayList<String>());
+            shardDirectories.setPreviousLayouts(new ArrayList<PathConstructor>());
+            finished = true;
+
+            if (LOG.isInfoEnabled())
+                LOG.info("Layout migration is finished");
+        } catch (InterruptedException e) {
+            if (LOG.isInfoEnabled())
+                LOG.info("Layout migration is stopped");
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Layout migration is failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Walks the data folder once, moves misplaced files and deletes folders which became empty.
+     *
+     * @return number of files which were busy and are left in place
+     */
+    private int migrate() throws IOException, InterruptedException {
+        final Path startFolder = shardDirectories.getStartFolder();
+        if (!Files.isDirectory(startFolder)) return 0;
+
+        final int[] busy = {0};
+        Files.walkFileTree(startFolder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (Thread.currentThread().isInterrupted())
+                    return FileVisitResult.TERMINATE;
+
+                final String name = String.valueOf(file.getFileName());
+                if (attributes.isRegularFile() && !file.getParent().equals(shardDirectories.directory(name))
+                        && !move(file, name))
+                    busy[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) {
+                if (!directory.equals(startFolder)) {
+                    try {
+                        Files.delete(directory);
+                    } catch (IOException ignored) {
+                        // the folder isn't empty
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedException();
+        return busy[0];
+    }
+
+    /**
+     * @return false if the file is busy
+     */
+    private boolean move(Path file, String name) throws IOException {
+        if (!keyLocks.tryLockWrite(name)) return false;
+        try {
+            final Path target = shardDirectories.resolve(name);
+            shardDirectories.ensureCreated(name);
+            try {
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                if (!Files.exists(file)) return true;
+                shardDirectories.recreate(name);
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (FileAlreadyExistsException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("File '{}' exists in two layouts, the file '{}' is left in place", name, file);
+        } finally {
+            keyLocks.unlockWrite(name);
+        }
+        return true;
+    }
+
+    private static boolean hasFiles(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) return false;
+        try (final DirectoryStream<Path> children = Files.newDirectoryStream(folder)) {
+            return children.iterator().hasNext();
+        }
+    }
+
+    private static void storeLayout(Path layoutFilePath, String layout, List<String> previousLayouts) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty(LAYOUT_PROPERTY, layout);
+        final StringBuilder previous = new StringBuilder();
+        for (String previousLayout : previousLayouts) {
+            if (previous.length() > 0) previous.append(',');
+            previous.append(previousLayout);
+        }
+        properties.setProperty(PREVIOUS_LAYOUTS_PROPERTY, String.valueOf(previous));
+
+        Files.createDirectories(layoutFilePath.getParent());
+        final Path tempPath = layoutFilePath.resolveSibling(layoutFilePath.getFileName() + ".tmp");
+        try (final OutputStream outputStream = new FileOutputStream(String.valueOf(tempPath))) {
+            properties.store(outputStream, "Layout of the data folder");
+        }
+        Files.move(tempPath, layoutFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
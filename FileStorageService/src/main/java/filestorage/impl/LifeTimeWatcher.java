@@ -9,139 +9,182 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
+import java.util.Collection;
 import java.util.Properties;
 
-import static filestorage.impl.DefaultFileStorageService.DATA_FOLDER_NAME;
 import static filestorage.impl.DefaultFileStorageService.SYSTEM_FOLDER_NAME;
 
 /**
  * This class automatically deletes expired files.
+ * Files are kept in the {@link ExpiryQueue} ordered by their deadlines, so the watcher sleeps until the nearest deadline
+ * and touches only files that are actually expired. The deadline of a file is forgotten when the file is deleted or
+ * replaced, so it doesn't apply to the next content of the key.
  *
  * @author Bogdan Kovalev.
  */
-public class LifeTimeWatcher implements Runnable {
+public class LifeTimeWatcher implements Runnable, FileRemovalListener {
 
     private static final Logger LOG = LoggerFactory.getLogger(LifeTimeWatcher.class);
 
+    /**
+     * Maximum time in milliseconds the watcher sleeps between checks of the nearest deadline.
+     */
     public static final int SLEEP_TIME = 500;
 
     private final String STORAGE_ROOT;
-    private final Path systemFilePath;
 
-    private final Properties systemData = new Properties();
+    private final ExpiryQueue expiryQueue = new ExpiryQueue();
+    private final ExpiryJournal expiryJournal;
 
     private final StorageSpaceInspector storageSpaceInspector;
-    private final PathConstructor pathConstructor;
+    private final ShardDirectories shardDirectories;
+    private final ServiceMetrics metrics;
 
     private boolean run = true;
 
-    public LifeTimeWatcher(String STORAGE_ROOT, StorageSpaceInspector inspector, PathConstructor pathConstructor) throws IOException {
+    public LifeTimeWatcher(String STORAGE_ROOT, StorageSpaceInspector inspector, ShardDirectories shardDirectories,
+                           ServiceMetrics metrics) throws IOException {
         this.STORAGE_ROOT = STORAGE_ROOT;
         this.storageSpaceInspector = inspector;
-        this.pathConstructor = pathConstructor;
+        this.shardDirectories = shardDirectories;
+        this.metrics = metrics;
+
+        final Path systemFolderPath = Paths.get(STORAGE_ROOT, SYSTEM_FOLDER_NAME);
+        Files.createDirectories(systemFolderPath);
 
-        systemFilePath = Paths.get(STORAGE_ROOT, SYSTEM_FOLDER_NAME, DefaultFileStorageService.SYSTEM_FILE_NAME);
+        expiryJournal = new ExpiryJournal(systemFolderPath, inspector);
+        final boolean journalIsNew = expiryJournal.isEmpty();
+        expiryJournal.replay(expiryQueue);
 
-        if (Files.exists(systemFilePath))
-            systemData.load(new FileInputStream(String.valueOf(systemFilePath)));
-        else
-            Files.createDirectories(Paths.get(STORAGE_ROOT, SYSTEM_FOLDER_NAME));
+        final Path legacySystemFilePath = systemFolderPath.resolve(DefaultFileStorageService.SYSTEM_FILE_NAME);
+        if (journalIsNew && Files.exists(legacySystemFilePath))
+            importLegacySystemData(legacySystemFilePath);
     }
 
     /**
-     * This method check files listed in the system.data file and delete all expired files from the storage.
+     * This method deletes all files which deadlines are already passed.
+     *
+     * @return number of deleted files
      */
-    public void deleteExpiredFiles() {
-
-        for (String key : systemData.stringPropertyNames()) {
-            Path path = Paths.get(STORAGE_ROOT, pathConstructor.calculateDestinationPath(key, DATA_FOLDER_NAME), key);
+    public int deleteExpiredFiles() {
+        final long now = System.currentTimeMillis();
+        int deleted = 0;
+        String key;
+        while ((key = expiryQueue.pollExpired(now)) != null) {
             try {
-                final FileTime creationTime = (FileTime) Files.getAttribute(path, "basic:creationTime");
-
-                if (System.currentTimeMillis() - creationTime.toMillis() > Long.valueOf(systemData.getProperty(key))) {
-                    Files.delete(path);
-                    systemData.remove(key);
+                if (storageSpaceInspector.deleteFile(key)) {
+                    deleted++;
                     if (LOG.isInfoEnabled())
                         LOG.info("Expired file '{}' successfully deleted.", key);
                 }
-            } catch (NoSuchFileException e) {
-                systemData.remove(key);
             } catch (IOException e) {
                 if (LOG.isWarnEnabled())
                     LOG.warn("Expired file '{}' was not deleted because of IOException.", key);
+                // the journal still has the deadline of this file, so only the in-memory queue is rescheduled
+                expiryQueue.put(key, now + SLEEP_TIME);
+                continue;
             }
+            expiryJournal.appendRemove(key);
         }
-
-        storeSystemData();
+        return deleted;
     }
 
     /**
-     * This method adds file with this 'key' and 'lifeTime' to the system.data file.
+     * This method registers file with this 'key' to be deleted after 'lifeTime' milliseconds.
      *
      * @param key
      * @param liveTime
      */
     public void addFile(String key, long liveTime) {
-        systemData.setProperty(key, String.valueOf(liveTime));
-        storeSystemData();
+        final long deadline = calculateDeadline(System.currentTimeMillis(), liveTime);
+        expiryQueue.put(key, deadline);
+        expiryJournal.appendAdd(key, deadline);
     }
 
-    private void storeSystemData() {
-        if (!haveEnoughFreeSpaceToStore()) {
-            if (LOG.isWarnEnabled())
-                LOG.warn("Haven't enough free space to store system data");
-            return;
+    /**
+     * Adds the files with the same life time by one write to the journal.
+     *
+     * @param keys
+     * @param liveTime
+     */
+    public void addFiles(Collection<String> keys, long liveTime) {
+        if (keys.isEmpty()) return;
+
+        final long deadline = calculateDeadline(System.currentTimeMillis(), liveTime);
+        for (String key : keys) {
+            expiryQueue.put(key, deadline);
         }
+        expiryJournal.appendAdds(keys, deadline);
+    }
+
+    @Override
+    public void fileRemoved(String name) {
+        if (expiryQueue.remove(name))
+            expiryJournal.appendRemove(name);
+    }
 
-        long sizeBefore = new File(String.valueOf(systemFilePath)).length();
+    /**
+     * @param key
+     * @return time in milliseconds when the file with this 'key' will be deleted or -1 if it has no life time
+     */
+    public long getDeadline(String key) {
+        return expiryQueue.deadlineOf(key);
+    }
+
+    private static long calculateDeadline(long start, long lifeTime) {
+        return lifeTime > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + lifeTime;
+    }
+
+    /**
+     * Old storages keep life-times relatively to the file creation time, so the deadlines are calculated once here.
+     */
+    private void importLegacySystemData(Path legacySystemFilePath) throws IOException {
+        final Properties systemData = new Properties();
+        try (final InputStream inputStream = new FileInputStream(String.valueOf(legacySystemFilePath))) {
+            systemData.load(inputStream);
+        }
 
-        try (final FileOutputStream fileOutputStream = new FileOutputStream(String.valueOf(systemFilePath))) {
-            systemData.store(fileOutputStream, null);
-        } catch (IOException e) {
-            if (LOG.isWarnEnabled())
-                LOG.warn("System data storing failed");
+        for (String key : systemData.stringPropertyNames()) {
+            // files of such storages are kept by their legacy names
+            final String legacyName = FileNameValidator.legacyName(key);
+            final String name = legacyName != null ? legacyName : FileNameValidator.encode(key);
+            final Path path = shardDirectories.locate(name);
+            try {
+                final FileTime creationTime = (FileTime) Files.getAttribute(path, "basic:creationTime");
+                expiryQueue.put(name, calculateDeadline(creationTime.toMillis(), Long.valueOf(systemData.getProperty(key))));
+            } catch (NoSuchFileException | NumberFormatException ignored) {
+            }
         }
 
-        long currentSize = new File(String.valueOf(systemFilePath)).length();
+        expiryJournal.compact(expiryQueue);
 
-        storageSpaceInspector.decrementUsedSpace(sizeBefore);
-        storageSpaceInspector.incrementUsedSpace(currentSize);
+        final long legacySize = Files.size(legacySystemFilePath);
+        Files.delete(legacySystemFilePath);
+        storageSpaceInspector.decrementUsedSpace(legacySize);
     }
 
     @Override
     public void run() {
         while (run) {
             try {
-                deleteExpiredFiles();
-                Thread.sleep(SLEEP_TIME);
+                final long start = System.nanoTime();
+                metrics.recordWatcherTick(start, deleteExpiredFiles());
+                if (expiryJournal.needsCompaction(expiryQueue.size()))
+                    expiryJournal.compact(expiryQueue);
+                expiryQueue.awaitNextDeadline(SLEEP_TIME);
             } catch (InterruptedException e) {
-                synchronized (this) {
-                    run = false;
-                    storeSystemData();
-                    notify();
-                }
+                close();
             }
         }
     }
 
-    private boolean haveEnoughFreeSpaceToStore() {
-        long currentDataFileSize = new File(String.valueOf(systemFilePath)).length();
-        return calculateDataOutSize() <=
-                // free storage space with taking account to space that will freed after current data file deleting
-                storageSpaceInspector.getFreeSpace() + currentDataFileSize;
-    }
-
     /**
-     * @return size of systemData object in bytes.
+     * This method stops the watcher and closes its journal. The thread of the watcher calls it when it is
+     * interrupted, a watcher which works without its thread must be closed directly.
      */
-    private long calculateDataOutSize() {
-        long outSize = 0;
-        try (final ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            systemData.store(outputStream, null);
-            outSize = outputStream.size();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return outSize;
+    public synchronized void close() {
+        run = false;
+        expiryJournal.close();
+        notify();
     }
 }
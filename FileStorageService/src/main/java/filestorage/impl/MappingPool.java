@@ -0,0 +1,218 @@
+package filestorage.impl;
+
+import com.google.common.collect.MapMaker;
+import filestorage.FileRangeChannel;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded pool of read-only memory mappings of stored files. A mapping is created on the first acquisition of
+ * the file and shared by later ones, so repeated reads of a hot file need neither system calls nor copying.
+ * <p>
+ * Every acquisition returns its own view of the mapping, which is the handle to release it, so a late release
+ * of a dropped mapping never affects the mapping of a new file with the same key. Handles are weakly referenced,
+ * and a handle which is collected without the release is released by the pool. Acquired mappings are never
+ * evicted. When the pool exceeds its limits, the least recently used released mappings are dropped. The JDK
+ * can't unmap a buffer explicitly, so the memory of a dropped mapping is returned when the buffer is collected.
+ * <p>
+ * A file which is deleted while it is mapped isn't pooled, so a replaced file is never read from the old mapping.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class MappingPool implements FileRemovalListener {
+
+    /**
+     * Opens the region of the file to be mapped.
+     */
+    static interface RegionOpener {
+        FileRangeChannel open() throws IOException;
+    }
+
+    private final int maxMappings;
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Weak keys of the map are compared by identity.
+     */
+    private final Map<ByteBuffer, Handle> handles = new MapMaker().weakKeys().makeMap();
+    private final ReferenceQueue<ByteBuffer> collectedHandles = new ReferenceQueue<>();
+    /**
+     * Mappings in progress, the file which is deleted meanwhile loses its load.
+     */
+    private final Map<String, Load> loading = new HashMap<>();
+    private long mappedBytes;
+
+    /**
+     * @param maxMappings maximum number of pooled mappings
+     * @param maxBytes    maximum total size of pooled mappings
+     */
+    public MappingPool(int maxMappings, long maxBytes) {
+        this.maxMappings = maxMappings;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key
+     * @param opener opens the file content on the first acquisition
+     * @return read-only view of the mapped file content which is released by {@link #release}
+     * @throws IOException if the file can't be mapped
+     */
+    public ByteBuffer acquire(String key, RegionOpener opener) throws IOException {
+        Load load;
+        synchronized (this) {
+            releaseCollectedHandles();
+            final Mapping mapping = mappings.get(key);
+            if (mapping != null)
+                return mapping.newHandle();
+
+            load = loading.get(key);
+            if (load == null) {
+                load = new Load();
+                loading.put(key, load);
+            }
+            load.mappers++;
+        }
+
+        final ByteBuffer buffer;
+        try (final FileRangeChannel region = opener.open()) {
+            buffer = region.map();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                finishLoad(key, load);
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            // the file could be deleted or replaced while it was mapped
+            if (!finishLoad(key, load))
+                return buffer.asReadOnlyBuffer();
+
+            final Mapping mapping = mappings.get(key);
+            if (mapping != null) {
+                // the file was mapped concurrently
+                return mapping.newHandle();
+            }
+
+            if (buffer.capacity() <= maxBytes) {
+                final Mapping created = new Mapping(buffer);
+                mappings.put(key, created);
+                mappedBytes += buffer.capacity();
+                final ByteBuffer handle = created.newHandle();
+                evict();
+                return handle;
+            }
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Releases the view returned by {@link #acquire}, so its mapping may be evicted. Unknown views are ignored.
+     *
+     * @param handle
+     */
+    public synchronized void release(ByteBuffer handle) {
+        final Handle released = handles.remove(handle);
+        if (released != null) {
+            released.clear();
+            released.mapping.references--;
+        }
+        releaseCollectedHandles();
+        evict();
+    }
+
+    /**
+     * Drops the mapping of the deleted file, so the next acquisition maps the new file with the same key.
+     * Buffers which are already acquired stay readable.
+     */
+    @Override
+    public synchronized void fileRemoved(String name) {
+        loading.remove(name);
+        final Mapping mapping = mappings.remove(name);
+        if (mapping != null)
+            mappedBytes -= mapping.buffer.capacity();
+    }
+
+    public synchronized void clear() {
+        mappings.clear();
+        handles.clear();
+        loading.clear();
+        mappedBytes = 0;
+    }
+
+    public synchronized int size() {
+        return mappings.size();
+    }
+
+    /**
+     * @return true if the file wasn't deleted during the load
+     */
+    private boolean finishLoad(String key, Load load) {
+        final boolean current = loading.get(key) == load;
+        if (--load.mappers == 0 && current)
+            loading.remove(key);
+        return current;
+    }
+
+    /**
+     * Releases the mappings of the handles which are collected without the release.
+     */
+    private void releaseCollectedHandles() {
+        Handle collected;
+        while ((collected = (Handle) collectedHandles.poll()) != null) {
+            collected.mapping.references--;
+        }
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, Mapping>> iterator = mappings.entrySet().iterator();
+        while ((mappings.size() > maxMappings || mappedBytes > maxBytes) && iterator.hasNext()) {
+            final Mapping mapping = iterator.next().getValue();
+            if (mapping.references == 0) {
+                iterator.remove();
+                mappedBytes -= mapping.buffer.capacity();
+            }
+        }
+    }
+
+    private class Mapping {
+        private final ByteBuffer buffer;
+        private int references;
+
+        private Mapping(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private ByteBuffer newHandle() {
+            final ByteBuffer handle = buffer.asReadOnlyBuffer();
+            handles.put(handle, new Handle(handle, this));
+            references++;
+            return handle;
+        }
+    }
+
+    /**
+     * Reference to the acquired view which is queued when the view is collected. It is cleared by the release, so a
+     * released view is never queued.
+     */
+    private class Handle extends WeakReference<ByteBuffer> {
+        private final Mapping mapping;
+
+        private Handle(ByteBuffer view, Mapping mapping) {
+            super(view, collectedHandles);
+            this.mapping = mapping;
+        }
+    }
+
+    private static class Load {
+        private int mappers;
+    }
+}
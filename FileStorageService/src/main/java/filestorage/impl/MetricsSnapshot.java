@@ -0,0 +1,114 @@
+package filestorage.impl;
+
+/**
+ * Snapshot of the {@link ServiceMetrics}.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class MetricsSnapshot implements ServiceMetricsMXBean {
+
+    private final HistogramSnapshot saveLatency;
+    private final HistogramSnapshot replaceLatency;
+    private final HistogramSnapshot readLatency;
+    private final HistogramSnapshot mapLatency;
+    private final HistogramSnapshot deleteLatency;
+    private final HistogramSnapshot purgeDuration;
+    private final HistogramSnapshot watcherTickDuration;
+    private final HistogramSnapshot expiredFilesPerTick;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final long purgedBytes;
+    private final long notEnoughFreeSpaceErrors;
+    private final long fileAlreadyExistsErrors;
+
+    MetricsSnapshot(ServiceMetricsMXBean metrics) {
+        this.saveLatency = metrics.getSaveLatency();
+        this.replaceLatency = metrics.getReplaceLatency();
+        this.readLatency = metrics.getReadLatency();
+        this.mapLatency = metrics.getMapLatency();
+        this.deleteLatency = metrics.getDeleteLatency();
+        this.purgeDuration = metrics.getPurgeDuration();
+        this.watcherTickDuration = metrics.getWatcherTickDuration();
+        this.expiredFilesPerTick = metrics.getExpiredFilesPerTick();
+        this.bytesIn = metrics.getBytesIn();
+        this.bytesOut = metrics.getBytesOut();
+        this.purgedBytes = metrics.getPurgedBytes();
+        this.notEnoughFreeSpaceErrors = metrics.getNotEnoughFreeSpaceErrors();
+        this.fileAlreadyExistsErrors = metrics.getFileAlreadyExistsErrors();
+    }
+
+    @Override
+    public HistogramSnapshot getSaveLatency() {
+        return saveLatency;
+    }
+
+    @Override
+    public HistogramSnapshot getReplaceLatency() {
+        return replaceLatency;
+    }
+
+    @Override
+    public HistogramSnapshot getReadLatency() {
+        return readLatency;
+    }
+
+    @Override
+    public HistogramSnapshot getMapLatency() {
+        return mapLatency;
+    }
+
+    @Override
+    public HistogramSnapshot getDeleteLatency() {
+        return deleteLatency;
+    }
+
+    @Override
+    public HistogramSnapshot getPurgeDuration() {
+        return purgeDuration;
+    }
+
+    @Override
+    public HistogramSnapshot getWatcherTickDuration() {
+        return watcherTickDuration;
+    }
+
+    @Override
+    public HistogramSnapshot getExpiredFilesPerTick() {
+        return expiredFilesPerTick;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    @Override
+    public long getPurgedBytes() {
+        return purgedBytes;
+    }
+
+    @Override
+    public long getNotEnoughFreeSpaceErrors() {
+        return notEnoughFreeSpaceErrors;
+    }
+
+    @Override
+    public long getFileAlreadyExistsErrors() {
+        return fileAlreadyExistsErrors;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{save=" + saveLatency + ", replace=" + replaceLatency + ", read=" + readLatency +
+                ", map=" + mapLatency + ", delete=" + deleteLatency + ", purge=" + purgeDuration +
+                ", watcherTick=" + watcherTickDuration + ", expiredPerTick=" + expiredFilesPerTick +
+                ", bytesIn=" + bytesIn + ", bytesOut=" + bytesOut + ", purgedBytes=" + purgedBytes +
+                ", notEnoughFreeSpaceErrors=" + notEnoughFreeSpaceErrors +
+                ", fileAlreadyExistsErrors=" + fileAlreadyExistsErrors + '}';
+    }
+}
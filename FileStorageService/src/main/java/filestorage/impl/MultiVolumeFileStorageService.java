@@ -0,0 +1,732 @@
+package filestorage.impl;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import filestorage.AsyncFileStorageService;
+import filestorage.BatchResult;
+import filestorage.FileRangeChannel;
+import filestorage.FileStorageService;
+import filestorage.impl.exception.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Implementation of FileStorageService which stripes files across several storage roots, for example, one root
+ * per disk. Every volume is a {@link DefaultFileStorageService} with its own space inspector and its own pool of
+ * I/O threads, so operations with files of different volumes proceed in parallel.
+ * <p>
+ * A file is placed by the weighted rendezvous hashing of its key: every volume scores the key by
+ * -capacity / ln(hash), where the hash of the key and the volume id is uniform in (0, 1), and the file goes to the
+ * volume with the highest score. So the placement needs no index and each volume gets the share of files
+ * proportional to its capacity. The id is a random UUID kept in the system folder of the volume, so the placement
+ * doesn't depend on the path the volume is given by.
+ * <p>
+ * Every volume records the set of volumes it was started with. Volumes may be added and capacities may be changed,
+ * which changes the placement of some keys, but files aren't moved: from then on a file which isn't on its placed
+ * volume is looked up on the other volumes. A volume of the recorded set can't be left out, the service doesn't
+ * start without it.
+ *
+ * @author Bogdan Kovalev
+ */
+public class MultiVolumeFileStorageService implements FileStorageService, AsyncFileStorageService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultiVolumeFileStorageService.class);
+
+    static final String VOLUME_ID_FILE_NAME = "volume.id";
+    static final String VOLUME_SET_FILE_NAME = "volumes.properties";
+
+    private static final String VOLUMES_PROPERTY = "volumes";
+    private static final String MISPLACED_FILES_PROPERTY = "misplacedFiles";
+
+    /**
+     * Storage root with the disk space which the service can use in it.
+     */
+    public static class Volume {
+        private final String root;
+        private final long capacity;
+
+        /**
+         * @param root     String path to storage root folder
+         * @param capacity Maximum disk space that service can use in this root
+         */
+        public Volume(String root, long capacity) {
+            if (capacity <= 0)
+                throw new IllegalArgumentException("Invalid capacity of the volume '" + root + "': " + capacity);
+            this.root = root;
+            this.capacity = capacity;
+        }
+
+        public String getRoot() {
+            return root;
+        }
+
+        public long getCapacity() {
+            return capacity;
+        }
+
+        @Override
+        public String toString() {
+            return "Volume{root='" + root + "', capacity=" + capacity + '}';
+        }
+    }
+
+    private final List<Volume> volumes;
+    private final List<DefaultFileStorageService> services = new ArrayList<>();
+    private final List<String> volumeIds = new ArrayList<>();
+    private final List<HashFunction> placementHashes = new ArrayList<>();
+    private final int ioThreadsPerVolume;
+    private final int queueCapacity;
+    private final long totalCapacity;
+
+    private List<DefaultAsyncFileStorageService> ioPools;
+    private boolean serviceIsStarted = false;
+
+    /**
+     * True if files may be stored on other volumes than their current placement.
+     */
+    private boolean misplacedFiles;
+
+    /**
+     * @param volumes            storage roots with their capacities
+     * @param ioThreadsPerVolume number of I/O threads of each volume
+     * @param queueCapacity      maximum number of waiting operations of each volume
+     * @throws UnableToCreateStorageException
+     */
+    public MultiVolumeFileStorageService(List<Volume> volumes, int ioThreadsPerVolume, int queueCapacity)
+            throws UnableToCreateStorageException {
+        if (volumes.isEmpty())
+            throw new IllegalArgumentException("No volumes");
+
+        final Set<String> roots = new HashSet<>();
+        long totalCapacity = 0;
+        for (Volume volume : volumes) {
+            if (!roots.add(volume.getRoot()))
+                throw new IllegalArgumentException("Volume '" + volume.getRoot() + "' is given twice");
+            totalCapacity += volume.getCapacity();
+        }
+
+        this.volumes = Collections.unmodifiableList(new ArrayList<>(volumes));
+        this.ioThreadsPerVolume = ioThreadsPerVolume;
+        this.queueCapacity = queueCapacity;
+        this.totalCapacity = totalCapacity;
+
+        if (LOG.isInfoEnabled())
+            LOG.info("New multi-volume storage. Volumes: {}", volumes);
+
+        for (Volume volume : this.volumes) {
+            services.add(new DefaultFileStorageService(volume.getCapacity(), volume.getRoot()));
+            final String id = readVolumeId(volume);
+            if (volumeIds.contains(id))
+                throw new IllegalArgumentException("Volume '" + volume.getRoot() + "' is given twice");
+            volumeIds.add(id);
+            placementHashes.add(Hashing.murmur3_128(Hashing.murmur3_32().hashUnencodedChars(id).asInt()));
+        }
+    }
+
+    /**
+     * @return id of the volume, it is created with the volume
+     */
+    private static String readVolumeId(Volume volume) throws UnableToCreateStorageException {
+        final Path idPath = Paths.get(volume.getRoot(), DefaultFileStorageService.SYSTEM_FOLDER_NAME, VOLUME_ID_FILE_NAME);
+        try {
+            if (!Files.exists(idPath)) {
+                Files.createDirectories(idPath.getParent());
+                final Path tempPath = idPath.resolveSibling(VOLUME_ID_FILE_NAME + ".tmp");
+                Files.write(tempPath, UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+                Files.move(tempPath, idPath, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return new String(Files.readAllBytes(idPath), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Id of the volume '{}' can't be read: {}", volume.getRoot(), e.getMessage());
+            throw new UnableToCreateStorageException();
+        }
+    }
+
+    /**
+     * This method starts the services of all volumes and their I/O threads.
+     *
+     * @throws ServiceStartError if any volume can't be started
+     */
+    public void startService() throws ServiceStartError {
+        if (serviceIsStarted) {
+            if (LOG.isInfoEnabled())
+                LOG.info("Service is already started");
+            return;
+        }
+
+        final boolean misplaced;
+        try {
+            misplaced = checkVolumeSet();
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Service start is failed. Set of volumes can't be read: {}", e.getMessage());
+            throw new ServiceStartError();
+        }
+
+        final List<DefaultAsyncFileStorageService> pools = new ArrayList<>(services.size());
+        try {
+            for (DefaultFileStorageService service : services) {
+                service.startService();
+                pools.add(new DefaultAsyncFileStorageService(service, ioThreadsPerVolume, queueCapacity));
+            }
+            // the set is recorded only when all volumes are started
+            try {
+                recordVolumeSet(misplaced);
+            } catch (IOException e) {
+                if (LOG.isErrorEnabled())
+                    LOG.error("Service start is failed. Set of volumes can't be recorded: {}", e.getMessage());
+                throw new ServiceStartError();
+            }
+        } catch (ServiceStartError e) {
+            for (DefaultAsyncFileStorageService pool : pools) {
+                pool.close();
+            }
+            for (DefaultFileStorageService service : services) {
+                service.stopService();
+            }
+            throw e;
+        }
+
+        misplacedFiles = misplaced;
+        ioPools = pools;
+        serviceIsStarted = true;
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Service is started with {} volumes.", volumes.size());
+    }
+
+    /**
+     * Checks the set of volumes recorded by every volume. Volumes which already have files but no recorded set were
+     * placed by an older placement.
+     *
+     * @return true if files may be stored on other volumes than their current placement
+     * @throws ServiceStartError if a volume of a recorded set is missing
+     */
+    private boolean checkVolumeSet() throws IOException, ServiceStartError {
+        final String volumeSet = describeVolumeSet();
+        boolean misplaced = false;
+        for (Volume volume : volumes) {
+            final Path setPath = volumeSetPath(volume);
+            if (!Files.exists(setPath)) {
+                misplaced |= DefaultFileStorageService.hasStoredFiles(volume.getRoot());
+                continue;
+            }
+
+            final Properties recorded = new Properties();
+            try (final InputStream inputStream = Files.newInputStream(setPath)) {
+                recorded.load(inputStream);
+            }
+            final String recordedSet = recorded.getProperty(VOLUMES_PROPERTY, "");
+            for (String entry : recordedSet.split(",")) {
+                final String id = entry.substring(0, Math.max(0, entry.indexOf(':')));
+                if (!id.isEmpty() && !volumeIds.contains(id)) {
+                    if (LOG.isErrorEnabled())
+                        LOG.error("Service start is failed. Volume '{}' recorded by '{}' is missing", id, volume.getRoot());
+                    throw new ServiceStartError();
+                }
+            }
+            misplaced |= !recordedSet.equals(volumeSet) || Boolean.parseBoolean(recorded.getProperty(MISPLACED_FILES_PROPERTY));
+        }
+
+        if (misplaced && LOG.isWarnEnabled())
+            LOG.warn("Set of volumes is changed, files which aren't on their volumes are looked up on the other volumes");
+        return misplaced;
+    }
+
+    /**
+     * Records the current set of volumes by every volume. The set is written into a temporary file which replaces
+     * the previous one, so a crash never leaves a partial set.
+     *
+     * @param misplaced true if files may be stored on other volumes than their current placement
+     */
+    private void recordVolumeSet(boolean misplaced) throws IOException {
+        final Properties current = new Properties();
+        current.setProperty(VOLUMES_PROPERTY, describeVolumeSet());
+        current.setProperty(MISPLACED_FILES_PROPERTY, String.valueOf(misplaced));
+        for (Volume volume : volumes) {
+            final Path setPath = volumeSetPath(volume);
+            final Path tempPath = setPath.resolveSibling(VOLUME_SET_FILE_NAME + ".tmp");
+            try (final OutputStream outputStream = Files.newOutputStream(tempPath)) {
+                current.store(outputStream, null);
+            }
+            Files.move(tempPath, setPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * @return ids and capacities of the volumes ordered by ids, the placement doesn't depend on the order of volumes
+     */
+    private String describeVolumeSet() {
+        final Map<String, Long> capacities = new TreeMap<>();
+        for (int i = 0; i < volumes.size(); i++) {
+            capacities.put(volumeIds.get(i), volumes.get(i).getCapacity());
+        }
+        final StringBuilder description = new StringBuilder();
+        for (Map.Entry<String, Long> capacity : capacities.entrySet()) {
+            if (description.length() > 0)
+                description.append(',');
+            description.append(capacity.getKey()).append(':').append(capacity.getValue());
+        }
+        return description.toString();
+    }
+
+    private static Path volumeSetPath(Volume volume) {
+        return Paths.get(volume.getRoot(), DefaultFileStorageService.SYSTEM_FOLDER_NAME, VOLUME_SET_FILE_NAME);
+    }
+
+    /**
+     * This method waits for the queued operations and stops the services of all volumes.
+     */
+    public void stopService() {
+        if (!serviceIsStarted) {
+            if (LOG.isInfoEnabled())
+                LOG.info("Service is not started");
+            return;
+        }
+
+        serviceIsStarted = false;
+        for (DefaultAsyncFileStorageService pool : ioPools) {
+            pool.close();
+        }
+        ioPools = null;
+        for (DefaultFileStorageService service : services) {
+            service.stopService();
+        }
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Service is stopped.");
+    }
+
+    public boolean serviceIsStarted() {
+        return serviceIsStarted;
+    }
+
+    /**
+     * @return volumes in the order given to the constructor
+     */
+    public List<Volume> getVolumes() {
+        return volumes;
+    }
+
+    /**
+     * Services of the volumes in the order of {@link #getVolumes()}. They can be configured before the service is
+     * started.
+     */
+    public List<DefaultFileStorageService> getVolumeServices() {
+        return Collections.unmodifiableList(services);
+    }
+
+    /**
+     * @param key
+     * @return volume where the file with this 'key' is placed by the current set of volumes
+     */
+    public Volume volumeOf(String key) {
+        return volumes.get(placementOf(key));
+    }
+
+    private int placementOf(String key) {
+        int placement = 0;
+        double maxScore = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < volumes.size(); i++) {
+            final long hash = placementHashes.get(i).hashUnencodedChars(key).asLong();
+            // the upper 53 bits give a uniform value in (0, 1)
+            final double uniform = ((hash >>> 11) + 0.5) / (1L << 53);
+            final double score = -volumes.get(i).getCapacity() / Math.log(uniform);
+            if (score > maxScore) {
+                maxScore = score;
+                placement = i;
+            }
+        }
+        return placement;
+    }
+
+    /**
+     * @return number of the volume which has the file or the placement of the 'key' if no volume has it
+     */
+    private int locate(String key) throws StorageServiceIsNotStartedError {
+        final int placement = placementOf(key);
+        if (!misplacedFiles || services.get(placement).containsFile(key)) return placement;
+
+        for (int i = 0; i < services.size(); i++) {
+            if (i != placement && services.get(i).containsFile(key)) return i;
+        }
+        return placement;
+    }
+
+    /**
+     * @return service of the volume which has the file
+     */
+    private DefaultFileStorageService holderOf(String key) throws StorageServiceIsNotStartedError {
+        return services.get(locate(key));
+    }
+
+    /**
+     * @return service of the volume where a new file is saved
+     * @throws FileAlreadyExistsException if the file is on another volume
+     */
+    private DefaultFileStorageService serviceOf(String key) throws StorageServiceIsNotStartedError, FileAlreadyExistsException {
+        final int placement = placementOf(key);
+        if (locate(key) != placement)
+            throw new FileAlreadyExistsException(key);
+        return services.get(placement);
+    }
+
+    @Override
+    public void saveFile(String key, InputStream inputStream) throws StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException, FileAlreadyExistsException {
+        serviceOf(key).saveFile(key, inputStream);
+    }
+
+    @Override
+    public void saveFile(String key, InputStream inputStream, long lifeTimeMillis) throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException {
+        serviceOf(key).saveFile(key, inputStream, lifeTimeMillis);
+    }
+
+    @Override
+    public void saveFile(String key, ReadableByteChannel channel, long size) throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException {
+        serviceOf(key).saveFile(key, channel, size);
+    }
+
+    @Override
+    public void saveFile(String key, Path source) throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException, FileNotFoundException {
+        serviceOf(key).saveFile(key, source);
+    }
+
+    @Override
+    public BatchResult saveFiles(Map<String, InputStream> files) throws StorageServiceIsNotStartedError {
+        return saveFiles(files, 0);
+    }
+
+    /**
+     * Files are saved by the I/O threads of their volumes, so files of different volumes are written in parallel.
+     *
+     * @param files          streams by their keys
+     * @param lifeTimeMillis 0 if the files aren't deleted by the time
+     */
+    @Override
+    public BatchResult saveFiles(Map<String, InputStream> files, final long lifeTimeMillis) throws StorageServiceIsNotStartedError {
+        if (LOG.isInfoEnabled())
+            LOG.info("Saving of {} files ...", files.size());
+
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        final Map<String, Future<Void>> saved = new LinkedHashMap<>();
+        for (final Map.Entry<String, InputStream> file : files.entrySet()) {
+            saved.put(file.getKey(), submitOrCall(file.getKey(), new DefaultAsyncFileStorageService.StorageCall<Void>() {
+                @Override
+                public Void call() throws Throwable {
+                    if (lifeTimeMillis > 0)
+                        saveFile(file.getKey(), file.getValue(), lifeTimeMillis);
+                    else
+                        saveFile(file.getKey(), file.getValue());
+                    return null;
+                }
+            }));
+        }
+        final BatchResult result = collect(saved);
+
+        if (LOG.isInfoEnabled())
+            LOG.info("{} of {} files saved", result.getSucceeded().size(), files.size());
+        return result;
+    }
+
+    @Override
+    public void replaceFile(String key, InputStream inputStream) throws StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException {
+        holderOf(key).replaceFile(key, inputStream);
+    }
+
+    @Override
+    public InputStream readFile(String key) throws StorageServiceIsNotStartedError, FileNotFoundException {
+        return holderOf(key).readFile(key);
+    }
+
+    @Override
+    public long readFile(String key, WritableByteChannel target) throws StorageServiceIsNotStartedError, IOException {
+        return holderOf(key).readFile(key, target);
+    }
+
+    @Override
+    public FileRangeChannel readRange(String key, long offset, long length) throws StorageServiceIsNotStartedError, FileNotFoundException {
+        return holderOf(key).readRange(key, offset, length);
+    }
+
+    @Override
+    public ByteBuffer mapFile(String key) throws StorageServiceIsNotStartedError, FileNotFoundException {
+        return holderOf(key).mapFile(key);
+    }
+
+    /**
+     * A volume ignores mappings which it didn't return, so the mapping is released in all volumes.
+     */
+    @Override
+    public void releaseMapping(ByteBuffer mapping) throws StorageServiceIsNotStartedError {
+        for (DefaultFileStorageService service : services) {
+            service.releaseMapping(mapping);
+        }
+    }
+
+    @Override
+    public void deleteFile(String key) throws StorageServiceIsNotStartedError, MaybeFileInUseException {
+        holderOf(key).deleteFile(key);
+    }
+
+    @Override
+    public BatchResult deleteFiles(Collection<String> keys) throws StorageServiceIsNotStartedError {
+        if (LOG.isInfoEnabled())
+            LOG.info("Deleting of {} files ...", keys.size());
+
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        final Map<String, Future<Void>> deleted = new LinkedHashMap<>();
+        for (final String key : keys) {
+            deleted.put(key, submitOrCall(key, new DefaultAsyncFileStorageService.StorageCall<Void>() {
+                @Override
+                public Void call() throws Throwable {
+                    deleteFile(key);
+                    return null;
+                }
+            }));
+        }
+        final BatchResult result = collect(deleted);
+
+        if (LOG.isInfoEnabled())
+            LOG.info("{} of {} files deleted", result.getSucceeded().size(), keys.size());
+        return result;
+    }
+
+    /**
+     * @return sum of the free space of all volumes
+     */
+    @Override
+    public long getFreeStorageSpaceInBytes() throws StorageServiceIsNotStartedError {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        long freeSpace = 0;
+        for (DefaultFileStorageService service : services) {
+            freeSpace += service.getFreeStorageSpaceInBytes();
+        }
+        return freeSpace;
+    }
+
+    /**
+     * @return free space of all volumes from their total capacity
+     */
+    @Override
+    public float getFreeStorageSpaceInPercents() throws StorageServiceIsNotStartedError {
+        return (float) getFreeStorageSpaceInBytes() / totalCapacity;
+    }
+
+    /**
+     * Every volume is purged to the same percents of its capacity in parallel.
+     */
+    @Override
+    public void purge(float requiredFreeSpaceInPercents) throws StorageServiceIsNotStartedError, InvalidPercentsValueException {
+        if (requiredFreeSpaceInPercents < 0 || requiredFreeSpaceInPercents > 1)
+            throw new InvalidPercentsValueException(requiredFreeSpaceInPercents);
+
+        purge((long) (totalCapacity * requiredFreeSpaceInPercents));
+    }
+
+    /**
+     * The required space is divided between volumes proportionally to their capacities, which is also the share of
+     * files placed on them, and the volumes are purged in parallel.
+     */
+    @Override
+    public void purge(long requiredFreeSpaceInBytes) throws StorageServiceIsNotStartedError {
+        if (LOG.isInfoEnabled())
+            LOG.info("Start purging of {} volumes.", volumes.size());
+
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        final List<Future<Void>> purged = new ArrayList<>(volumes.size());
+        for (int i = 0; i < volumes.size(); i++) {
+            purged.add(ioPools.get(i).purgeAsync(shareOf(i, requiredFreeSpaceInBytes)));
+        }
+        for (Future<Void> future : purged) {
+            final Throwable failure = await(future);
+            if (failure instanceof StorageServiceIsNotStartedError)
+                throw (StorageServiceIsNotStartedError) failure;
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure != null)
+                throw new IllegalStateException(failure.getMessage());
+        }
+
+        if (LOG.isInfoEnabled())
+            LOG.info("{} bytes of the storage disk space was successfully purged.", requiredFreeSpaceInBytes);
+    }
+
+    private long shareOf(int volume, long bytes) {
+        return (long) ((double) bytes * volumes.get(volume).getCapacity() / totalCapacity);
+    }
+
+    /**
+     * Operations with a file are queued to the I/O threads of its placed volume, which also look the file up on the
+     * other volumes if it is misplaced.
+     */
+    @Override
+    public CompletableFuture<Void> saveFileAsync(final String key, final InputStream inputStream) {
+        if (!serviceIsStarted) return notStarted();
+        return submit(key, new DefaultAsyncFileStorageService.StorageCall<Void>() {
+            @Override
+            public Void call() throws Throwable {
+                saveFile(key, inputStream);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveFileAsync(final String key, final InputStream inputStream, final long lifeTimeMillis) {
+        if (!serviceIsStarted) return notStarted();
+        return submit(key, new DefaultAsyncFileStorageService.StorageCall<Void>() {
+            @Override
+            public Void call() throws Throwable {
+                saveFile(key, inputStream, lifeTimeMillis);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<InputStream> readFileAsync(final String key) {
+        if (!serviceIsStarted) return notStarted();
+        return submit(key, new DefaultAsyncFileStorageService.StorageCall<InputStream>() {
+            @Override
+            public InputStream call() throws Throwable {
+                return readFile(key);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> readFileAsync(final String key, final WritableByteChannel target) {
+        if (!serviceIsStarted) return notStarted();
+        return submit(key, new DefaultAsyncFileStorageService.StorageCall<Long>() {
+            @Override
+            public Long call() throws Throwable {
+                return readFile(key, target);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteFileAsync(final String key) {
+        if (!serviceIsStarted) return notStarted();
+        return submit(key, new DefaultAsyncFileStorageService.StorageCall<Void>() {
+            @Override
+            public Void call() throws Throwable {
+                deleteFile(key);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> purgeAsync(float requiredFreeSpaceInPercents) {
+        if (requiredFreeSpaceInPercents < 0 || requiredFreeSpaceInPercents > 1) {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new InvalidPercentsValueException(requiredFreeSpaceInPercents));
+            return future;
+        }
+        return purgeAsync((long) (totalCapacity * requiredFreeSpaceInPercents));
+    }
+
+    @Override
+    public CompletableFuture<Void> purgeAsync(long requiredFreeSpaceInBytes) {
+        if (!serviceIsStarted) return notStarted();
+
+        final CompletableFuture<?>[] purged = new CompletableFuture<?>[volumes.size()];
+        for (int i = 0; i < volumes.size(); i++) {
+            purged[i] = ioPools.get(i).purgeAsync(shareOf(i, requiredFreeSpaceInBytes));
+        }
+        return CompletableFuture.allOf(purged);
+    }
+
+    /**
+     * Stops the service.
+     */
+    @Override
+    public void close() {
+        stopService();
+    }
+
+    private <T> CompletableFuture<T> submit(String key, DefaultAsyncFileStorageService.StorageCall<T> call) {
+        return ioPools.get(placementOf(key)).submit(call);
+    }
+
+    /**
+     * Batches are blocking calls, so an operation which doesn't fit into the full queue of its volume is done by
+     * the calling thread.
+     */
+    private <T> CompletableFuture<T> submitOrCall(String key, DefaultAsyncFileStorageService.StorageCall<T> call) {
+        final CompletableFuture<T> future = submit(key, call);
+        return isRejected(future) ? callNow(call) : future;
+    }
+
+    private static boolean isRejected(CompletableFuture<?> future) {
+        return future.isCompletedExceptionally() && await(future) instanceof RejectedExecutionException;
+    }
+
+    private static <T> CompletableFuture<T> callNow(DefaultAsyncFileStorageService.StorageCall<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(call.call());
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static BatchResult collect(Map<String, Future<Void>> futures) {
+        final BatchResult result = new BatchResult();
+        for (Map.Entry<String, Future<Void>> future : futures.entrySet()) {
+            final Throwable failure = await(future.getValue());
+            if (failure == null)
+                result.addSuccess(future.getKey());
+            else
+                result.addFailure(future.getKey(), failure);
+        }
+        return result;
+    }
+
+    /**
+     * @return exception of the operation or null if it is successful
+     */
+    private static Throwable await(Future<?> future) {
+        try {
+            future.get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return e;
+        }
+    }
+
+    private static <T> CompletableFuture<T> notStarted() {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new StorageServiceIsNotStartedError());
+        return future;
+    }
+}
@@ -2,11 +2,14 @@ package filestorage.impl;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static java.io.File.separator;
 
 /**
  * This is util class. It calculates a destination path for storing the file with the given 'key'.
+ * The layout of the folders is defined by the {@link ShardFunction}, the depth and the capacity of a level.
  *
  * @author Bogdan Kovalev.
  */
@@ -15,26 +18,77 @@ public class PathConstructor {
     private static final long NUMBER_OF_HASHCODES = Math.abs((long) Integer.MIN_VALUE) + Integer.MAX_VALUE + 1;
     private static final int DEFAULT_DEPTH = 3;
     private static final int DEFAULT_LEVEL_CAPACITY = 128;
+    private static final Pattern LAYOUT = Pattern.compile("(.+):(\\d+):(\\d+)");
 
     private final List<Integer> DIVIDERS = new ArrayList<>();
+    private final ShardFunction shardFunction;
+    private final int depth;
+    private final int levelCapacity;
 
     /**
+     * @param shardFunction - hash function of the keys
      * @param depth         - level of the folders nesting
      * @param levelCapacity - maximum number of subdirectories in directory on each level of nesting
      */
-    public PathConstructor(int depth, int levelCapacity) {
-        if (depth == 0) throw new IllegalStateException("PathConstructor: Invalid depth value");
+    public PathConstructor(ShardFunction shardFunction, int depth, int levelCapacity) {
+        if (depth <= 0) throw new IllegalStateException("PathConstructor: Invalid depth value");
+        if (levelCapacity <= 1) throw new IllegalStateException("PathConstructor: Invalid level capacity value");
+
+        this.shardFunction = shardFunction;
+        this.depth = depth;
+        this.levelCapacity = levelCapacity;
 
         DIVIDERS.add(0, (int) (NUMBER_OF_HASHCODES / levelCapacity));
         for (int i = 1; i < depth; i++) {
             DIVIDERS.add(i, DIVIDERS.get(i - 1) / levelCapacity);
         }
+        if (DIVIDERS.get(depth - 1) == 0)
+            throw new IllegalStateException("PathConstructor: Too many folders for " + depth + " levels of " + levelCapacity);
+    }
+
+    public PathConstructor(int depth, int levelCapacity) {
+        this(StandardShardFunction.STRING_HASH_CODE, depth, levelCapacity);
     }
 
     public PathConstructor() {
         this(DEFAULT_DEPTH, DEFAULT_LEVEL_CAPACITY);
     }
 
+    /**
+     * @param layout     description of the layout returned by {@link #getLayout()}
+     * @param configured function which is used if the layout names it, standard functions are found by their names
+     * @return path constructor of the layout
+     * @throws IllegalArgumentException if the layout or its function is unknown
+     */
+    public static PathConstructor forLayout(String layout, ShardFunction configured) {
+        final Matcher matcher = LAYOUT.matcher(layout);
+        if (!matcher.matches())
+            throw new IllegalArgumentException("Invalid layout: " + layout);
+
+        final String name = matcher.group(1);
+        final int depth = Integer.parseInt(matcher.group(2));
+        final int levelCapacity = Integer.parseInt(matcher.group(3));
+        if (configured.getName().equals(name))
+            return new PathConstructor(configured, depth, levelCapacity);
+
+        for (StandardShardFunction standard : StandardShardFunction.values()) {
+            if (standard.getName().equals(name))
+                return new PathConstructor(standard, depth, levelCapacity);
+        }
+        throw new IllegalArgumentException("Unknown shard function: " + name);
+    }
+
+    /**
+     * @return description of the layout in the form 'function:depth:levelCapacity'
+     */
+    public String getLayout() {
+        return shardFunction.getName() + ':' + depth + ':' + levelCapacity;
+    }
+
+    public ShardFunction getShardFunction() {
+        return shardFunction;
+    }
+
     /**
      * This method returns a path where a file with this 'key' can be stored.
      * Algorithm work basics on the unsigned hash-code value of the 'key'. Destination path for the file with the given 'key'
@@ -49,20 +103,61 @@ public class PathConstructor {
      * @return
      */
     public String calculateDestinationPath(String key, String startFolder) {
-        final long unsigned_hashcode = key.hashCode() + Math.abs((long) Integer.MIN_VALUE);
+        return startFolder.concat(relativePath(unsignedHash(key)));
+    }
+
+    /**
+     * @return number of leaf folders if every leaf folder is defined by its number, otherwise -1
+     */
+    public int getShardCount() {
+        long divider = NUMBER_OF_HASHCODES;
+        for (int div : DIVIDERS) {
+            if (divider % div != 0) return -1;
+            divider = div;
+        }
+        final long count = NUMBER_OF_HASHCODES / divider;
+        return count <= Integer.MAX_VALUE ? (int) count : -1;
+    }
+
+    /**
+     * @param key
+     * @return number of the leaf folder of the file with this 'key'
+     */
+    public int shardOf(String key) {
+        return (int) (unsignedHash(key) / DIVIDERS.get(DIVIDERS.size() - 1));
+    }
 
-        String path = "";
+    /**
+     * @param shard number of the leaf folder
+     * @return path of the leaf folder relatively to the start folder
+     */
+    public String shardPath(int shard) {
+        return relativePath((long) shard * DIVIDERS.get(DIVIDERS.size() - 1));
+    }
+
+    private String relativePath(long unsigned_hashcode) {
+        final StringBuilder path = new StringBuilder();
 
         for (int div : DIVIDERS) {
             long left_boundary = unsigned_hashcode - unsigned_hashcode % div;
             long right_boundary = left_boundary + div - 1;
-            path += separator + createName(left_boundary, right_boundary);
+            path.append(separator).append('[').append(left_boundary).append('_').append(right_boundary).append(']');
         }
 
-        return startFolder.concat(path);
+        return path.toString();
+    }
+
+    private long unsignedHash(String key) {
+        return shardFunction.hash(key) + Math.abs((long) Integer.MIN_VALUE);
     }
 
-    private static String createName(long left_boundary, long right_boundary) {
-        return "[" + left_boundary + "_" + right_boundary + "]";
+    /**
+     * This hash doesn't depend on the layout. It spreads keys over lock stripes and temporary folders.
+     *
+     * @param key
+     * @return hash-code of the 'key'
+     */
+    public static int hash(String key) {
+        return key.hashCode();
     }
 }
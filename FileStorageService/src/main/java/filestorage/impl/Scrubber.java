@@ -0,0 +1,164 @@
+package filestorage.impl;
+
+import com.google.common.util.concurrent.RateLimiter;
+import filestorage.FileRangeChannel;
+import filestorage.impl.exception.CorruptedContentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads every file of the data folder and every packed file in the background and verifies it against its checksum,
+ * so bit-rot is found before the file is requested. Reading is limited to the given number of bytes per second, so the scrubbing
+ * doesn't take the disk bandwidth from foreground operations. Corrupted files are reported by the verifying
+ * ranges given by the {@link Opener}.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class Scrubber implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Scrubber.class);
+
+    /**
+     * Opens files for the verification.
+     */
+    static interface Opener {
+        /**
+         * @return verifying range over the whole content or null if the file has no checksum
+         */
+        FileRangeChannel open(String name) throws IOException;
+
+        /**
+         * @return names of the files packed into segments at the moment
+         */
+        List<String> packedNames();
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Time in milliseconds between passes over the data folder.
+     */
+    private static final int PASS_DELAY = 1000;
+
+    private final Path dataFolderPath;
+    private final Opener opener;
+    private final RateLimiter rateLimiter;
+
+    private final AtomicLong scrubbedFiles = new AtomicLong();
+    private final AtomicLong scrubbedBytes = new AtomicLong();
+    private final AtomicLong passes = new AtomicLong();
+
+    /**
+     * @param dataFolderPath
+     * @param opener
+     * @param bytesPerSecond maximum reading rate
+     */
+    public Scrubber(Path dataFolderPath, Opener opener, long bytesPerSecond) {
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException("Invalid scrubbing rate: " + bytesPerSecond);
+
+        this.dataFolderPath = dataFolderPath;
+        this.opener = opener;
+        this.rateLimiter = RateLimiter.create(bytesPerSecond);
+    }
+
+    @Override
+    public void run() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                scrub(buffer);
+                passes.incrementAndGet();
+                Thread.sleep(PASS_DELAY);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled())
+                LOG.error("Scrubbing is failed: {}", e.getMessage());
+        }
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Scrubbing is stopped");
+    }
+
+    public long getScrubbedFiles() {
+        return scrubbedFiles.get();
+    }
+
+    public long getScrubbedBytes() {
+        return scrubbedBytes.get();
+    }
+
+    /**
+     * @return number of completed passes over the data folder
+     */
+    public long getPasses() {
+        return passes.get();
+    }
+
+    /**
+     * Walks the data folder and the packed files once.
+     */
+    private void scrub(final ByteBuffer buffer) throws IOException, InterruptedException {
+        if (Files.isDirectory(dataFolderPath)) {
+            Files.walkFileTree(dataFolderPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (Thread.currentThread().isInterrupted())
+                        return FileVisitResult.TERMINATE;
+
+                    if (attributes.isRegularFile())
+                        verify(String.valueOf(file.getFileName()), buffer);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        for (String name : opener.packedNames()) {
+            if (Thread.currentThread().isInterrupted()) break;
+            verify(name, buffer);
+        }
+
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedException();
+    }
+
+    private void verify(String name, ByteBuffer buffer) {
+        try (final FileRangeChannel range = opener.open(name)) {
+            if (range == null) return;
+
+            buffer.clear();
+            int read;
+            while ((read = range.read(buffer)) != -1) {
+                if (read > 0)
+                    rateLimiter.acquire(read);
+                scrubbedBytes.addAndGet(read);
+                buffer.clear();
+            }
+            scrubbedFiles.incrementAndGet();
+        } catch (CorruptedContentException e) {
+            scrubbedFiles.incrementAndGet();
+            if (LOG.isErrorEnabled())
+                LOG.error("File '{}' is corrupted: {}", name, e.getMessage());
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            // the file is deleted
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Can't verify the file '{}': {}", name, e.getMessage());
+        }
+    }
+}
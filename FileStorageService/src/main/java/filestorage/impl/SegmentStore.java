@@ -0,0 +1,701 @@
+package filestorage.impl;
+
+import filestorage.FileRangeChannel;
+import filestorage.impl.exception.CorruptedContentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Storage of small files packed into append-only segment files. The position of every file is kept in the memory,
+ * so a file is read by one positional read from the shared segment channel, without opening of a file.
+ * <p>
+ * A record is: magic (int), type (byte), creation time (long), target segment (int), key length (int),
+ * data length (int), key (UTF-8), data, CRC32 of all previous bytes of the record (int). A verified read of
+ * a whole packed file checks the CRC32 of its record.
+ * Deleting of a file appends a tombstone record, the target segment of a tombstone is the segment of the deleted
+ * record. The index is rebuilt on start by reading the segments in order of their ids.
+ * <p>
+ * Space of deleted records is reclaimed by the compaction: live records and still needed tombstones of a sealed
+ * segment are appended to the active segment and the old segment is deleted. The space for the moved records is
+ * reserved before a segment is compacted, so a segment is skipped rather than half moved when the storage is full.
+ * <p>
+ * Changes of the index are made under the monitor of the store, but the index itself is concurrent, so names which
+ * aren't packed are answered without the monitor. The callers lock the key, so its presence can't change meanwhile.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class SegmentStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentStore.class);
+
+    /**
+     * Reads indexed files.
+     */
+    static interface Consumer {
+        void accept(String key, long recordLength, long creationTime);
+    }
+
+    private static final int MAGIC = 0x53474d31;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 4 + 4 + 4;
+    private static final int CHECKSUM_SIZE = 4;
+    private static final int NO_TARGET = -1;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    /**
+     * A sealed segment is compacted in the background when at least a half of it is occupied by deleted records.
+     */
+    private static final int COMPACTION_GARBAGE_PERCENT = 50;
+    private static final long COMPACTION_INTERVAL = 1000;
+
+    private final Path folder;
+    private final long maxSegmentSize;
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private Segment active;
+
+    private final Object compactionLock = new Object();
+    private StorageSpaceInspector storageSpaceInspector;
+    private Thread compactor;
+    private volatile boolean compactorRun;
+
+    /**
+     * @param folder         folder of the segment files
+     * @param maxSegmentSize size after which a new segment is started
+     * @throws IOException if the segments can't be read
+     */
+    public SegmentStore(Path folder, long maxSegmentSize) throws IOException {
+        this.folder = folder;
+        this.maxSegmentSize = maxSegmentSize;
+
+        Files.createDirectories(folder);
+        recover();
+    }
+
+    /**
+     * @param folder folder of the segment files
+     * @return true if the folder contains segments
+     * @throws IOException if the folder can't be read
+     */
+    public static boolean exists(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) return false;
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(folder, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            return files.iterator().hasNext();
+        }
+    }
+
+    /**
+     * @param key
+     * @param dataLength
+     * @return size of the record of the file
+     */
+    public static long recordLength(String key, long dataLength) {
+        return HEADER_SIZE + key.getBytes(StandardCharsets.UTF_8).length + dataLength + CHECKSUM_SIZE;
+    }
+
+    /**
+     * Connects the store with the space accounting. It must be called before files are changed.
+     */
+    public void attach(StorageSpaceInspector inspector) {
+        this.storageSpaceInspector = inspector;
+    }
+
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Appends the file. The space for the record must be reserved by the caller.
+     *
+     * @param key
+     * @param data         content of the file
+     * @param creationTime in milliseconds
+     * @throws FileAlreadyExistsException if the store already contains the file
+     * @throws IOException
+     */
+    public synchronized void put(String key, ByteBuffer data, long creationTime) throws IOException {
+        if (index.containsKey(key))
+            throw new FileAlreadyExistsException(key);
+
+        final ByteBuffer record = encode(PUT, creationTime, NO_TARGET, key, data);
+        final Location location = append(record, key, creationTime);
+        index.put(key, location);
+        segments.get(location.segmentId).liveBytes += location.recordLength;
+    }
+
+    /**
+     * Deletes the file by appending a tombstone. The space of the file is released by the compaction.
+     *
+     * @param key
+     * @return size of the appended tombstone or -1 if the store doesn't contain the file
+     * @throws IOException
+     */
+    public long delete(String key) throws IOException {
+        if (!index.containsKey(key)) return -1;
+
+        synchronized (this) {
+            return appendTombstone(key);
+        }
+    }
+
+    private long appendTombstone(String key) throws IOException {
+        final Location location = index.get(key);
+        if (location == null) return -1;
+
+        final ByteBuffer tombstone = encode(DELETE, location.creationTime, location.segmentId, key, ByteBuffer.allocate(0));
+        final int tombstoneLength = tombstone.remaining();
+        append(tombstone, key, location.creationTime);
+
+        index.remove(key);
+        segments.get(location.segmentId).liveBytes -= location.recordLength;
+        return tombstoneLength;
+    }
+
+    /**
+     * @param key
+     * @param offset first byte of the range in the file
+     * @param length
+     * @return range of the file, which must be closed by the caller, or null if the store doesn't contain the file
+     */
+    public FileRangeChannel openRange(String key, long offset, long length) {
+        return openRange(key, offset, length, null);
+    }
+
+    /**
+     * @param key
+     * @param offset   first byte of the range in the file
+     * @param length
+     * @param listener if not null, the range over the whole file verifies the checksum of its record before the
+     *                 first read and reports a mismatch to the listener
+     * @return range of the file, which must be closed by the caller, or null if the store doesn't contain the file
+     */
+    public FileRangeChannel openRange(String key, long offset, long length, CorruptionListener listener) {
+        if (!index.containsKey(key)) return null;
+
+        synchronized (this) {
+            final Location location = index.get(key);
+            if (location == null) return null;
+
+            final Segment segment = segments.get(location.segmentId);
+            segment.references++;
+
+            final long start = Math.min(offset, location.dataLength);
+            final long rangeLength = Math.min(length, location.dataLength - start);
+            if (listener != null && start == 0 && rangeLength == location.dataLength)
+                return new VerifyingRecordRange(segment.channel, location, key, listener, new SegmentRelease(segment));
+            return new FileRangeChannel(segment.channel, location.dataOffset() + start, rangeLength,
+                    new SegmentRelease(segment));
+        }
+    }
+
+    /**
+     * @return names of the packed files at the moment
+     */
+    public List<String> names() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    public synchronized void forEach(Consumer consumer) {
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            consumer.accept(entry.getKey(), entry.getValue().recordLength, entry.getValue().creationTime);
+        }
+    }
+
+    /**
+     * Starts the background compaction of sealed segments.
+     */
+    public void startCompaction() {
+        compactorRun = true;
+        compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (compactorRun) {
+                    compact(false);
+                    synchronized (compactionLock) {
+                        try {
+                            if (compactorRun)
+                                compactionLock.wait(COMPACTION_INTERVAL);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "segment-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * This method compacts segments with deleted records. Segments with less live data go first, and a segment is
+     * skipped if there isn't enough free space to move its live records.
+     *
+     * @param all if true, the active segment is sealed and every segment with deleted records is compacted,
+     *            otherwise only mostly deleted segments are compacted
+     * @return number of released bytes
+     */
+    public long compact(boolean all) {
+        synchronized (compactionLock) {
+            final List<Segment> candidates = new ArrayList<>();
+            synchronized (this) {
+                if (all && active != null && active.size > active.liveBytes)
+                    active = null;
+
+                for (Segment segment : segments.values()) {
+                    if (segment == active) continue;
+                    final long garbage = segment.size - segment.liveBytes;
+                    if (all ? garbage > 0 : garbage * 100 >= segment.size * COMPACTION_GARBAGE_PERCENT)
+                        candidates.add(segment);
+                }
+                Collections.sort(candidates, new Comparator<Segment>() {
+                    @Override
+                    public int compare(Segment segment1, Segment segment2) {
+                        return Long.compare(segment1.liveBytes, segment2.liveBytes);
+                    }
+                });
+            }
+
+            long released = 0;
+            for (Segment segment : candidates) {
+                try {
+                    if (!compactSegment(segment)) continue;
+                    released += segment.size;
+                } catch (IOException e) {
+                    if (LOG.isWarnEnabled())
+                        LOG.warn("Compaction of '{}' failed", segment.path);
+                    break;
+                }
+            }
+
+            if (released > 0 && LOG.isInfoEnabled())
+                LOG.info("Segments compaction released {} bytes", released);
+            return released;
+        }
+    }
+
+    /**
+     * Stops the compaction and closes the segments.
+     */
+    public void close() {
+        if (compactor != null) {
+            synchronized (compactionLock) {
+                compactorRun = false;
+                compactionLock.notifyAll();
+            }
+            try {
+                compactor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                closeQuietly(segment.channel);
+            }
+            segments.clear();
+            index.clear();
+            active = null;
+        }
+    }
+
+    /**
+     * The first pass finds the size of the records to move and reserves it, the second pass moves them. Records
+     * are only deleted meanwhile, so the second pass never needs more space than the first one found.
+     *
+     * @return false if there is not enough free space to move the live records
+     */
+    private boolean compactSegment(Segment segment) throws IOException {
+        long needed = 0;
+        long position = 0;
+        while (position < segment.size) {
+            final Record record = readSegmentRecord(segment, position);
+            if (isNeeded(segment, record, position))
+                needed += record.length;
+            position += record.length;
+        }
+        if (!storageSpaceInspector.tryReserve(needed)) return false;
+
+        long moved = 0;
+        try {
+            position = 0;
+            while (position < segment.size) {
+                final Record record = readSegmentRecord(segment, position);
+                if (relocate(segment, record, position))
+                    moved += record.length;
+                position += record.length;
+            }
+        } finally {
+            storageSpaceInspector.decrementUsedSpace(needed - moved);
+        }
+
+        synchronized (this) {
+            segments.remove(segment.id);
+            segment.retired = true;
+            if (segment.references == 0)
+                closeQuietly(segment.channel);
+        }
+        Files.deleteIfExists(segment.path);
+        storageSpaceInspector.decrementUsedSpace(segment.size);
+        return true;
+    }
+
+    private Record readSegmentRecord(Segment segment, long position) throws IOException {
+        final Record record = readRecord(segment.channel, position, segment.size);
+        if (record == null)
+            throw new IOException("Corrupted record in " + segment.path + " at " + position);
+        return record;
+    }
+
+    /**
+     * @return true if the record must be moved from the compacted segment
+     */
+    private synchronized boolean isNeeded(Segment segment, Record record, long position) {
+        if (record.type == PUT) {
+            final Location location = index.get(record.key);
+            return location != null && location.segmentId == segment.id && location.recordOffset == position;
+        }
+        // the tombstone is needed while its target segment may contain the deleted record
+        return record.target != segment.id && segments.containsKey(record.target);
+    }
+
+    /**
+     * Moves the record into the active segment if it is still needed. The space of the record is already reserved.
+     *
+     * @return true if the record is moved
+     */
+    private synchronized boolean relocate(Segment segment, Record record, long position) throws IOException {
+        if (!isNeeded(segment, record, position)) return false;
+
+        if (record.type == PUT) {
+            final Location moved = append(record.bytes, record.key, record.creationTime);
+            index.put(record.key, moved);
+            segment.liveBytes -= record.length;
+            segments.get(moved.segmentId).liveBytes += record.length;
+        } else {
+            append(record.bytes, record.key, record.creationTime);
+        }
+        return true;
+    }
+
+    private Location append(ByteBuffer record, String key, long creationTime) throws IOException {
+        final int length = record.remaining();
+        if (active == null || active.size > 0 && active.size + length > maxSegmentSize)
+            active = createSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1);
+
+        final long offset = active.size;
+        long position = offset;
+        final ByteBuffer bytes = record.duplicate();
+        try {
+            while (bytes.hasRemaining()) {
+                position += active.channel.write(bytes, position);
+            }
+        } catch (IOException e) {
+            // the rest of the segment may be broken, so it isn't written anymore
+            active.size = position;
+            active = null;
+            throw e;
+        }
+        active.size += length;
+
+        return new Location(active.id, offset, length, keyLength(key), creationTime);
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        final Path path = folder.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+        final Segment segment = new Segment(id, path, FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void recover() throws IOException {
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(folder, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                final String name = String.valueOf(file.getFileName());
+                try {
+                    final int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, new Segment(id, file, FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)));
+                } catch (NumberFormatException e) {
+                    if (LOG.isWarnEnabled())
+                        LOG.warn("Unknown file in the segments folder: '{}'", file);
+                }
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            replay(segment);
+        }
+
+        if (!segments.isEmpty() && segments.lastEntry().getValue().size < maxSegmentSize)
+            active = segments.lastEntry().getValue();
+
+        if (LOG.isInfoEnabled())
+            LOG.info("{} packed files found in {} segments", index.size(), segments.size());
+    }
+
+    private void replay(Segment segment) throws IOException {
+        final long size = segment.channel.size();
+        long position = 0;
+        Record record;
+        while (position < size && (record = readRecord(segment.channel, position, size)) != null) {
+            if (record.type == PUT) {
+                final Location location = new Location(segment.id, position, record.length, record.keyLength, record.creationTime);
+                final Location previous = index.put(record.key, location);
+                if (previous != null)
+                    segments.get(previous.segmentId).liveBytes -= previous.recordLength;
+                segment.liveBytes += record.length;
+            } else {
+                final Location location = index.get(record.key);
+                if (location != null && location.segmentId == record.target) {
+                    index.remove(record.key);
+                    segments.get(location.segmentId).liveBytes -= location.recordLength;
+                }
+            }
+            position += record.length;
+        }
+
+        if (position < size) {
+            // torn tail of an interrupted write
+            if (LOG.isWarnEnabled())
+                LOG.warn("Segment '{}' is truncated from {} to {} bytes", segment.path, size, position);
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    /**
+     * @return record or null if there is no valid record at the 'position'
+     */
+    private static Record readRecord(FileChannel channel, long position, long limit) throws IOException {
+        if (limit - position < HEADER_SIZE + CHECKSUM_SIZE) return null;
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, position);
+        header.flip();
+
+        if (header.getInt() != MAGIC) return null;
+        final byte type = header.get();
+        final long creationTime = header.getLong();
+        final int target = header.getInt();
+        final int keyLength = header.getInt();
+        final int dataLength = header.getInt();
+        if (type != PUT && type != DELETE || keyLength < 0 || dataLength < 0) return null;
+
+        final long length = (long) HEADER_SIZE + keyLength + dataLength + CHECKSUM_SIZE;
+        if (length > limit - position || length > Integer.MAX_VALUE) return null;
+
+        final ByteBuffer bytes = ByteBuffer.allocate((int) length);
+        readFully(channel, bytes, position);
+        bytes.flip();
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, (int) length - CHECKSUM_SIZE);
+        if ((int) crc.getValue() != bytes.getInt((int) length - CHECKSUM_SIZE)) return null;
+
+        final String key = new String(bytes.array(), HEADER_SIZE, keyLength, StandardCharsets.UTF_8);
+        return new Record(type, creationTime, target, key, keyLength, (int) length, bytes);
+    }
+
+    /**
+     * @return true if the record at the 'location' has the valid checksum
+     */
+    private static boolean isValid(FileChannel channel, Location location) throws IOException {
+        final Record record = readRecord(channel, location.recordOffset, location.recordOffset + location.recordLength);
+        return record != null && record.length == location.recordLength;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read == -1) throw new IOException("Unexpected end of the segment");
+            position += read;
+        }
+    }
+
+    private static ByteBuffer encode(byte type, long creationTime, int target, String key, ByteBuffer data) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final int dataLength = data.remaining();
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + dataLength + CHECKSUM_SIZE);
+        record.putInt(MAGIC)
+                .put(type)
+                .putLong(creationTime)
+                .putInt(target)
+                .putInt(keyBytes.length)
+                .putInt(dataLength)
+                .put(keyBytes)
+                .put(data.duplicate());
+
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static int keyLength(String key) {
+        return key.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private synchronized void release(Segment segment) {
+        segment.references--;
+        if (segment.retired && segment.references == 0)
+            closeQuietly(segment.channel);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Can't close '{}'", closeable);
+        }
+    }
+
+    private static class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private long size;
+        private long liveBytes;
+        private int references;
+        private boolean retired;
+
+        private Segment(int id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    private static class Location {
+        private final int segmentId;
+        private final long recordOffset;
+        private final int recordLength;
+        private final int keyLength;
+        private final long creationTime;
+        private final int dataLength;
+
+        private Location(int segmentId, long recordOffset, int recordLength, int keyLength, long creationTime) {
+            this.segmentId = segmentId;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.keyLength = keyLength;
+            this.creationTime = creationTime;
+            this.dataLength = recordLength - HEADER_SIZE - keyLength - CHECKSUM_SIZE;
+        }
+
+        private long dataOffset() {
+            return recordOffset + HEADER_SIZE + keyLength;
+        }
+    }
+
+    private static class Record {
+        private final byte type;
+        private final long creationTime;
+        private final int target;
+        private final String key;
+        private final int keyLength;
+        private final int length;
+        private final ByteBuffer bytes;
+
+        private Record(byte type, long creationTime, int target, String key, int keyLength, int length, ByteBuffer bytes) {
+            this.type = type;
+            this.creationTime = creationTime;
+            this.target = target;
+            this.key = key;
+            this.keyLength = keyLength;
+            this.length = length;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Range over the whole packed file which checks the CRC32 of its record before the first read. The record is
+     * small, so it is read once more for the check.
+     */
+    static class VerifyingRecordRange extends FileRangeChannel {
+        private final FileChannel channel;
+        private final Location location;
+        private final String name;
+        private final CorruptionListener listener;
+        private boolean verified;
+
+        private VerifyingRecordRange(FileChannel channel, Location location, String name, CorruptionListener listener,
+                                     Closeable onClose) {
+            this(channel, location, name, listener, location.dataOffset(), location.dataLength, onClose);
+        }
+
+        private VerifyingRecordRange(FileChannel channel, Location location, String name, CorruptionListener listener,
+                                     long offset, long length, Closeable onClose) {
+            super(channel, offset, length, onClose);
+            this.channel = channel;
+            this.location = location;
+            this.name = name;
+            this.listener = listener;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            verify();
+            return super.read(dst);
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            verify();
+            return super.transferTo(target);
+        }
+
+        @Override
+        public ByteBuffer map() throws IOException {
+            verify();
+            return super.map();
+        }
+
+        @Override
+        public FileRangeChannel thenClose(Closeable next) {
+            final VerifyingRecordRange range = new VerifyingRecordRange(channel, location, name, listener, position(),
+                    remaining(), chainClose(next));
+            range.verified = verified;
+            return range;
+        }
+
+        private void verify() throws IOException {
+            if (verified) return;
+            verified = true;
+            if (!isValid(channel, location)) {
+                listener.fileCorrupted(name);
+                throw new CorruptedContentException("Checksum of the record of '" + name + "' doesn't match its content");
+            }
+        }
+    }
+
+    private class SegmentRelease implements Closeable {
+        private final Segment segment;
+
+        private SegmentRelease(Segment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public void close() {
+            release(segment);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package filestorage.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recorders of latencies, throughput and errors of the service operations. Recording is lock-free, so it is done
+ * on every call. The recorders are read over JMX or as a {@link MetricsSnapshot}.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class ServiceMetrics implements ServiceMetricsMXBean {
+
+    final Histogram saveLatency = new Histogram();
+    final Histogram replaceLatency = new Histogram();
+    final Histogram readLatency = new Histogram();
+    final Histogram mapLatency = new Histogram();
+    final Histogram deleteLatency = new Histogram();
+    final Histogram purgeDuration = new Histogram();
+    final Histogram watcherTickDuration = new Histogram();
+    final Histogram expiredFilesPerTick = new Histogram();
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder purgedBytes = new LongAdder();
+    private final LongAdder notEnoughFreeSpaceErrors = new LongAdder();
+    private final LongAdder fileAlreadyExistsErrors = new LongAdder();
+
+    public void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * @param startNanos value of {@link System#nanoTime()} at the start of the purge
+     * @param bytes      released bytes
+     */
+    public void recordPurge(long startNanos, long bytes) {
+        purgeDuration.recordSince(startNanos);
+        purgedBytes.add(bytes);
+    }
+
+    /**
+     * @param startNanos   value of {@link System#nanoTime()} at the start of the check
+     * @param expiredFiles number of deleted files
+     */
+    public void recordWatcherTick(long startNanos, int expiredFiles) {
+        watcherTickDuration.recordSince(startNanos);
+        expiredFilesPerTick.record(expiredFiles);
+    }
+
+    public void notEnoughFreeSpace() {
+        notEnoughFreeSpaceErrors.increment();
+    }
+
+    public void fileAlreadyExists() {
+        fileAlreadyExistsErrors.increment();
+    }
+
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(this);
+    }
+
+    @Override
+    public HistogramSnapshot getSaveLatency() {
+        return saveLatency.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getReplaceLatency() {
+        return replaceLatency.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getReadLatency() {
+        return readLatency.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getMapLatency() {
+        return mapLatency.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getDeleteLatency() {
+        return deleteLatency.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getPurgeDuration() {
+        return purgeDuration.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getWatcherTickDuration() {
+        return watcherTickDuration.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getExpiredFilesPerTick() {
+        return expiredFilesPerTick.snapshot();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getPurgedBytes() {
+        return purgedBytes.sum();
+    }
+
+    @Override
+    public long getNotEnoughFreeSpaceErrors() {
+        return notEnoughFreeSpaceErrors.sum();
+    }
+
+    @Override
+    public long getFileAlreadyExistsErrors() {
+        return fileAlreadyExistsErrors.sum();
+    }
+}
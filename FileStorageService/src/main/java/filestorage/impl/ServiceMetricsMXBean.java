@@ -0,0 +1,50 @@
+package filestorage.impl;
+
+/**
+ * Metrics of the {@link DefaultFileStorageService} published over JMX. Latencies and durations are in nanoseconds.
+ *
+ * @author Bogdan Kovalev.
+ */
+public interface ServiceMetricsMXBean {
+
+    HistogramSnapshot getSaveLatency();
+
+    HistogramSnapshot getReplaceLatency();
+
+    /**
+     * @return time to open the content of a file for reading
+     */
+    HistogramSnapshot getReadLatency();
+
+    HistogramSnapshot getMapLatency();
+
+    HistogramSnapshot getDeleteLatency();
+
+    HistogramSnapshot getPurgeDuration();
+
+    /**
+     * @return durations of the checks of the {@link LifeTimeWatcher}
+     */
+    HistogramSnapshot getWatcherTickDuration();
+
+    /**
+     * @return numbers of files deleted by the checks of the {@link LifeTimeWatcher}
+     */
+    HistogramSnapshot getExpiredFilesPerTick();
+
+    /**
+     * @return bytes of saved and replaced files as they are stored
+     */
+    long getBytesIn();
+
+    /**
+     * @return bytes of contents opened by reads and mappings
+     */
+    long getBytesOut();
+
+    long getPurgedBytes();
+
+    long getNotEnoughFreeSpaceErrors();
+
+    long getFileAlreadyExistsErrors();
+}
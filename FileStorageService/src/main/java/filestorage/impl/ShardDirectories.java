@@ -0,0 +1,185 @@
+package filestorage.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Leaf folders of the {@link PathConstructor} under the start folder. Paths of leaf folders are built once and
+ * cached by the folder number, and created folders are remembered in a bitset, so the path of a file is found
+ * without building strings and without checking the file system.
+ * <p>
+ * If the layout has too many leaf folders or they can't be numbered, paths are calculated on every call.
+ * <p>
+ * While files are moved from previous layouts, {@link #locate(String)} finds them at the previous places too.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class ShardDirectories {
+
+    private static final int MAX_CACHED_SHARDS = 1 << 22;
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private final PathConstructor pathConstructor;
+    private final Path startFolder;
+    private final String startFolderPath;
+    private final int shardCount;
+
+    /**
+     * Cached paths are split into pages which are allocated on the first use.
+     */
+    private final AtomicReferenceArray<AtomicReferenceArray<Path>> pages;
+    private final AtomicLongArray created;
+
+    private volatile List<PathConstructor> previousLayouts = new ArrayList<>();
+
+    public ShardDirectories(PathConstructor pathConstructor, Path startFolder) {
+        this.pathConstructor = pathConstructor;
+        this.startFolder = startFolder;
+        this.startFolderPath = String.valueOf(startFolder);
+
+        final int count = pathConstructor.getShardCount();
+        this.shardCount = count > 0 && count <= MAX_CACHED_SHARDS ? count : -1;
+        this.pages = shardCount > 0 ? new AtomicReferenceArray<AtomicReferenceArray<Path>>((shardCount + PAGE_SIZE - 1) / PAGE_SIZE) : null;
+        this.created = shardCount > 0 ? new AtomicLongArray((shardCount + 63) / 64) : null;
+    }
+
+    public Path getStartFolder() {
+        return startFolder;
+    }
+
+    public PathConstructor getPathConstructor() {
+        return pathConstructor;
+    }
+
+    /**
+     * @param layouts layouts of which files aren't moved yet
+     */
+    public void setPreviousLayouts(List<PathConstructor> layouts) {
+        this.previousLayouts = new ArrayList<>(layouts);
+    }
+
+    public List<PathConstructor> getPreviousLayouts() {
+        return previousLayouts;
+    }
+
+    /**
+     * @param name file name
+     * @return path of the existing file in the current or a previous layout or its path in the current layout
+     * if it doesn't exist
+     */
+    public Path locate(String name) {
+        final Path path = resolve(name);
+        if (previousLayouts.isEmpty() || Files.exists(path)) return path;
+
+        final Path previous = locatePrevious(name);
+        return previous != null ? previous : path;
+    }
+
+    /**
+     * @param name file name
+     * @return path of the file which is still placed by a previous layout or null
+     */
+    public Path locatePrevious(String name) {
+        for (PathConstructor layout : previousLayouts) {
+            final Path path = Paths.get(layout.calculateDestinationPath(name, startFolderPath), name);
+            if (Files.exists(path)) return path;
+        }
+        return null;
+    }
+
+    /**
+     * @param name file name
+     * @return path of the file
+     */
+    public Path resolve(String name) {
+        return directory(name).resolve(name);
+    }
+
+    /**
+     * @param name file name
+     * @return leaf folder of the file
+     */
+    public Path directory(String name) {
+        if (shardCount < 0)
+            return Paths.get(pathConstructor.calculateDestinationPath(name, startFolderPath));
+
+        final int shard = pathConstructor.shardOf(name);
+        final int pageIndex = shard >>> PAGE_BITS;
+        AtomicReferenceArray<Path> page = pages.get(pageIndex);
+        if (page == null) {
+            pages.compareAndSet(pageIndex, null, new AtomicReferenceArray<Path>(PAGE_SIZE));
+            page = pages.get(pageIndex);
+        }
+
+        final int offset = shard & (PAGE_SIZE - 1);
+        Path directory = page.get(offset);
+        if (directory == null) {
+            directory = Paths.get(startFolderPath.concat(pathConstructor.shardPath(shard)));
+            page.set(offset, directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Creates the leaf folder of the file unless it is known to exist.
+     *
+     * @param name file name
+     * @throws IOException
+     */
+    public void ensureCreated(String name) throws IOException {
+        if (shardCount < 0) {
+            Files.createDirectories(directory(name));
+            return;
+        }
+
+        final int shard = pathConstructor.shardOf(name);
+        final long bit = 1L << (shard & 63);
+        if ((created.get(shard >>> 6) & bit) != 0) return;
+
+        Files.createDirectories(directory(name));
+
+        long bits;
+        do {
+            bits = created.get(shard >>> 6);
+        } while (!created.compareAndSet(shard >>> 6, bits, bits | bit));
+    }
+
+    /**
+     * Creates the leaf folder of the file which was found missing, for example, after empty folders were deleted.
+     *
+     * @param name file name
+     * @throws IOException
+     */
+    public void recreate(String name) throws IOException {
+        forget(name);
+        ensureCreated(name);
+    }
+
+    /**
+     * Forgets all created folders. It is called when empty folders are deleted.
+     */
+    public void forgetCreated() {
+        if (created == null) return;
+        for (int i = 0; i < created.length(); i++) {
+            created.set(i, 0);
+        }
+    }
+
+    private void forget(String name) {
+        if (shardCount < 0) return;
+
+        final int shard = pathConstructor.shardOf(name);
+        final long bit = 1L << (shard & 63);
+        long bits;
+        do {
+            bits = created.get(shard >>> 6);
+        } while (!created.compareAndSet(shard >>> 6, bits, bits & ~bit));
+    }
+}
@@ -0,0 +1,20 @@
+package filestorage.impl;
+
+/**
+ * Hash function which spreads keys over the leaf folders of the {@link PathConstructor}.
+ *
+ * @author Bogdan Kovalev.
+ */
+public interface ShardFunction {
+
+    /**
+     * @return name under which the layout of the storage records the function
+     */
+    String getName();
+
+    /**
+     * @param key
+     * @return hash-code of the 'key'
+     */
+    int hash(String key);
+}
@@ -0,0 +1,82 @@
+package filestorage.impl;
+
+import filestorage.impl.exception.NotEnoughFreeSpaceException;
+
+/**
+ * Disk space reserved in the {@link StorageSpaceInspector} for one write operation.
+ * Bytes are reserved before they are written, in growing chunks if the final size is unknown. After the write
+ * the reservation is committed, which returns the unused rest, or rolled back, which returns everything.
+ * <p>
+ * A reservation is used by one thread only.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class SpaceReservation {
+
+    private static final long MIN_GROW_STEP = 64 * 1024;
+    private static final long MAX_GROW_STEP = 64 * 1024 * 1024;
+
+    private final StorageSpaceInspector storageSpaceInspector;
+
+    private long reserved;
+    private long used;
+    private boolean closed;
+
+    SpaceReservation(StorageSpaceInspector inspector) {
+        this.storageSpaceInspector = inspector;
+    }
+
+    /**
+     * Marks 'bytes' of the reservation as used, reserving more space if needed.
+     *
+     * @param bytes
+     * @throws NotEnoughFreeSpaceException if the storage has not enough free space for these bytes
+     */
+    public void acquire(long bytes) throws NotEnoughFreeSpaceException {
+        final long needed = used + bytes - reserved;
+        if (needed > 0) {
+            final long step = Math.max(needed, Math.min(Math.max(reserved, MIN_GROW_STEP), MAX_GROW_STEP));
+            if (storageSpaceInspector.tryReserve(step))
+                reserved += step;
+            else if (storageSpaceInspector.tryReserve(needed))
+                reserved += needed;
+            else
+                throw new NotEnoughFreeSpaceException();
+        }
+        used += bytes;
+    }
+
+    /**
+     * Reserves exactly 'bytes' more. It is used when the size of the data is known before writing.
+     *
+     * @param bytes
+     * @throws NotEnoughFreeSpaceException
+     */
+    public void reserve(long bytes) throws NotEnoughFreeSpaceException {
+        if (!storageSpaceInspector.tryReserve(bytes))
+            throw new NotEnoughFreeSpaceException();
+        reserved += bytes;
+    }
+
+    /**
+     * Keeps the used bytes and returns the unused rest of the reservation.
+     */
+    public void commit() {
+        if (closed) return;
+        closed = true;
+        storageSpaceInspector.decrementUsedSpace(reserved - used);
+    }
+
+    /**
+     * Returns the whole reservation. It is called when the written data is deleted.
+     */
+    public void rollback() {
+        if (closed) return;
+        closed = true;
+        storageSpaceInspector.decrementUsedSpace(reserved);
+    }
+
+    public long getUsed() {
+        return used;
+    }
+}
@@ -0,0 +1,37 @@
+package filestorage.impl;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Shard functions known to every storage.
+ * <p>
+ * {@link #STRING_HASH_CODE} is the original function of the storage. Keys which differ only in the last
+ * characters, like sequential ids, get close hash-codes from it and fall into the same leaf folders.
+ * {@link #MURMUR3_32} spreads such keys evenly.
+ *
+ * @author Bogdan Kovalev.
+ */
+public enum StandardShardFunction implements ShardFunction {
+
+    STRING_HASH_CODE {
+        @Override
+        public int hash(String key) {
+            return key.hashCode();
+        }
+    },
+
+    MURMUR3_32 {
+        private final HashFunction murmur3 = Hashing.murmur3_32();
+
+        @Override
+        public int hash(String key) {
+            return murmur3.hashUnencodedChars(key).asInt();
+        }
+    };
+
+    @Override
+    public String getName() {
+        return name();
+    }
+}
@@ -0,0 +1,105 @@
+package filestorage.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork/join task that calculates the size of all files under the directory and adds data files to the age index.
+ * The first 'splitDepth' levels of the folders tree are split into parallel subtasks, deeper levels are walked by
+ * {@link Files#walkFileTree}. The system folder is skipped. Data files linked to blobs of the {@link BlobStore}
+ * are indexed, but their bytes are counted once with the blobs.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class StorageScanTask extends RecursiveTask<Long> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StorageScanTask.class);
+
+    private final Path directory;
+    private final int splitDepth;
+    private final Path systemFolderPath;
+    private final Path dataFolderPath;
+    private final FileAgeIndex ageIndex;
+    private final BlobStore blobStore;
+
+    /**
+     * @param blobStore blobs of the storage or null if deduplication is disabled
+     */
+    public StorageScanTask(Path directory, int splitDepth, Path systemFolderPath, Path dataFolderPath, FileAgeIndex ageIndex,
+                           BlobStore blobStore) {
+        this.directory = directory;
+        this.splitDepth = splitDepth;
+        this.systemFolderPath = systemFolderPath;
+        this.dataFolderPath = dataFolderPath;
+        this.ageIndex = ageIndex;
+        this.blobStore = blobStore;
+    }
+
+    @Override
+    protected Long compute() {
+        if (splitDepth == 0) return walk();
+
+        long bytes = 0;
+        final List<StorageScanTask> subtasks = new ArrayList<>();
+
+        try (final DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+            for (Path child : children) {
+                if (child.equals(systemFolderPath)) continue;
+
+                final BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isDirectory()) {
+                    final StorageScanTask subtask = new StorageScanTask(child, splitDepth - 1, systemFolderPath, dataFolderPath, ageIndex, blobStore);
+                    subtask.fork();
+                    subtasks.add(subtask);
+                } else if (attributes.isRegularFile()) {
+                    bytes += account(child, attributes);
+                }
+            }
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Can't scan the directory '{}'", directory);
+        }
+
+        for (StorageScanTask subtask : subtasks) {
+            bytes += subtask.join();
+        }
+        return bytes;
+    }
+
+    private long walk() {
+        final long[] bytes = {0};
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile())
+                        bytes[0] += account(file, attributes);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Can't scan the directory '{}'", directory);
+        }
+        return bytes[0];
+    }
+
+    private long account(Path file, BasicFileAttributes attributes) {
+        if (!file.startsWith(dataFolderPath)) return attributes.size();
+
+        ageIndex.add(String.valueOf(file.getFileName()), attributes.size(), attributes.creationTime().toMillis());
+        return blobStore != null && blobStore.isBlob(attributes.fileKey()) ? 0 : attributes.size();
+    }
+}
@@ -6,17 +6,19 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.FileTime;
-import java.util.ArrayDeque;
-import java.util.Comparator;
-import java.util.Deque;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class provides possibility to calculate used storage disk space, purge files, calculate system folder size and
- * delete empty directories.
+ * delete empty directories. Packed files of the {@link SegmentStore} are deleted and purged here as well.
  *
  * @author Bogdan Kovalev.
  */
@@ -24,36 +26,144 @@ public class StorageSpaceInspector {
 
     private static final Logger LOG = LoggerFactory.getLogger(StorageSpaceInspector.class);
 
+    /**
+     * The storage root and the data folder are split into parallel scan tasks, deeper folders are walked by one task.
+     */
+    private static final int RECOVERY_SPLIT_DEPTH = 2;
+
     private final long diskSpace;
     private final String STORAGE_ROOT;
+    private final Path systemFolderPath;
 
-    private long usedSpace;
+    /**
+     * Bytes of stored files plus bytes reserved by writes in progress. It is changed from writer, deleting and
+     * watcher threads, so all updates are atomic and a reservation never exceeds 'diskSpace'.
+     */
+    private final AtomicLong usedSpace = new AtomicLong();
 
-    private TreeSet<Path> purgeSet = new TreeSet<>(new Comparator<Path>() {
-        @Override
-        public int compare(Path file1, Path file2) {
-            try {
-                final FileTime creationTime1 = (FileTime) Files.getAttribute(file1, "basic:creationTime");
-                final FileTime creationTime2 = (FileTime) Files.getAttribute(file2, "basic:creationTime");
-                final int cmp = creationTime1.compareTo(creationTime2);
-                return cmp == 0 ? 1 : cmp;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            return 0;
-        }
-    });
+    private final FileAgeIndex ageIndex = new FileAgeIndex();
+    private final ShardDirectories shardDirectories;
+    private final String dataFolderPath;
+    private final UsageManifest usageManifest;
+    private final SegmentStore segmentStore;
+    private final KeyLockManager keyLocks;
+    private final BlobStore blobStore;
+    private final ServiceMetrics metrics;
+    private final List<FileRemovalListener> removalListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Released when the used space is evaluated. Until then operations that depend on the used space wait,
+     * but files can already be read.
+     */
+    private final CountDownLatch ready = new CountDownLatch(1);
 
-    public StorageSpaceInspector(long diskSpace, String STORAGE_ROOT) {
+    /**
+     * @param segmentStore packed files or null if the storage has no segments
+     * @param blobStore    blobs of the storage or null if deduplication is disabled
+     * @param metrics      recorder of purges
+     */
+    public StorageSpaceInspector(long diskSpace, String STORAGE_ROOT, ShardDirectories shardDirectories, SegmentStore segmentStore,
+                                 KeyLockManager keyLocks, BlobStore blobStore, ServiceMetrics metrics) {
         this.diskSpace = diskSpace;
         this.STORAGE_ROOT = STORAGE_ROOT;
+        this.shardDirectories = shardDirectories;
+        this.segmentStore = segmentStore;
+        this.keyLocks = keyLocks;
+        this.blobStore = blobStore;
+        this.metrics = metrics;
+        this.systemFolderPath = Paths.get(STORAGE_ROOT, DefaultFileStorageService.SYSTEM_FOLDER_NAME);
+        this.dataFolderPath = String.valueOf(Paths.get(STORAGE_ROOT, DefaultFileStorageService.DATA_FOLDER_NAME));
+        this.usageManifest = new UsageManifest(systemFolderPath.resolve(DefaultFileStorageService.USAGE_MANIFEST_NAME));
 
         evaluateUsedSpace();
+        indexPackedFiles();
     }
 
+    /**
+     * Packed files are added to the age index, so they are purged together with other files.
+     */
+    private void indexPackedFiles() {
+        if (segmentStore == null) return;
+
+        segmentStore.attach(this);
+        segmentStore.forEach(new SegmentStore.Consumer() {
+            @Override
+            public void accept(String key, long recordLength, long creationTime) {
+                if (ageIndex.get(key) == null)
+                    ageIndex.add(key, recordLength, creationTime);
+            }
+        });
+    }
+
+    /**
+     * The used space and the age index are restored from the usage manifest if the service was stopped cleanly.
+     * Otherwise the storage is scanned in the background.
+     */
     private void evaluateUsedSpace() {
-        usedSpace = 0;
-        performInStorage(incrementUsedSpace);
+        final long storedBytes = usageManifest.load(ageIndex);
+        usedSpace.set(getSystemFolderSize());
+
+        if (storedBytes >= 0) {
+            usedSpace.addAndGet(storedBytes);
+            ready.countDown();
+            if (LOG.isInfoEnabled())
+                LOG.info("Used space is restored from the usage manifest.");
+        } else {
+            startRecoveryScan();
+        }
+    }
+
+    private void startRecoveryScan() {
+        if (LOG.isInfoEnabled())
+            LOG.info("Usage manifest not found. Scanning of the storage...");
+
+        final Thread recoveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ForkJoinPool pool = new ForkJoinPool();
+                try {
+                    final long bytes = pool.invoke(new StorageScanTask(Paths.get(STORAGE_ROOT), RECOVERY_SPLIT_DEPTH,
+                            systemFolderPath, Paths.get(dataFolderPath), ageIndex, blobStore));
+                    usedSpace.addAndGet(bytes);
+                } finally {
+                    pool.shutdown();
+                    ready.countDown();
+                }
+
+                if (LOG.isInfoEnabled())
+                    LOG.info("Storage scanning finished. {} files found.", ageIndex.size());
+            }
+        }, "storage-recovery");
+        recoveryThread.setDaemon(true);
+        recoveryThread.start();
+    }
+
+    /**
+     * This method writes the usage manifest, so the next start of the service doesn't need to scan the storage.
+     * It must be called when the storage isn't changed anymore.
+     */
+    public void storeUsageManifest() {
+        awaitReady();
+        usageManifest.store(ageIndex.entries(), usedSpace.get() - getSystemFolderSize());
+    }
+
+    /**
+     * Blocks until the used space is evaluated.
+     */
+    public void awaitReady() {
+        if (ready.getCount() == 0) return;
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                ready.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
     public void deleteEmptyDirectories(File start) {
@@ -74,93 +184,236 @@ public class StorageSpaceInspector {
 
     /**
      * This method releases free disk space by deleting old files.
+     * The oldest files are taken from the age index, so the file system is touched only to delete them.
      *
      * @param neededFreeSpace in bytes.
      */
     public void purge(long neededFreeSpace) {
-        if (getFreeSpace() >= neededFreeSpace) return;
+        awaitReady();
+
+        final long start = System.nanoTime();
+        long purgedBytes = 0;
+        final List<FileAgeIndex.Entry> notDeleted = new ArrayList<>();
 
-        purgeSet.clear();
-        performInStorage(prepareForPurge);
+        // space of packed files is released by the compaction of segments after the loop
+        long packedBytes = 0;
+
+        FileAgeIndex.Entry oldest;
+        while (getFreeSpace() + packedBytes < neededFreeSpace && (oldest = ageIndex.pollOldest()) != null) {
+            // files which are used now are not purged
+            if (!keyLocks.tryLockWrite(oldest.getName())) {
+                notDeleted.add(oldest);
+                continue;
+            }
 
-        while (!purgeSet.isEmpty() && getFreeSpace() < neededFreeSpace) {
-            final Path oldestFile = purgeSet.pollFirst();
             try {
-                final long size = Files.size(oldestFile);
-                Files.delete(oldestFile);
-                decrementUsedSpace(size);
-            } catch (IOException ignored) {
+                final long tombstoneLength = deletePacked(oldest.getName());
+                if (tombstoneLength >= 0) {
+                    incrementUsedSpace(tombstoneLength);
+                    packedBytes += oldest.getSize();
+                    fireFileRemoved(oldest.getName());
+                    continue;
+                }
+
+                final long released = deleteFromDataFolder(resolve(oldest.getName()), oldest.getSize());
+                decrementUsedSpace(released);
+                purgedBytes += released;
+                fireFileRemoved(oldest.getName());
+            } catch (NoSuchFileException ignored) {
+            } catch (IOException e) {
+                if (LOG.isWarnEnabled())
+                    LOG.warn("Can't purge file '{}'", oldest.getName());
+                notDeleted.add(oldest);
+            } finally {
+                keyLocks.unlockWrite(oldest.getName());
             }
         }
+
+        for (FileAgeIndex.Entry entry : notDeleted) {
+            ageIndex.add(entry);
+        }
+
+        if (packedBytes > 0)
+            purgedBytes += segmentStore.compact(true);
+
+        metrics.recordPurge(start, purgedBytes);
     }
 
     /**
-     * This method will be accept the consumer for all file-paths in the storage.
+     * This method adds just saved file to the age index.
      *
-     * @param consumer consumer with specific function
+     * @param name file name
+     * @param size in bytes
      */
-    private void performInStorage(Consumer consumer) {
-        Deque<File> stack = new ArrayDeque<>();
-        stack.push(new File(STORAGE_ROOT));
+    public void registerFile(String name, long size) {
+        ageIndex.add(name, size, System.currentTimeMillis());
+    }
 
-        while (!stack.isEmpty()) {
-            final File[] files = stack.pop().listFiles();
-            if (files == null) continue;
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    stack.push(file);
-                    continue;
-                }
-                consumer.accept(file.toPath());
+    /**
+     * This method registers the file which replaced the previous file with the same name and releases the space
+     * of the previous file. The space of a previous packed file is released by the compaction.
+     *
+     * @param name         file name
+     * @param previousSize space released by the replaced file in the data folder or -1 if there was no such file
+     * @param size         size of the new file
+     * @throws IOException if the previous packed file can't be deleted
+     */
+    public void registerReplacedFile(String name, long previousSize, long size) throws IOException {
+        ageIndex.remove(name);
+        if (previousSize >= 0)
+            decrementUsedSpace(previousSize);
+
+        final long tombstoneLength = deletePacked(name);
+        if (tombstoneLength >= 0)
+            incrementUsedSpace(tombstoneLength);
+
+        registerFile(name, size);
+        fireFileRemoved(name);
+    }
+
+    /**
+     * This method deletes the file with this 'name' from the data folder and releases its space.
+     * If the file is read now, it is deleted when the last reader closes it.
+     *
+     * @param name file name
+     * @return false if the file doesn't exist
+     * @throws IOException if the file exists but can't be deleted
+     */
+    public boolean deleteFile(final String name) throws IOException {
+        awaitReady();
+
+        final boolean[] deleted = {true};
+        keyLocks.delete(name, new KeyLockManager.Deletion() {
+            @Override
+            public void delete() throws IOException {
+                deleted[0] = deleteNow(name);
             }
+        });
+        return deleted[0];
+    }
+
+    private boolean deleteNow(String name) throws IOException {
+        final long tombstoneLength = deletePacked(name);
+        if (tombstoneLength >= 0) {
+            incrementUsedSpace(tombstoneLength);
+            ageIndex.remove(name);
+            fireFileRemoved(name);
+            return true;
+        }
+
+        final Path path = resolve(name);
+        final FileAgeIndex.Entry entry = ageIndex.remove(name);
+        try {
+            final long size = entry != null ? entry.getSize() : Files.size(path);
+            decrementUsedSpace(deleteFromDataFolder(path, size));
+            fireFileRemoved(name);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            if (entry != null)
+                ageIndex.add(entry);
+            throw e;
         }
     }
 
+    /**
+     * Deletes the file of the data folder. A file linked to a blob releases space only if it is the last link.
+     *
+     * @param path path of the file
+     * @param size size of the file
+     * @return number of released bytes
+     * @throws IOException
+     */
+    public long deleteFromDataFolder(Path path, long size) throws IOException {
+        if (blobStore != null) {
+            final long released = blobStore.unlink(path);
+            if (released >= 0) return released;
+        }
+        Files.delete(path);
+        return size;
+    }
+
+    public void addFileRemovalListener(FileRemovalListener listener) {
+        removalListeners.add(listener);
+    }
+
+    private void fireFileRemoved(String name) {
+        for (FileRemovalListener listener : removalListeners) {
+            listener.fileRemoved(name);
+        }
+    }
+
+    /**
+     * @return size of the appended tombstone or -1 if the file isn't packed
+     */
+    private long deletePacked(String name) throws IOException {
+        return segmentStore != null ? segmentStore.delete(name) : -1;
+    }
+
+    private Path resolve(String name) {
+        return shardDirectories.locate(name);
+    }
+
+    /**
+     * @return stored files from the oldest to the newest
+     */
+    public List<FileAgeIndex.Entry> getStoredFiles() {
+        awaitReady();
+        return ageIndex.entries();
+    }
+
+    /**
+     * @param name
+     * @return size of the stored file or -1 if the file isn't indexed yet
+     */
+    public long getStoredSize(String name) {
+        final FileAgeIndex.Entry entry = ageIndex.get(name);
+        return entry != null ? entry.getSize() : -1;
+    }
+
     public long getFreeSpace() {
-        return diskSpace - usedSpace;
+        awaitReady();
+        return diskSpace - usedSpace.get();
     }
 
     public void incrementUsedSpace(long bytes) {
-        usedSpace += bytes;
+        usedSpace.addAndGet(bytes);
     }
 
     public void decrementUsedSpace(long bytes) {
-        usedSpace -= bytes;
+        usedSpace.addAndGet(-bytes);
+    }
+
+    /**
+     * Atomically takes 'bytes' of free space if the storage has enough of it.
+     *
+     * @param bytes
+     * @return true if the space is reserved
+     */
+    public boolean tryReserve(long bytes) {
+        awaitReady();
+        while (true) {
+            final long used = usedSpace.get();
+            if (bytes > diskSpace - used) return false;
+            if (usedSpace.compareAndSet(used, used + bytes)) return true;
+        }
+    }
+
+    /**
+     * @return new empty reservation for one write operation
+     */
+    public SpaceReservation newReservation() {
+        return new SpaceReservation(this);
     }
 
     public long getSystemFolderSize() {
         long size = 0;
-        String systemFolderPath = String.valueOf(Paths.get(STORAGE_ROOT, DefaultFileStorageService.SYSTEM_FOLDER_NAME));
-
-        final File[] files = new File(systemFolderPath).listFiles();
+        final File[] files = systemFolderPath.toFile().listFiles();
         if (files != null)
             for (File file : files) {
                 size += file.length();
             }
         return size;
     }
-
-    private Consumer incrementUsedSpace = new Consumer() {
-        @Override
-        public void accept(Path path) {
-            final File file = new File(String.valueOf(path));
-            if (file.isFile())
-                usedSpace += file.length();
-        }
-    };
-
-    private Consumer prepareForPurge = new Consumer() {
-        @Override
-        public void accept(Path path) {
-            if (path.endsWith(DefaultFileStorageService.SYSTEM_FILE_NAME)) return;
-            final File file = new File(String.valueOf(path));
-            if (file.isFile()) {
-                purgeSet.add(path);
-            }
-        }
-    };
-
-    static interface Consumer {
-        public void accept(Path path);
-    }
 }
@@ -0,0 +1,333 @@
+package filestorage.impl;
+
+import com.google.common.util.concurrent.RateLimiter;
+import filestorage.FileRangeChannel;
+import filestorage.impl.exception.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves files between the tiers of the {@link TieredFileStorageService} in the background. When the fast tier is
+ * filled above the high watermark, the coldest files are demoted to the capacity tier until the fast tier is
+ * filled below the low watermark. Files are ordered by the frequency of recent reads and then by the time of the
+ * last read, so new and frequently read files stay on the fast tier. Files which are read often from the capacity
+ * tier are promoted back while the fast tier has room. Copying is limited to the given number of bytes per second,
+ * so the migration doesn't take the disk bandwidth from foreground operations.
+ * <p>
+ * The copy which the replace of a file leaves in the capacity tier when it can't be deleted is stale: it isn't
+ * read or promoted, and it is deleted by the next passes.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class TierMover implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TierMover.class);
+
+    static final float HIGH_WATERMARK = 0.9f;
+    static final float LOW_WATERMARK = 0.7f;
+
+    /**
+     * Time in milliseconds between passes.
+     */
+    private static final int PASS_DELAY = 1000;
+    private static final int MAX_PENDING_PROMOTIONS = 1024;
+    /**
+     * Maximum number of bytes copied by one permit request, so the rate is kept during the copying of large files.
+     */
+    private static final int COPY_CHUNK_SIZE = 64 * 1024;
+
+    private final DefaultFileStorageService fastTier;
+    private final long fastTierSpace;
+    private final DefaultFileStorageService capacityTier;
+    private final KeyLockManager keyLocks;
+    private final AccessTracker accessTracker;
+    private final RateLimiter rateLimiter;
+    private final Set<String> pendingPromotions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> staleCopies = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicLong demotedFiles = new AtomicLong();
+    private final AtomicLong demotedBytes = new AtomicLong();
+    private final AtomicLong promotedFiles = new AtomicLong();
+    private final AtomicLong promotedBytes = new AtomicLong();
+    private final AtomicLong passes = new AtomicLong();
+
+    /**
+     * @param fastTier       service of the fast tier
+     * @param fastTierSpace  disk space of the fast tier
+     * @param capacityTier   service of the capacity tier
+     * @param keyLocks       locks of file names which are changed by the users of the tiered service
+     * @param accessTracker  reads of the files
+     * @param bytesPerSecond maximum copying rate
+     */
+    public TierMover(DefaultFileStorageService fastTier, long fastTierSpace, DefaultFileStorageService capacityTier,
+                     KeyLockManager keyLocks, AccessTracker accessTracker, long bytesPerSecond) {
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException("Invalid migration rate: " + bytesPerSecond);
+
+        this.fastTier = fastTier;
+        this.fastTierSpace = fastTierSpace;
+        this.capacityTier = capacityTier;
+        this.keyLocks = keyLocks;
+        this.accessTracker = accessTracker;
+        this.rateLimiter = RateLimiter.create(bytesPerSecond);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                deleteStaleCopies();
+                demoteColdFiles();
+                promoteHotFiles();
+                passes.incrementAndGet();
+                Thread.sleep(PASS_DELAY);
+            }
+        } catch (InterruptedException | StorageServiceIsNotStartedError e) {
+            // stopped
+        }
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Tier migration is stopped");
+    }
+
+    /**
+     * Queues the file read from the capacity tier to be moved to the fast tier by the next pass.
+     *
+     * @param name file name
+     */
+    public void requestPromotion(String name) {
+        if (pendingPromotions.size() < MAX_PENDING_PROMOTIONS)
+            pendingPromotions.add(name);
+    }
+
+    /**
+     * Marks files stored in both started tiers as stale in the capacity tier. These are copies left by a replace or
+     * by a move which was interrupted before the file was deleted from the source tier, so the fast tier has the
+     * actual content.
+     */
+    public void findStaleCopies() throws StorageServiceIsNotStartedError {
+        for (FileAgeIndex.Entry entry : capacityTier.getStoredFiles()) {
+            final String key = keyOf(entry.getName());
+            if (key != null && fastTier.containsName(entry.getName()))
+                staleCopies.add(key);
+        }
+    }
+
+    /**
+     * Marks the copy of the file in the capacity tier which can't be deleted now. The caller holds the lock of the key.
+     *
+     * @param key
+     */
+    public void markStale(String key) {
+        staleCopies.add(key);
+    }
+
+    /**
+     * @param key
+     * @return true if the copy of the file in the capacity tier is stale
+     */
+    public boolean isStale(String key) {
+        return staleCopies.contains(key);
+    }
+
+    /**
+     * Deletes the file from the capacity tier, including the stale copy. The caller holds the lock of the key.
+     *
+     * @param key
+     * @throws MaybeFileInUseException if the file is read now, the stale copy stays marked then
+     */
+    public void deleteFromCapacityTier(String key) throws StorageServiceIsNotStartedError, MaybeFileInUseException {
+        capacityTier.deleteFile(key);
+        staleCopies.remove(key);
+    }
+
+    public TieringStats getStats() {
+        return new TieringStats(demotedFiles.get(), demotedBytes.get(), promotedFiles.get(), promotedBytes.get(),
+                passes.get());
+    }
+
+    private void deleteStaleCopies() throws StorageServiceIsNotStartedError {
+        for (String key : staleCopies) {
+            if (Thread.currentThread().isInterrupted()) return;
+
+            final String name = FileNameValidator.encode(key);
+            if (!keyLocks.tryLockWrite(name)) continue;
+            try {
+                deleteFromCapacityTier(key);
+            } catch (MaybeFileInUseException e) {
+                // it is deleted by the next pass
+            } finally {
+                keyLocks.unlockWrite(name);
+            }
+        }
+    }
+
+    private void demoteColdFiles() throws StorageServiceIsNotStartedError {
+        long usedSpace = fastTierSpace - fastTier.getFreeStorageSpaceInBytes();
+        if (usedSpace <= fastTierSpace * HIGH_WATERMARK) return;
+
+        final List<Candidate> candidates = new ArrayList<>();
+        for (FileAgeIndex.Entry entry : fastTier.getStoredFiles()) {
+            candidates.add(new Candidate(entry, accessTracker.frequency(entry.getName()),
+                    accessTracker.lastAccessTime(entry.getName(), entry.getCreationTime())));
+        }
+        Collections.sort(candidates);
+
+        for (Candidate candidate : candidates) {
+            if (usedSpace <= fastTierSpace * LOW_WATERMARK || Thread.currentThread().isInterrupted()) break;
+
+            final long moved = move(candidate.entry.getName(), fastTier, capacityTier, Long.MAX_VALUE);
+            if (moved < 0) continue;
+
+            usedSpace -= candidate.entry.getSize();
+            demotedFiles.incrementAndGet();
+            demotedBytes.addAndGet(moved);
+        }
+    }
+
+    private void promoteHotFiles() throws StorageServiceIsNotStartedError {
+        final Iterator<String> names = pendingPromotions.iterator();
+        while (names.hasNext() && !Thread.currentThread().isInterrupted()) {
+            final String name = names.next();
+            names.remove();
+
+            // promoted files must not push the fast tier above the high watermark
+            final long room = fastTier.getFreeStorageSpaceInBytes() - (long) (fastTierSpace * (1 - HIGH_WATERMARK));
+            final long moved = move(name, capacityTier, fastTier, room);
+            if (moved < 0) continue;
+
+            promotedFiles.incrementAndGet();
+            promotedBytes.addAndGet(moved);
+        }
+    }
+
+    /**
+     * The copy is written to the target tier before the file is deleted from the source tier, so readers which
+     * look into both tiers always find the file.
+     *
+     * @param maxSize files larger than this are not moved
+     * @return number of moved bytes or -1 if the file isn't moved
+     */
+    private long move(String name, DefaultFileStorageService from, DefaultFileStorageService to, long maxSize)
+            throws StorageServiceIsNotStartedError {
+        final String key = keyOf(name);
+        // names of too long keys are hashed, so these files stay where they are
+        if (key == null) return -1;
+        // the actual content of the file is in the fast tier
+        if (from == capacityTier && isStale(key)) return -1;
+
+        // files which are changed now are moved by the next pass
+        if (!keyLocks.tryLockWrite(name)) return -1;
+        try {
+            final long size;
+            try (final FileRangeChannel content = from.readRange(key, 0, Long.MAX_VALUE)) {
+                size = content.remaining();
+                if (size > maxSize) return -1;
+
+                // a copy left by the interrupted move may be stale
+                if (to == capacityTier)
+                    deleteFromCapacityTier(key);
+                else
+                    to.deleteFile(key);
+                final ReadableByteChannel throttled = new ThrottledChannel(content, rateLimiter);
+                final long deadline = from.getDeadline(name);
+                if (deadline < 0)
+                    to.saveFile(key, throttled, size);
+                else
+                    to.saveFile(key, throttled, size, Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            from.deleteFile(key);
+            return size;
+        } catch (FileNotFoundException e) {
+            // the file is deleted
+            return -1;
+        } catch (NotEnoughFreeSpaceException | StorageCorruptedException | MaybeFileInUseException | IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("File '{}' can't be moved between tiers: {}", name, e.getMessage());
+            return -1;
+        } finally {
+            keyLocks.unlockWrite(name);
+        }
+    }
+
+    /**
+     * @return key of the file or null if the name is hashed or invalid
+     */
+    private static String keyOf(String name) {
+        try {
+            return FileNameValidator.decode(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Channel which reads at most {@link #COPY_CHUNK_SIZE} bytes at once and takes a permit for every read byte, so
+     * a large file is copied at the limited rate instead of being paid for by the next file.
+     */
+    private static class ThrottledChannel implements ReadableByteChannel {
+        private final ReadableByteChannel channel;
+        private final RateLimiter rateLimiter;
+
+        private ThrottledChannel(ReadableByteChannel channel, RateLimiter rateLimiter) {
+            this.channel = channel;
+            this.rateLimiter = rateLimiter;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            final int limit = dst.limit();
+            if (dst.remaining() > COPY_CHUNK_SIZE)
+                dst.limit(dst.position() + COPY_CHUNK_SIZE);
+            final int read;
+            try {
+                read = channel.read(dst);
+            } finally {
+                dst.limit(limit);
+            }
+            if (read > 0)
+                rateLimiter.acquire(read);
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * File of the fast tier ordered from the coldest.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+        private final FileAgeIndex.Entry entry;
+        private final int frequency;
+        private final long lastAccessTime;
+
+        private Candidate(FileAgeIndex.Entry entry, int frequency, long lastAccessTime) {
+            this.entry = entry;
+            this.frequency = frequency;
+            this.lastAccessTime = lastAccessTime;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            if (frequency != other.frequency)
+                return Integer.compare(frequency, other.frequency);
+            return Long.compare(lastAccessTime, other.lastAccessTime);
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package filestorage.impl;
+
+import filestorage.BatchResult;
+import filestorage.FileRangeChannel;
+import filestorage.FileStorageService;
+import filestorage.impl.exception.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Implementation of FileStorageService over two storage roots: a small fast tier, for example, on NVMe, and a large
+ * capacity tier, for example, on HDD. New files are saved into the fast tier, and the {@link TierMover} demotes the
+ * coldest of them to the capacity tier when the fast tier is filling up and promotes files which are read often
+ * from the capacity tier back. Reads look into the fast tier first, so hot reads don't touch the capacity tier.
+ * <p>
+ * Files saved from streams of unknown size are written into the fast tier while it is filled below the high watermark
+ * of the {@link TierMover}. Above it the mover doesn't keep up with the uploads, so they are written into the
+ * capacity tier. Files of known size are written into the capacity tier when they don't fit into the fast tier.
+ *
+ * @author Bogdan Kovalev
+ */
+public class TieredFileStorageService implements FileStorageService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TieredFileStorageService.class);
+
+    /**
+     * Files read from the capacity tier at least this number of times recently are promoted.
+     */
+    private static final int PROMOTION_FREQUENCY = 3;
+    private static final long AVERAGE_FILE_SIZE = 64 * 1024;
+    private static final int MAX_TRACKED_FILES = 1 << 20;
+    private static final int KEY_LOCK_STRIPES = 256;
+
+    /**
+     * Read of one tier.
+     */
+    static interface TierRead<T> {
+        T readFrom(DefaultFileStorageService tier) throws StorageServiceIsNotStartedError, IOException;
+    }
+
+    private final DefaultFileStorageService fastTier;
+    private final DefaultFileStorageService capacityTier;
+    private final long fastTierSpace;
+    private final long capacityTierSpace;
+    private final long migrationRate;
+    private final KeyLockManager keyLocks = new KeyLockManager(KEY_LOCK_STRIPES);
+    private final AccessTracker accessTracker;
+
+    private final TierMover tierMover;
+
+    private Thread tierMoverThread;
+    private boolean serviceIsStarted = false;
+
+    /**
+     * @param fastTierSpace     Maximum disk space that service can use in the fast tier
+     * @param fastTierRoot      String path to storage root folder of the fast tier
+     * @param capacityTierSpace Maximum disk space that service can use in the capacity tier
+     * @param capacityTierRoot  String path to storage root folder of the capacity tier
+     * @param migrationRate     maximum number of bytes per second copied between tiers
+     * @throws UnableToCreateStorageException
+     */
+    public TieredFileStorageService(long fastTierSpace, String fastTierRoot, long capacityTierSpace,
+                                    String capacityTierRoot, long migrationRate) throws UnableToCreateStorageException {
+        if (migrationRate <= 0)
+            throw new IllegalArgumentException("Invalid migration rate: " + migrationRate);
+
+        this.fastTierSpace = fastTierSpace;
+        this.capacityTierSpace = capacityTierSpace;
+        this.migrationRate = migrationRate;
+        this.accessTracker = new AccessTracker((int) Math.min(MAX_TRACKED_FILES,
+                Math.max(1, (fastTierSpace + capacityTierSpace) / AVERAGE_FILE_SIZE)));
+
+        if (LOG.isInfoEnabled())
+            LOG.info("New tiered storage. Fast tier: {}. Capacity tier: {}", fastTierRoot, capacityTierRoot);
+
+        this.fastTier = new DefaultFileStorageService(fastTierSpace, fastTierRoot);
+        this.capacityTier = new DefaultFileStorageService(capacityTierSpace, capacityTierRoot);
+        this.tierMover = new TierMover(fastTier, fastTierSpace, capacityTier, keyLocks, accessTracker, migrationRate);
+    }
+
+    /**
+     * This method starts both tiers and the migration between them.
+     *
+     * @throws ServiceStartError if any tier can't be started
+     */
+    public void startService() throws ServiceStartError {
+        if (serviceIsStarted) {
+            if (LOG.isInfoEnabled())
+                LOG.info("Service is already started");
+            return;
+        }
+
+        fastTier.startService();
+        try {
+            capacityTier.startService();
+            final FileRemovalListener removalListener = new FileRemovalListener() {
+                @Override
+                public void fileRemoved(String name) {
+                    forgetRemovedFile(name);
+                }
+            };
+            fastTier.addFileRemovalListener(removalListener);
+            capacityTier.addFileRemovalListener(removalListener);
+            tierMover.findStaleCopies();
+        } catch (ServiceStartError e) {
+            fastTier.stopService();
+            throw e;
+        } catch (StorageServiceIsNotStartedError e) {
+            throw new IllegalStateException("Tiers are not started");
+        }
+
+        tierMoverThread = new Thread(tierMover, "tier-mover");
+        tierMoverThread.setDaemon(true);
+        tierMoverThread.start();
+        serviceIsStarted = true;
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Service is started successfully.");
+    }
+
+    /**
+     * This method stops the migration and both tiers.
+     */
+    public void stopService() {
+        if (!serviceIsStarted) {
+            if (LOG.isInfoEnabled())
+                LOG.info("Service is not started");
+            return;
+        }
+
+        tierMoverThread.interrupt();
+        try {
+            tierMoverThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        tierMoverThread = null;
+        serviceIsStarted = false;
+
+        fastTier.stopService();
+        capacityTier.stopService();
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Service is stopped.");
+    }
+
+    public boolean serviceIsStarted() {
+        return serviceIsStarted;
+    }
+
+    /**
+     * Service of the fast tier. It can be configured before the service is started.
+     */
+    public DefaultFileStorageService getFastTier() {
+        return fastTier;
+    }
+
+    /**
+     * Service of the capacity tier. It can be configured before the service is started.
+     */
+    public DefaultFileStorageService getCapacityTier() {
+        return capacityTier;
+    }
+
+    public TieringStats getTieringStats() {
+        return tierMover.getStats();
+    }
+
+    /**
+     * Moved files are saved into the target tier before they are deleted from the source tier, so the time of the
+     * last read is forgotten only when neither tier has the file.
+     */
+    private void forgetRemovedFile(String name) {
+        try {
+            if (!fastTier.containsName(name) && !capacityTier.containsName(name))
+                accessTracker.forget(name);
+        } catch (StorageServiceIsNotStartedError e) {
+            // the service is stopping
+        }
+    }
+
+    @Override
+    public void saveFile(String key, InputStream inputStream) throws StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException, FileAlreadyExistsException {
+        final String name = FileNameValidator.encode(key);
+        keyLocks.lockWrite(name);
+        try {
+            checkCapacityTier(key);
+            uploadTier(-1).saveFile(key, inputStream);
+        } finally {
+            keyLocks.unlockWrite(name);
+        }
+    }
+
+    @Override
+    public void saveFile(String key, InputStream inputStream, long lifeTimeMillis) throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException {
+        final String name = FileNameValidator.encode(key);
+        keyLocks.lockWrite(name);
+        try {
+            checkCapacityTier(key);
+            uploadTier(-1).saveFile(key, inputStream, lifeTimeMillis);
+        } finally {
+            keyLocks.unlockWrite(name);
+        }
+    }
+
+    /**
+     * The file which doesn't fit into the free space of the fast tier is saved into the capacity tier.
+     */
+    @Override
+    public void saveFile(String key, ReadableByteChannel channel, long size) throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException {
+        if (size < 0)
+            throw new IllegalArgumentException("Invalid size: " + size);
+
+        final String name = FileNameValidator.encode(key);
+        keyLocks.lockWrite(name);
+        try {
+            checkCapacityTier(key);
+            uploadTier(size).saveFile(key, channel, size);
+        } finally {
+            keyLocks.unlockWrite(name);
+        }
+    }
+
+    @Override
+    public void saveFile(String key, Path source) throws FileAlreadyExistsException, StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException, FileNotFoundException {
+        final String name = FileNameValidator.encode(key);
+        keyLocks.lockWrite(name);
+        try {
+            checkCapacityTier(key);
+            try {
+                fastTier.saveFile(key, source);
+            } catch (NotEnoughFreeSpaceException e) {
+                capacityTier.saveFile(key, source);
+            }
+        } finally {
+            keyLocks.unlockWrite(name);
+        }
+    }
+
+    /**
+     * A channel or a stream may be partly read by a failed write, for example, by compression or packing of the
+     * tier, so it isn't written again and its tier is chosen before the write.
+     *
+     * @param size size of the file or -1 if it is unknown
+     * @return tier for the file
+     */
+    private DefaultFileStorageService uploadTier(long size) throws StorageServiceIsNotStartedError {
+        final long freeSpace = fastTier.getFreeStorageSpaceInBytes();
+        if (size >= 0)
+            return size <= freeSpace ? fastTier : capacityTier;
+        return fastTierSpace - freeSpace <= fastTierSpace * TierMover.HIGH_WATERMARK ? fastTier : capacityTier;
+    }
+
+    /**
+     * Files of the fast tier are checked by the fast tier itself. The stale copy doesn't hold the key, it is deleted
+     * if possible, so the file can be saved into the capacity tier.
+     */
+    private void checkCapacityTier(String key) throws StorageServiceIsNotStartedError, FileAlreadyExistsException {
+        if (tierMover.isStale(key)) {
+            try {
+                tierMover.deleteFromCapacityTier(key);
+            } catch (MaybeFileInUseException e) {
+                // it is deleted by the tier mover
+            }
+        } else if (capacityTier.containsFile(key)) {
+            throw new FileAlreadyExistsException(key);
+        }
+    }
+
+    @Override
+    public BatchResult saveFiles(Map<String, InputStream> files) throws StorageServiceIsNotStartedError {
+        return saveFiles(files, -1);
+    }
+
+    @Override
+    public BatchResult saveFiles(Map<String, InputStream> files, long lifeTimeMillis) throws StorageServiceIsNotStartedError {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        final BatchResult result = new BatchResult();
+        for (Map.Entry<String, InputStream> file : files.entrySet()) {
+            try {
+                if (lifeTimeMillis < 0)
+                    saveFile(file.getKey(), file.getValue());
+                else
+                    saveFile(file.getKey(), file.getValue(), lifeTimeMillis);
+                result.addSuccess(file.getKey());
+            } catch (FileAlreadyExistsException | StorageException | RuntimeException e) {
+                result.addFailure(file.getKey(), e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The new content is saved into the fast tier and the previous content is deleted from the capacity tier. The
+     * previous content which is read now is marked as stale and deleted by the {@link TierMover} later.
+     */
+    @Override
+    public void replaceFile(String key, InputStream inputStream) throws StorageServiceIsNotStartedError, NotEnoughFreeSpaceException, StorageCorruptedException {
+        final String name = FileNameValidator.encode(key);
+        keyLocks.lockWrite(name);
+        try {
+            fastTier.replaceFile(key, inputStream);
+            try {
+                tierMover.deleteFromCapacityTier(key);
+            } catch (MaybeFileInUseException e) {
+                tierMover.markStale(key);
+                if (LOG.isWarnEnabled())
+                    LOG.warn("Previous content of '{}' is deleted from the capacity tier later", key);
+            }
+        } finally {
+            keyLocks.unlockWrite(name);
+        }
+    }
+
+    @Override
+    public InputStream readFile(final String key) throws StorageServiceIsNotStartedError, FileNotFoundException {
+        return readFromTiers(key, new TierRead<InputStream>() {
+            @Override
+            public InputStream readFrom(DefaultFileStorageService tier) throws StorageServiceIsNotStartedError, IOException {
+                return tier.readFile(key);
+            }
+        });
+    }
+
+    @Override
+    public long readFile(final String key, final WritableByteChannel target) throws StorageServiceIsNotStartedError, IOException {
+        return read(key, new TierRead<Long>() {
+            @Override
+            public Long readFrom(DefaultFileStorageService tier) throws StorageServiceIsNotStartedError, IOException {
+                return tier.readFile(key, target);
+            }
+        });
+    }
+
+    @Override
+    public FileRangeChannel readRange(final String key, final long offset, final long length) throws StorageServiceIsNotStartedError, FileNotFoundException {
+        return readFromTiers(key, new TierRead<FileRangeChannel>() {
+            @Override
+            public FileRangeChannel readFrom(DefaultFileStorageService tier) throws StorageServiceIsNotStartedError, IOException {
+                return tier.readRange(key, offset, length);
+            }
+        });
+    }
+
+    @Override
+    public ByteBuffer mapFile(final String key) throws StorageServiceIsNotStartedError, FileNotFoundException {
+        return readFromTiers(key, new TierRead<ByteBuffer>() {
+            @Override
+            public ByteBuffer readFrom(DefaultFileStorageService tier) throws StorageServiceIsNotStartedError, IOException {
+                return tier.mapFile(key);
+            }
+        });
+    }
+
+    /**
+     * A tier ignores mappings which it didn't return, so the mapping is released in both tiers.
+     */
+    @Override
+    public void releaseMapping(ByteBuffer mapping) throws StorageServiceIsNotStartedError {
+        fastTier.releaseMapping(mapping);
+        capacityTier.releaseMapping(mapping);
+    }
+
+    /**
+     * Reads which open the file throw only FileNotFoundException.
+     */
+    private <T> T readFromTiers(String key, TierRead<T> read) throws StorageServiceIsNotStartedError, FileNotFoundException {
+        try {
+            return read(key, read);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Looks into the fast tier first and records the successful read. A file read from the capacity tier often is
+     * queued for the promotion, and its stale copy isn't read at all. The file can be moved between tiers during
+     * the read, so a miss in the capacity tier is followed by one more look into the fast tier.
+     */
+    private <T> T read(String key, TierRead<T> read) throws StorageServiceIsNotStartedError, IOException {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        final String name = FileNameValidator.encode(key);
+        try {
+            final T result = read.readFrom(fastTier);
+            accessTracker.recordAccess(name);
+            return result;
+        } catch (FileNotFoundException e) {
+            // the file is cold or doesn't exist
+        }
+
+        final T result;
+        try {
+            if (tierMover.isStale(key)) throw new FileNotFoundException(key);
+            result = read.readFrom(capacityTier);
+        } catch (FileNotFoundException e) {
+            final T moved = read.readFrom(fastTier);
+            accessTracker.recordAccess(name);
+            return moved;
+        }
+        accessTracker.recordAccess(name);
+        if (accessTracker.frequency(name) >= PROMOTION_FREQUENCY)
+            tierMover.requestPromotion(name);
+        return result;
+    }
+
+    @Override
+    public void deleteFile(String key) throws StorageServiceIsNotStartedError, MaybeFileInUseException {
+        final String name = FileNameValidator.encode(key);
+        keyLocks.lockWrite(name);
+        try {
+            fastTier.deleteFile(key);
+            tierMover.deleteFromCapacityTier(key);
+            accessTracker.forget(name);
+        } finally {
+            keyLocks.unlockWrite(name);
+        }
+    }
+
+    @Override
+    public BatchResult deleteFiles(Collection<String> keys) throws StorageServiceIsNotStartedError {
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        final BatchResult result = new BatchResult();
+        for (String key : keys) {
+            try {
+                deleteFile(key);
+                result.addSuccess(key);
+            } catch (MaybeFileInUseException e) {
+                result.addFailure(key, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return sum of the free space of both tiers
+     */
+    @Override
+    public long getFreeStorageSpaceInBytes() throws StorageServiceIsNotStartedError {
+        return fastTier.getFreeStorageSpaceInBytes() + capacityTier.getFreeStorageSpaceInBytes();
+    }
+
+    /**
+     * @return free space of both tiers from their total disk space
+     */
+    @Override
+    public float getFreeStorageSpaceInPercents() throws StorageServiceIsNotStartedError {
+        return (float) getFreeStorageSpaceInBytes() / (fastTierSpace + capacityTierSpace);
+    }
+
+    @Override
+    public void purge(float requiredFreeSpaceInPercents) throws StorageServiceIsNotStartedError, InvalidPercentsValueException {
+        if (requiredFreeSpaceInPercents < 0 || requiredFreeSpaceInPercents > 1)
+            throw new InvalidPercentsValueException(requiredFreeSpaceInPercents);
+
+        purge((long) ((fastTierSpace + capacityTierSpace) * requiredFreeSpaceInPercents));
+    }
+
+    /**
+     * Cold files are purged first: the capacity tier is purged until both tiers together have the required space,
+     * and the fast tier is purged only when the capacity tier can't release enough.
+     */
+    @Override
+    public void purge(long requiredFreeSpaceInBytes) throws StorageServiceIsNotStartedError {
+        if (LOG.isInfoEnabled())
+            LOG.info("Start purging of a storage disk space.");
+
+        if (!serviceIsStarted)
+            throw new StorageServiceIsNotStartedError();
+
+        final long fromCapacityTier = requiredFreeSpaceInBytes - fastTier.getFreeStorageSpaceInBytes();
+        if (fromCapacityTier > capacityTier.getFreeStorageSpaceInBytes())
+            capacityTier.purge(Math.min(fromCapacityTier, capacityTierSpace));
+
+        final long fromFastTier = requiredFreeSpaceInBytes - capacityTier.getFreeStorageSpaceInBytes();
+        if (fromFastTier > fastTier.getFreeStorageSpaceInBytes())
+            fastTier.purge(Math.min(fromFastTier, fastTierSpace));
+
+        if (LOG.isInfoEnabled())
+            LOG.info("{} bytes of the storage disk space was successfully purged.", requiredFreeSpaceInBytes);
+    }
+}
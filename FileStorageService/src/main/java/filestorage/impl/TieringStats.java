@@ -0,0 +1,58 @@
+package filestorage.impl;
+
+/**
+ * Snapshot of the counters of the {@link TierMover}.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class TieringStats {
+
+    private final long demotedFiles;
+    private final long demotedBytes;
+    private final long promotedFiles;
+    private final long promotedBytes;
+    private final long passes;
+
+    TieringStats(long demotedFiles, long demotedBytes, long promotedFiles, long promotedBytes, long passes) {
+        this.demotedFiles = demotedFiles;
+        this.demotedBytes = demotedBytes;
+        this.promotedFiles = promotedFiles;
+        this.promotedBytes = promotedBytes;
+        this.passes = passes;
+    }
+
+    /**
+     * @return number of files moved from the fast tier to the capacity tier
+     */
+    public long getDemotedFiles() {
+        return demotedFiles;
+    }
+
+    public long getDemotedBytes() {
+        return demotedBytes;
+    }
+
+    /**
+     * @return number of files moved from the capacity tier to the fast tier
+     */
+    public long getPromotedFiles() {
+        return promotedFiles;
+    }
+
+    public long getPromotedBytes() {
+        return promotedBytes;
+    }
+
+    /**
+     * @return number of completed passes of the mover
+     */
+    public long getPasses() {
+        return passes;
+    }
+
+    @Override
+    public String toString() {
+        return "TieringStats{demotedFiles=" + demotedFiles + ", demotedBytes=" + demotedBytes +
+                ", promotedFiles=" + promotedFiles + ", promotedBytes=" + promotedBytes + ", passes=" + passes + '}';
+    }
+}
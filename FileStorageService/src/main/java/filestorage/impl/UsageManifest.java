@@ -0,0 +1,127 @@
+package filestorage.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshot of the used space and of the {@link FileAgeIndex} written on the clean shutdown of the service.
+ * It lets the next start skip the scan of the whole storage. The manifest is deleted as soon as it is loaded,
+ * so after a crash there is no manifest and the storage is scanned again.
+ * <p>
+ * Format: magic (int), used bytes (long), number of entries (int), entries as name (UTF), size (long) and
+ * creation time (long), CRC32 of all previous bytes (long).
+ *
+ * @author Bogdan Kovalev.
+ */
+public class UsageManifest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UsageManifest.class);
+
+    private static final int MAGIC = 0x55534d31;
+
+    private final Path path;
+
+    public UsageManifest(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * This method loads entries of the manifest into the 'index' and deletes the manifest.
+     *
+     * @param index
+     * @return bytes used by the storage outside of the system folder or -1 if there is no valid manifest
+     */
+    public long load(FileAgeIndex index) {
+        if (!Files.exists(path)) return -1;
+
+        try (final CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(path)), new CRC32());
+             final DataInputStream in = new DataInputStream(checked)) {
+
+            if (in.readInt() != MAGIC) return -1;
+
+            final long usedBytes = in.readLong();
+            final int count = in.readInt();
+
+            final String[] names = new String[count];
+            final long[] sizes = new long[count];
+            final long[] creationTimes = new long[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = in.readUTF();
+                sizes[i] = in.readLong();
+                creationTimes[i] = in.readLong();
+            }
+
+            final long checksum = checked.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                if (LOG.isWarnEnabled())
+                    LOG.warn("Usage manifest is corrupted");
+                return -1;
+            }
+
+            for (int i = 0; i < count; i++) {
+                index.add(names[i], sizes[i], creationTimes[i]);
+            }
+            return usedBytes;
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Usage manifest can't be read");
+            return -1;
+        } finally {
+            delete();
+        }
+    }
+
+    /**
+     * @param entries   content of the age index
+     * @param usedBytes bytes used by the storage outside of the system folder
+     */
+    public void store(List<FileAgeIndex.Entry> entries, long usedBytes) {
+        final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (final FileOutputStream fileOut = new FileOutputStream(String.valueOf(tmpPath))) {
+            final CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+            final DataOutputStream out = new DataOutputStream(checked);
+
+            out.writeInt(MAGIC);
+            out.writeLong(usedBytes);
+            out.writeInt(entries.size());
+            for (FileAgeIndex.Entry entry : entries) {
+                out.writeUTF(entry.getName());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getCreationTime());
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Usage manifest storing failed");
+            return;
+        }
+
+        try {
+            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Usage manifest storing failed");
+        }
+    }
+
+    private void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Usage manifest can't be deleted");
+        }
+    }
+}
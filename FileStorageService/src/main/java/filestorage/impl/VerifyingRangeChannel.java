@@ -0,0 +1,123 @@
+package filestorage.impl;
+
+import filestorage.FileRangeChannel;
+import filestorage.impl.exception.CorruptedContentException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Range over the whole content of a stored file which computes the {@link Crc32c} of the content while it is read.
+ * When the last byte is read, the checksum is compared with the stored one, and a mismatch is reported to the
+ * listener and thrown as {@link CorruptedContentException}.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class VerifyingRangeChannel extends FileRangeChannel {
+
+    private final FileChannel fileChannel;
+    private final FileRangeChannel range;
+    private final String name;
+    private final long expectedChecksum;
+    private final CorruptionListener listener;
+    private final Crc32c crc = new Crc32c();
+    private boolean verified;
+
+    /**
+     * @param fileChannel      stored file
+     * @param range            range over the whole content, closed when this channel is closed
+     * @param name             name of the file
+     * @param expectedChecksum stored checksum of the content
+     * @param listener
+     */
+    public VerifyingRangeChannel(FileChannel fileChannel, FileRangeChannel range, String name, long expectedChecksum,
+                                 CorruptionListener listener) {
+        super(fileChannel, 0, 0, range);
+        this.fileChannel = fileChannel;
+        this.range = range;
+        this.name = name;
+        this.expectedChecksum = expectedChecksum;
+        this.listener = listener;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        final int start = dst.position();
+        final int read;
+        try {
+            read = range.read(dst);
+        } catch (CorruptedContentException e) {
+            listener.fileCorrupted(name);
+            throw e;
+        }
+
+        if (read > 0) {
+            final ByteBuffer bytes = dst.duplicate();
+            bytes.limit(start + read).position(start);
+            crc.update(bytes);
+        }
+        if (range.remaining() == 0)
+            verify();
+        return read;
+    }
+
+    /**
+     * The content is checked, so it is copied through the user space.
+     */
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(64 * 1024, Math.max(1, remaining())));
+        long transferred = 0;
+        while (read(buffer) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                transferred += target.write(buffer);
+            }
+            buffer.clear();
+        }
+        return transferred;
+    }
+
+    @Override
+    public FileRangeChannel thenClose(Closeable next) {
+        return new VerifyingRangeChannel(fileChannel, range.thenClose(next), name, expectedChecksum, listener);
+    }
+
+    /**
+     * The whole mapping is checked before it is returned.
+     */
+    @Override
+    public ByteBuffer map() throws IOException {
+        final ByteBuffer content = range.map();
+        final Crc32c mapped = new Crc32c();
+        mapped.update(content);
+        if (mapped.getValue() != expectedChecksum)
+            throw mismatch();
+        return content;
+    }
+
+    @Override
+    public long position() {
+        return range.position();
+    }
+
+    @Override
+    public long remaining() {
+        return range.remaining();
+    }
+
+    private void verify() throws CorruptedContentException {
+        if (verified) return;
+        verified = true;
+        if (crc.getValue() != expectedChecksum)
+            throw mismatch();
+    }
+
+    private CorruptedContentException mismatch() {
+        listener.fileCorrupted(name);
+        return new CorruptedContentException("Checksum of '" + name + "' doesn't match its content");
+    }
+}
@@ -0,0 +1,16 @@
+package filestorage.impl.exception;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown while a file is read when its content doesn't match its checksum or can't be decompressed.
+ * It is an {@link IOException}, because it is thrown by channels and streams of the content.
+ *
+ * @author Bogdan Kovalev.
+ */
+public class CorruptedContentException extends IOException {
+
+    public CorruptedContentException(String message) {
+        super(message);
+    }
+}
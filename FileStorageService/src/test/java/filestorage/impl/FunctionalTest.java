@@ -1,17 +1,34 @@
 package filestorage.impl;
 
-import filestorage.impl.exception.StorageException;
+import filestorage.BatchResult;
+import filestorage.FileRangeChannel;
+import filestorage.impl.exception.*;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Random;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 
 import static filestorage.impl.DefaultFileStorageService.DATA_FOLDER_NAME;
 import static org.junit.Assert.assertFalse;
@@ -39,6 +56,46 @@ public class FunctionalTest {
         return new ByteArrayInputStream(new byte[random.nextInt(400) + 100]);
     }
 
+    private static int countFiles(Path directory) throws IOException {
+        int count = 0;
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Files left by other test classes may expire while these tests measure the free space, so every run starts
+     * with an empty storage.
+     */
+    @BeforeClass
+    public static void clearStorage() {
+        Deque<File> stack = new ArrayDeque<>();
+        Deque<File> directories = new ArrayDeque<>();
+        for (String storageRoot : new String[]{STORAGE_ROOT, STORAGE_ROOT + "-purge", STORAGE_ROOT + "-cache", STORAGE_ROOT + "-packed", STORAGE_ROOT + "-shards", STORAGE_ROOT + "-layout", STORAGE_ROOT + "-legacy", STORAGE_ROOT + "-dedup", STORAGE_ROOT + "-compressed", STORAGE_ROOT + "-checksums", STORAGE_ROOT + "-metrics", STORAGE_ROOT + "-volume-0", STORAGE_ROOT + "-volume-1", STORAGE_ROOT + "-volume-2", STORAGE_ROOT + "-fast", STORAGE_ROOT + "-capacity"}) {
+            stack.push(new File(storageRoot));
+        }
+
+        while (!stack.isEmpty()) {
+            final File directory = stack.pop();
+            directories.push(directory);
+            final File[] files = directory.listFiles();
+            if (files == null) continue;
+            for (File file : files) {
+                if (file.isDirectory())
+                    stack.push(file);
+                else
+                    file.delete();
+            }
+        }
+
+        while (!directories.isEmpty()) {
+            directories.pop().delete();
+        }
+    }
+
     @Test
     public void testStartService() throws StorageException {
         LOG.info("############  testStartService() ############\n");
@@ -60,6 +117,33 @@ public class FunctionalTest {
         assertTrue(!fileStorageService.serviceIsStarted());
     }
 
+    @Test
+    public void testUsedSpaceSurvivesRestart() throws StorageException, IOException {
+        LOG.info("############  testUsedSpaceSurvivesRestart() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+        fileStorageService.saveFile(getRandomFileName(), getRandomData());
+        final long expected = fileStorageService.getFreeStorageSpaceInBytes();
+        fileStorageService.stopService();
+
+        final Path manifestPath = Paths.get(STORAGE_ROOT, DefaultFileStorageService.SYSTEM_FOLDER_NAME,
+                DefaultFileStorageService.USAGE_MANIFEST_NAME);
+        assertTrue("Usage manifest is not stored", manifestPath.toFile().exists());
+
+        // restored from the usage manifest
+        final DefaultFileStorageService restartedService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        restartedService.startService();
+        assertFalse("Usage manifest is not consumed", manifestPath.toFile().exists());
+        long actual = restartedService.getFreeStorageSpaceInBytes();
+        assertTrue("Free space expected: " + expected + ", actual: " + actual, actual == expected);
+
+        // evaluated by the recovery scan, because 'restartedService' was not stopped
+        final DefaultFileStorageService recoveredService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        recoveredService.startService();
+        actual = recoveredService.getFreeStorageSpaceInBytes();
+        assertTrue("Free space expected: " + expected + ", actual: " + actual, actual == expected);
+    }
+
     @Test
     public void testSaveFile() throws StorageException, IOException {
         LOG.info("############  testSaveFile() ############\n");
@@ -97,6 +181,52 @@ public class FunctionalTest {
         }
     }
 
+    @Test
+    public void testExpiredFileReleasesSpace() throws StorageException, IOException, InterruptedException {
+        LOG.info("############  testExpiredFileReleasesSpace() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final int fileSize = 300;
+        final long lifeTime = 300;
+
+        final String filename = getRandomFileName();
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(new byte[fileSize]), lifeTime);
+        final long freeSpaceBefore = fileStorageService.getFreeStorageSpaceInBytes();
+
+        Thread.sleep(lifeTime + LifeTimeWatcher.SLEEP_TIME);
+
+        final long freeSpaceAfter = fileStorageService.getFreeStorageSpaceInBytes();
+        // the expiry journal takes the bytes of the remove record of the file
+        final int removeRecordSize = ExpiryJournal.recordSize(FileNameValidator.encode(filename));
+        assertTrue("Released: " + (freeSpaceAfter - freeSpaceBefore),
+                freeSpaceAfter - freeSpaceBefore >= fileSize - removeRecordSize);
+    }
+
+    @Test
+    public void testLifeTimeSurvivesRestart() throws StorageException, IOException, InterruptedException {
+        LOG.info("############  testLifeTimeSurvivesRestart() ############\n");
+        DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final String filename = getRandomFileName();
+        final long lifeTime = 700;
+
+        fileStorageService.saveFile(filename, getRandomData(), lifeTime);
+        fileStorageService.stopService();
+
+        fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        Thread.sleep(lifeTime + LifeTimeWatcher.SLEEP_TIME * 2);
+
+        try (final InputStream inputStream = fileStorageService.readFile(filename)) {
+            assertFalse("File still exist", inputStream != null);
+        } catch (FileNotFoundException e) {
+            assertTrue(true);
+        }
+    }
+
     @Test
     public void testReadFile() throws StorageException, IOException {
         LOG.info("############  testReadFile() ############\n");
@@ -115,6 +245,270 @@ public class FunctionalTest {
         }
     }
 
+    @Test
+    public void testSaveFileFromPath() throws StorageException, IOException {
+        LOG.info("############  testSaveFileFromPath() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final byte[] data = new byte[777];
+        random.nextBytes(data);
+        final Path source = Files.createTempFile("source", null);
+        Files.write(source, data);
+
+        final String filename = getRandomFileName();
+        final long freeSpaceBefore = fileStorageService.getFreeStorageSpaceInBytes();
+        try {
+            fileStorageService.saveFile(filename, source);
+        } finally {
+            Files.delete(source);
+        }
+
+        assertTrue(freeSpaceBefore - fileStorageService.getFreeStorageSpaceInBytes() == data.length);
+        try (final InputStream inputStream = fileStorageService.readFile(filename)) {
+            final byte[] read = new byte[data.length];
+            new DataInputStream(inputStream).readFully(read);
+            assertTrue("Content differs", Arrays.equals(data, read));
+            assertTrue(inputStream.read() == -1);
+        }
+    }
+
+    @Test
+    public void testSaveFileWithKnownSizeRejectsTooLargeFile() throws StorageException, IOException {
+        LOG.info("############  testSaveFileWithKnownSizeRejectsTooLargeFile() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final String filename = getRandomFileName();
+        final long freeSpaceBefore = fileStorageService.getFreeStorageSpaceInBytes();
+        final int size = (int) freeSpaceBefore + 1;
+        try {
+            fileStorageService.saveFile(filename, Channels.newChannel(new ByteArrayInputStream(new byte[size])), size);
+            assertTrue("Too large file saved", false);
+        } catch (NotEnoughFreeSpaceException e) {
+            assertTrue(true);
+        }
+
+        assertTrue(fileStorageService.getFreeStorageSpaceInBytes() == freeSpaceBefore);
+        try (final InputStream inputStream = fileStorageService.readFile(filename)) {
+            assertFalse("Incomplete file exists", inputStream != null);
+        } catch (FileNotFoundException e) {
+            assertTrue(true);
+        }
+
+        boolean rejected = false;
+        try {
+            fileStorageService.saveFile(filename, Channels.newChannel(new ByteArrayInputStream(new byte[10])), -5);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        assertTrue("Negative size is accepted", rejected);
+    }
+
+    @Test
+    public void testReadFileIntoChannel() throws StorageException, IOException {
+        LOG.info("############  testReadFileIntoChannel() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final byte[] data = new byte[500];
+        random.nextBytes(data);
+        final String filename = getRandomFileName();
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(data));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long transferred = fileStorageService.readFile(filename, Channels.newChannel(out));
+
+        assertTrue(transferred == data.length);
+        assertTrue("Content differs", Arrays.equals(data, out.toByteArray()));
+    }
+
+    @Test
+    public void testReadRange() throws StorageException, IOException {
+        LOG.info("############  testReadRange() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final byte[] data = new byte[500];
+        random.nextBytes(data);
+        final String filename = getRandomFileName();
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(data));
+
+        try (final FileRangeChannel range = fileStorageService.readRange(filename, 100, 50)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            range.transferTo(Channels.newChannel(out));
+            assertTrue("Content differs", Arrays.equals(Arrays.copyOfRange(data, 100, 150), out.toByteArray()));
+        }
+
+        try (final InputStream inputStream = Channels.newInputStream(fileStorageService.readRange(filename, 450, 100))) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int read;
+            while ((read = inputStream.read()) != -1) {
+                out.write(read);
+            }
+            assertTrue("Range isn't cut at the end of file", Arrays.equals(Arrays.copyOfRange(data, 450, 500), out.toByteArray()));
+        }
+
+        try (final FileRangeChannel range = fileStorageService.readRange(filename, 1000, 10)) {
+            assertTrue(range.remaining() == 0);
+        }
+    }
+
+    @Test
+    public void testMapFile() throws StorageException, IOException {
+        LOG.info("############  testMapFile() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final byte[] data = new byte[300];
+        random.nextBytes(data);
+        final String filename = getRandomFileName();
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(data));
+
+        for (int i = 0; i < 2; i++) {
+            final ByteBuffer buffer = fileStorageService.mapFile(filename);
+            assertTrue(buffer.isReadOnly());
+            final byte[] mapped = new byte[buffer.remaining()];
+            buffer.get(mapped);
+            assertTrue("Content differs", Arrays.equals(data, mapped));
+            fileStorageService.releaseMapping(buffer);
+        }
+
+        // the mapping of the deleted file must not be returned for the new file with the same key
+        final ByteBuffer stale = fileStorageService.mapFile(filename);
+        fileStorageService.deleteFile(filename);
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(new byte[]{1, 2}));
+        final ByteBuffer buffer = fileStorageService.mapFile(filename);
+        assertTrue(buffer.remaining() == 2);
+        // a late release of the stale mapping doesn't release the new one
+        fileStorageService.releaseMapping(stale);
+        fileStorageService.releaseMapping(stale);
+        final ByteBuffer shared = fileStorageService.mapFile(filename);
+        assertTrue(shared.remaining() == 2);
+        fileStorageService.releaseMapping(shared);
+        fileStorageService.releaseMapping(buffer);
+    }
+
+    @Test
+    public void testMappingPoolHandles() throws IOException, InterruptedException {
+        LOG.info("############  testMappingPoolHandles() ############\n");
+        final Path file = Files.createTempFile("mapping", ".bin");
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[100]));
+            final MappingPool mappingPool = new MappingPool(1, 1024);
+            final Closeable keepOpen = new Closeable() {
+                @Override
+                public void close() {
+                }
+            };
+            final MappingPool.RegionOpener opener = new MappingPool.RegionOpener() {
+                @Override
+                public FileRangeChannel open() {
+                    return new FileRangeChannel(channel, 0, 100, keepOpen);
+                }
+            };
+            final MappingPool.RegionOpener notPooled = new MappingPool.RegionOpener() {
+                @Override
+                public FileRangeChannel open() throws IOException {
+                    throw new IOException("not pooled");
+                }
+            };
+
+            // the file deleted while it is mapped isn't pooled
+            mappingPool.acquire("removed", new MappingPool.RegionOpener() {
+                @Override
+                public FileRangeChannel open() {
+                    mappingPool.fileRemoved("removed");
+                    return new FileRangeChannel(channel, 0, 100, keepOpen);
+                }
+            });
+            assertTrue(mappingPool.size() == 0);
+
+            // the handle which is dropped without the release doesn't pin its mapping
+            mappingPool.acquire("dropped", opener);
+            boolean evicted = false;
+            for (int i = 0; i < 50 && !evicted; i++) {
+                System.gc();
+                Thread.sleep(20);
+                mappingPool.release(mappingPool.acquire("next", opener));
+                try {
+                    mappingPool.release(mappingPool.acquire("next", notPooled));
+                    evicted = true;
+                } catch (IOException e) {
+                    // the dropped handle isn't collected yet
+                }
+            }
+            assertTrue("Dropped handle pins its mapping", evicted);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testContentCache() throws StorageException, IOException, InterruptedException {
+        LOG.info("############  testContentCache() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT + "-cache");
+        fileStorageService.enableContentCache(4096, 1024);
+        fileStorageService.startService();
+
+        final byte[] data = new byte[500];
+        random.nextBytes(data);
+        final String filename = getRandomFileName();
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(data));
+
+        // concurrent misses of one key are served by one load
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<byte[]> contents = Collections.synchronizedList(new ArrayList<byte[]>());
+        final List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        try (final InputStream inputStream = fileStorageService.readFile(filename)) {
+                            final byte[] read = new byte[data.length];
+                            new DataInputStream(inputStream).readFully(read);
+                            contents.add(read);
+                        }
+                    } catch (Throwable e) {
+                        LOG.error("Reading failed", e);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        start.countDown();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertTrue(contents.size() == threads);
+        for (byte[] content : contents) {
+            assertTrue("Content differs", Arrays.equals(data, content));
+        }
+        final CacheStats stats = fileStorageService.getContentCacheStats();
+        assertTrue(stats.toString(), stats.getLoads() == 1 && stats.getHits() + stats.getMisses() == threads);
+
+        // files larger than the limit bypass the cache
+        final String largeFilename = getRandomFileName();
+        fileStorageService.saveFile(largeFilename, new ByteArrayInputStream(new byte[1100]));
+        for (int i = 0; i < 2; i++) {
+            fileStorageService.readFile(largeFilename).close();
+        }
+        assertTrue(fileStorageService.getContentCacheStats().getLoads() == 1);
+        fileStorageService.deleteFile(largeFilename);
+
+        fileStorageService.deleteFile(filename);
+        try (final InputStream inputStream = fileStorageService.readFile(filename)) {
+            assertFalse("Deleted file is cached", inputStream != null);
+        } catch (FileNotFoundException e) {
+            assertTrue(true);
+        }
+    }
+
     @Test
     public void testDeleteFile() throws StorageException, IOException {
         LOG.info("############  testDeleteFile() ############\n");
@@ -133,6 +527,112 @@ public class FunctionalTest {
         }
     }
 
+    @Test
+    public void testDeleteOfReadFileIsDeferred() throws StorageException, IOException {
+        LOG.info("############  testDeleteOfReadFileIsDeferred() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final byte[] data = new byte[400];
+        random.nextBytes(data);
+        final String filename = getRandomFileName();
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(data));
+        final long freeSpaceAfterSave = fileStorageService.getFreeStorageSpaceInBytes();
+
+        try (final InputStream inputStream = fileStorageService.readFile(filename)) {
+            fileStorageService.deleteFile(filename);
+
+            // new readers are refused, but the opened file is still readable
+            try (final InputStream ignored = fileStorageService.readFile(filename)) {
+                assertTrue("File is readable after deleting", false);
+            } catch (FileNotFoundException e) {
+                assertTrue(true);
+            }
+            assertTrue("Space released before the file is closed", fileStorageService.getFreeStorageSpaceInBytes() == freeSpaceAfterSave);
+
+            final byte[] read = new byte[data.length];
+            new DataInputStream(inputStream).readFully(read);
+            assertTrue("Content differs", Arrays.equals(data, read));
+        }
+
+        assertTrue("Space isn't released", fileStorageService.getFreeStorageSpaceInBytes() == freeSpaceAfterSave + data.length);
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(data));
+        fileStorageService.deleteFile(filename);
+    }
+
+    @Test
+    public void testReplaceFile() throws StorageException, IOException {
+        LOG.info("############  testReplaceFile() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final String filename = getRandomFileName();
+        final long freeSpaceBefore = fileStorageService.getFreeStorageSpaceInBytes();
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(new byte[300]));
+
+        final byte[] data = new byte[200];
+        random.nextBytes(data);
+        try (final InputStream previous = fileStorageService.readFile(filename)) {
+            fileStorageService.replaceFile(filename, new ByteArrayInputStream(data));
+
+            // the opened file keeps its content
+            assertTrue(previous.available() == 300);
+        }
+
+        try (final InputStream inputStream = fileStorageService.readFile(filename)) {
+            final byte[] read = new byte[data.length];
+            new DataInputStream(inputStream).readFully(read);
+            assertTrue("Content isn't replaced", Arrays.equals(data, read));
+            assertTrue(inputStream.read() == -1);
+        }
+        assertTrue(fileStorageService.getFreeStorageSpaceInBytes() == freeSpaceBefore - data.length);
+
+        fileStorageService.deleteFile(filename);
+    }
+
+    @Test
+    public void testReplacedFileForgetsLifeTime() throws StorageException, IOException, InterruptedException {
+        LOG.info("############  testReplacedFileForgetsLifeTime() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final String filename = getRandomFileName();
+        final long lifeTime = 300;
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(new byte[100]), lifeTime);
+        fileStorageService.replaceFile(filename, new ByteArrayInputStream(new byte[200]));
+        assertTrue(fileStorageService.getDeadline(FileNameValidator.encode(filename)) == -1);
+
+        Thread.sleep(lifeTime + LifeTimeWatcher.SLEEP_TIME * 2);
+
+        try (final InputStream inputStream = fileStorageService.readFile(filename)) {
+            assertTrue(inputStream.available() == 200);
+        }
+        fileStorageService.deleteFile(filename);
+    }
+
+    @Test
+    public void testFailedSaveLeavesNoFile() throws StorageException, IOException {
+        LOG.info("############  testFailedSaveLeavesNoFile() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final String filename = getRandomFileName();
+        final long freeSpaceBefore = fileStorageService.getFreeStorageSpaceInBytes();
+        try {
+            fileStorageService.saveFile(filename, new ByteArrayInputStream(new byte[(int) freeSpaceBefore + 1]));
+            assertTrue("Too large file saved", false);
+        } catch (NotEnoughFreeSpaceException e) {
+            assertTrue(true);
+        }
+
+        assertTrue(fileStorageService.getFreeStorageSpaceInBytes() == freeSpaceBefore);
+        try (final InputStream inputStream = fileStorageService.readFile(filename)) {
+            assertFalse("Incomplete file exists", inputStream != null);
+        } catch (FileNotFoundException e) {
+            assertTrue(true);
+        }
+    }
+
     @Test
     public void testGetFreeStorageSpace() throws StorageException, IOException {
         LOG.info("############  testGetFreeStorageSpace() ############\n");
@@ -169,6 +669,160 @@ public class FunctionalTest {
         assertTrue("Free space expected: " + expected + ", actual: " + actual, actual == expected);
     }
 
+    @Test
+    public void testConcurrentSavesNeverExceedQuota() throws StorageException, IOException, InterruptedException {
+        LOG.info("############  testConcurrentSavesNeverExceedQuota() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final int fileSize = 700;
+        final List<String> savedFiles = Collections.synchronizedList(new ArrayList<String>());
+
+        final List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            final String key = getRandomFileName();
+                            fileStorageService.saveFile(key, new ByteArrayInputStream(new byte[fileSize]));
+                            savedFiles.add(key);
+                        }
+                    } catch (NotEnoughFreeSpaceException e) {
+                        LOG.info(e.toString());
+                    } catch (FileAlreadyExistsException | StorageCorruptedException | StorageServiceIsNotStartedError e) {
+                        LOG.error(e.toString());
+                    }
+                }
+            }));
+        }
+        for (Thread writer : writers) writer.start();
+        for (Thread writer : writers) writer.join();
+
+        final long freeSpace = fileStorageService.getFreeStorageSpaceInBytes();
+
+        try {
+            assertTrue("Free space: " + freeSpace, freeSpace >= 0);
+            for (String key : savedFiles) {
+                try (InputStream inputStream = fileStorageService.readFile(key)) {
+                    assertTrue("File '" + key + "' is incomplete", inputStream.available() == fileSize);
+                }
+            }
+        } finally {
+            for (String key : savedFiles) {
+                fileStorageService.deleteFile(key);
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncSaveReadDelete() throws Throwable {
+        LOG.info("############  testAsyncSaveReadDelete() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        try (final DefaultAsyncFileStorageService asyncService = new DefaultAsyncFileStorageService(fileStorageService, 2, 32)) {
+            final List<String> keys = new ArrayList<>();
+            final List<CompletableFuture<Void>> saved = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                final String key = getRandomFileName();
+                keys.add(key);
+                saved.add(asyncService.saveFileAsync(key, new ByteArrayInputStream(new byte[]{(byte) i})));
+            }
+            CompletableFuture.allOf(saved.toArray(new CompletableFuture[saved.size()])).join();
+
+            for (int i = 0; i < keys.size(); i++) {
+                try (final InputStream inputStream = asyncService.readFileAsync(keys.get(i)).join()) {
+                    assertTrue(inputStream.read() == i);
+                }
+            }
+
+            for (String key : keys) {
+                asyncService.deleteFileAsync(key).join();
+            }
+
+            try {
+                asyncService.readFileAsync(keys.get(0)).join();
+                assertTrue("Deleted file is read", false);
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof FileNotFoundException);
+            }
+        }
+
+        // operations which don't fit into the queue are rejected instead of being run by the caller
+        try (final DefaultAsyncFileStorageService asyncService = new DefaultAsyncFileStorageService(fileStorageService, 1, 1)) {
+            final CountDownLatch release = new CountDownLatch(1);
+            final InputStream blocked = new InputStream() {
+                private boolean read;
+
+                @Override
+                public int read() throws IOException {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    if (read) return -1;
+                    read = true;
+                    return 1;
+                }
+            };
+            final String first = getRandomFileName();
+            final String second = getRandomFileName();
+            final CompletableFuture<Void> running = asyncService.saveFileAsync(first, blocked);
+            final CompletableFuture<Void> queued = asyncService.saveFileAsync(second, new ByteArrayInputStream(new byte[1]));
+            final CompletableFuture<Void> rejected = asyncService.saveFileAsync(getRandomFileName(), new ByteArrayInputStream(new byte[1]));
+            assertTrue(rejected.isCompletedExceptionally());
+            try {
+                rejected.join();
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+
+            release.countDown();
+            running.join();
+            queued.join();
+            fileStorageService.deleteFile(first);
+            fileStorageService.deleteFile(second);
+        }
+    }
+
+    @Test
+    public void testBatchSaveAndDelete() throws StorageException, IOException, InterruptedException {
+        LOG.info("############  testBatchSaveAndDelete() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+
+        final String existing = getRandomFileName();
+        fileStorageService.saveFile(existing, new ByteArrayInputStream(new byte[10]));
+
+        final Map<String, InputStream> files = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            files.put(getRandomFileName(), new ByteArrayInputStream(new byte[20]));
+        }
+        files.put(existing, new ByteArrayInputStream(new byte[20]));
+
+        final BatchResult saved = fileStorageService.saveFiles(files, 1000);
+        assertTrue(saved.toString(), saved.getSucceeded().size() == 10);
+        assertTrue(saved.getFailures().get(existing) instanceof FileAlreadyExistsException);
+
+        final List<String> keys = new ArrayList<>(saved.getSucceeded());
+        final BatchResult deleted = fileStorageService.deleteFiles(keys.subList(0, 5));
+        assertTrue(deleted.isSuccessful());
+
+        // the rest files are deleted after their life time
+        Thread.sleep(2000);
+        for (String key : keys) {
+            try (final InputStream ignored = fileStorageService.readFile(key)) {
+                assertTrue("File '" + key + "' still exist", false);
+            } catch (FileNotFoundException e) {
+                assertTrue(true);
+            }
+        }
+        fileStorageService.deleteFile(existing);
+    }
+
     @Test
     public void testPurge() throws StorageException, FileAlreadyExistsException {
         LOG.info("############  testPurge() ############\n");
@@ -189,6 +843,95 @@ public class FunctionalTest {
         assertTrue("Free space expected: " + expected + ", actual: " + actual, actual >= expected);
     }
 
+    @Test
+    public void testPurgeDeletesOldestFilesFirst() throws StorageException, IOException, InterruptedException {
+        LOG.info("############  testPurgeDeletesOldestFilesFirst() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT + "-purge");
+        fileStorageService.startService();
+
+        final String[] keys = {getRandomFileName(), getRandomFileName(), getRandomFileName()};
+        for (String key : keys) {
+            fileStorageService.saveFile(key, new ByteArrayInputStream(new byte[300]));
+            Thread.sleep(5);
+        }
+
+        fileStorageService.purge(fileStorageService.getFreeStorageSpaceInBytes() + 400);
+
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                try (InputStream ignored = fileStorageService.readFile(keys[i])) {
+                    assertTrue("File #" + i + " must be purged", i == 2);
+                } catch (FileNotFoundException e) {
+                    assertTrue("File #" + i + " must not be purged", i < 2);
+                }
+            }
+        } finally {
+            fileStorageService.deleteFile(keys[2]);
+        }
+    }
+
+    @Test
+    public void testSmallFilePacking() throws StorageException, IOException {
+        LOG.info("############  testSmallFilePacking() ############\n");
+        final String storageRoot = STORAGE_ROOT + "-packed";
+        DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, storageRoot);
+        fileStorageService.enableSmallFilePacking(512);
+        fileStorageService.startService();
+
+        final Map<String, byte[]> files = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            final byte[] data = new byte[100 + i * 50];
+            random.nextBytes(data);
+            final String filename = getRandomFileName();
+            fileStorageService.saveFile(filename, new ByteArrayInputStream(data));
+            files.put(filename, data);
+        }
+        final String largeFile = getRandomFileName();
+        fileStorageService.saveFile(largeFile, new ByteArrayInputStream(new byte[1000]));
+
+        final Path segments = Paths.get(storageRoot, DefaultFileStorageService.SEGMENTS_FOLDER_NAME);
+        assertTrue("Small files aren't packed", countFiles(segments) == 1);
+        try {
+            fileStorageService.saveFile(files.keySet().iterator().next(), new ByteArrayInputStream(new byte[1]));
+            assertTrue("Packed file is overwritten", false);
+        } catch (FileAlreadyExistsException e) {
+            assertTrue(true);
+        }
+
+        // packed files are read from segments after the restart
+        fileStorageService.stopService();
+        fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, storageRoot);
+        fileStorageService.startService();
+
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            final byte[] data = file.getValue();
+            try (final InputStream inputStream = fileStorageService.readFile(file.getKey())) {
+                final byte[] read = new byte[data.length];
+                new DataInputStream(inputStream).readFully(read);
+                assertTrue("Content differs", Arrays.equals(data, read));
+                assertTrue(inputStream.read() == -1);
+            }
+            try (final FileRangeChannel range = fileStorageService.readRange(file.getKey(), 10, 20)) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                range.transferTo(Channels.newChannel(out));
+                assertTrue("Range differs", Arrays.equals(Arrays.copyOfRange(data, 10, 30), out.toByteArray()));
+            }
+        }
+
+        final String deleted = files.keySet().iterator().next();
+        fileStorageService.deleteFile(deleted);
+        try (final InputStream inputStream = fileStorageService.readFile(deleted)) {
+            assertFalse("Packed file still exist", inputStream != null);
+        } catch (FileNotFoundException e) {
+            assertTrue(true);
+        }
+
+        // deleted records are released by the compaction when all files are purged
+        fileStorageService.purge((long) MAX_DISK_SPACE);
+        assertTrue(fileStorageService.getFreeStorageSpaceInBytes() == MAX_DISK_SPACE - fileStorageService.getSystemFolderSize());
+        assertTrue("Segments aren't compacted", countFiles(segments) == 0);
+    }
+
     @Test
     public void testGetSystemFolderSize() throws StorageException, FileAlreadyExistsException {
         LOG.info("############  testGetSystemFolderSize() ############\n");
@@ -250,9 +993,658 @@ public class FunctionalTest {
     public void testFileNameValidation() throws StorageException {
         LOG.info("############  testFileNameValidation() ############\n");
 
-        final String actual = FileNameValidator.validate("file/\n\r\t\0\f`?*\\<>|\":_name");
-        final String expected = "file_a_b_c_d_e_f_g_h_i_j_k_l_m_n_o_name";
+        final String key = "file/\n\r\t\0\f`?*\\<>|\":_name";
+        final String actual = FileNameValidator.encode(key);
+        final String expected = "file_a_b_c_d_e_f_g_h_i_j_k_l_m_n_o__name";
 
         assertTrue("Expected: " + expected + ", actual: " + actual, actual.equals(expected));
+        assertTrue(FileNameValidator.decode(actual).equals(key));
+    }
+
+    @Test
+    public void testFileNameEncoding() throws StorageException, IOException {
+        LOG.info("############  testFileNameEncoding() ############\n");
+
+        final String clean = "clean-key.txt";
+        assertTrue("Clean key is copied", FileNameValidator.encode(clean) == clean);
+
+        for (String key : new String[]{".", "..", "a_b", "\u0001\u007f", "\ud800x", "\u043a\u043b\u044e\u0447 \ud83d\ude00", "_z"}) {
+            final String name = FileNameValidator.encode(key);
+            assertTrue("Key '" + key + "' isn't decoded from '" + name + "'", key.equals(FileNameValidator.decode(name)));
+        }
+
+        final StringBuilder longKey = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            longKey.append('k');
+        }
+        final String hashed = FileNameValidator.encode(String.valueOf(longKey));
+        assertTrue(hashed.length() <= FileNameValidator.MAX_NAME_BYTES);
+        assertTrue(FileNameValidator.decode(hashed) == null);
+        assertTrue(!hashed.equals(FileNameValidator.encode(longKey + "k")));
+
+        // every operation finds the file by the same encoded name
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, STORAGE_ROOT);
+        fileStorageService.startService();
+        for (String key : new String[]{"dir/file:1", String.valueOf(longKey)}) {
+            fileStorageService.saveFile(key, new ByteArrayInputStream(new byte[10]));
+            try (InputStream inputStream = fileStorageService.readFile(key)) {
+                assertTrue(inputStream.read() == 0);
+            }
+            fileStorageService.deleteFile(key);
+            try (InputStream ignored = fileStorageService.readFile(key)) {
+                assertTrue("File '" + key + "' isn't deleted", false);
+            } catch (FileNotFoundException e) {
+                assertTrue(true);
+            }
+        }
+    }
+
+    @Test
+    public void testLegacyFileNames() throws StorageException, IOException {
+        LOG.info("############  testLegacyFileNames() ############\n");
+        final String storageRoot = STORAGE_ROOT + "-legacy";
+        final String key = "old_file";
+        final String legacyName = FileNameValidator.legacyName(key);
+        assertTrue("old_file".equals(legacyName));
+        assertTrue(FileNameValidator.legacyName("clean-key.txt") == null);
+        assertTrue("file".equals(FileNameValidator.legacyName("file\u00e9")));
+
+        // file saved before the reversible encoding
+        final String dataFolder = String.valueOf(Paths.get(storageRoot, DATA_FOLDER_NAME));
+        final Path legacyPath = Paths.get(new PathConstructor().calculateDestinationPath(legacyName, dataFolder), legacyName);
+        Files.createDirectories(legacyPath.getParent());
+        Files.write(legacyPath, new byte[]{1, 2, 3});
+
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, storageRoot);
+        fileStorageService.startService();
+        try (InputStream inputStream = fileStorageService.readFile(key)) {
+            assertTrue(inputStream.read() == 1);
+        }
+        try {
+            fileStorageService.saveFile(key, new ByteArrayInputStream(new byte[1]));
+            assertTrue("File with the legacy name is shadowed", false);
+        } catch (FileAlreadyExistsException e) {
+            assertTrue(true);
+        }
+        fileStorageService.deleteFile(key);
+        assertTrue("File with the legacy name isn't deleted", !Files.exists(legacyPath));
+        fileStorageService.stopService();
+    }
+
+    @Test
+    public void testShardDirectoriesMatchPathConstructor() throws IOException {
+        LOG.info("############  testShardDirectoriesMatchPathConstructor() ############\n");
+
+        final PathConstructor pathConstructor = new PathConstructor();
+        final Path startFolder = Paths.get("storage-shards");
+        final ShardDirectories shardDirectories = new ShardDirectories(pathConstructor, startFolder);
+
+        final Random random = new Random(15);
+        for (int i = 0; i < 10000; i++) {
+            final String key = Long.toHexString(random.nextLong());
+            final Path expected = Paths.get(pathConstructor.calculateDestinationPath(key, String.valueOf(startFolder)));
+            assertTrue("Wrong folder for '" + key + "'", shardDirectories.directory(key).equals(expected));
+            assertTrue(shardDirectories.directory(key) == shardDirectories.directory(key));
+        }
+
+        shardDirectories.ensureCreated("key");
+        assertTrue(Files.isDirectory(shardDirectories.directory("key")));
+    }
+
+    @Test
+    public void testLayoutMigration() throws StorageException, IOException, InterruptedException {
+        LOG.info("############  testLayoutMigration() ############\n");
+        final String storageRoot = STORAGE_ROOT + "-layout";
+        DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, storageRoot);
+        fileStorageService.startService();
+
+        final Map<String, byte[]> files = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            final byte[] data = new byte[100 + i];
+            random.nextBytes(data);
+            final String filename = "id-" + (1000 + i);
+            fileStorageService.saveFile(filename, new ByteArrayInputStream(data));
+            files.put(filename, data);
+        }
+        fileStorageService.stopService();
+
+        fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, storageRoot);
+        fileStorageService.configureLayout(StandardShardFunction.MURMUR3_32, 2, 16);
+        fileStorageService.startService();
+
+        // files are found while they are moved
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            try (final InputStream inputStream = fileStorageService.readFile(file.getKey())) {
+                final byte[] read = new byte[file.getValue().length];
+                new DataInputStream(inputStream).readFully(read);
+                assertTrue("Content differs", Arrays.equals(file.getValue(), read));
+            }
+            try {
+                fileStorageService.saveFile(file.getKey(), new ByteArrayInputStream(new byte[1]));
+                assertTrue("File of the previous layout is overwritten", false);
+            } catch (FileAlreadyExistsException e) {
+                assertTrue(true);
+            }
+        }
+
+        for (int i = 0; i < 100 && !fileStorageService.layoutMigrationIsFinished(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue("Layout migration isn't finished", fileStorageService.layoutMigrationIsFinished());
+
+        final PathConstructor pathConstructor = new PathConstructor(StandardShardFunction.MURMUR3_32, 2, 16);
+        final String dataFolder = String.valueOf(Paths.get(storageRoot, DATA_FOLDER_NAME));
+        for (String filename : files.keySet()) {
+            assertTrue("File '" + filename + "' isn't moved",
+                    Files.exists(Paths.get(pathConstructor.calculateDestinationPath(filename, dataFolder), filename)));
+        }
+        fileStorageService.stopService();
+
+        // the new layout is kept after the restart
+        fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, storageRoot);
+        fileStorageService.configureLayout(StandardShardFunction.MURMUR3_32, 2, 16);
+        fileStorageService.startService();
+        assertTrue(fileStorageService.layoutMigrationIsFinished());
+        for (String filename : files.keySet()) {
+            fileStorageService.deleteFile(filename);
+        }
+        fileStorageService.stopService();
+    }
+
+    @Test
+    public void testDeduplication() throws StorageException, IOException {
+        LOG.info("############  testDeduplication() ############\n");
+        final String storageRoot = STORAGE_ROOT + "-dedup";
+        DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, storageRoot);
+        fileStorageService.enableDeduplication();
+        fileStorageService.startService();
+
+        final long freeSpace = fileStorageService.getFreeStorageSpaceInBytes();
+        final byte[] data = new byte[1000];
+        random.nextBytes(data);
+        final String[] keys = {getRandomFileName() + "1", getRandomFileName() + "2", getRandomFileName() + "3"};
+        for (String key : keys) {
+            fileStorageService.saveFile(key, new ByteArrayInputStream(data));
+        }
+        assertTrue("Duplicates take space", fileStorageService.getFreeStorageSpaceInBytes() == freeSpace - data.length);
+
+        for (String key : keys) {
+            try (final InputStream inputStream = fileStorageService.readFile(key)) {
+                final byte[] read = new byte[data.length];
+                new DataInputStream(inputStream).readFully(read);
+                assertTrue("Content differs", Arrays.equals(data, read));
+            }
+        }
+
+        // the blob is kept while it has references
+        fileStorageService.deleteFile(keys[0]);
+        fileStorageService.replaceFile(keys[1], new ByteArrayInputStream(new byte[200]));
+        assertTrue(fileStorageService.getFreeStorageSpaceInBytes() == freeSpace - data.length - 200);
+
+        // the replaced blob is released only when the new content is in place
+        fileStorageService.replaceFile(keys[1], new ByteArrayInputStream(new byte[300]));
+        assertTrue(fileStorageService.getFreeStorageSpaceInBytes() == freeSpace - data.length - 300);
+        fileStorageService.replaceFile(keys[2], new ByteArrayInputStream(data));
+        assertTrue(fileStorageService.getFreeStorageSpaceInBytes() == freeSpace - data.length - 300);
+        try (final InputStream inputStream = fileStorageService.readFile(keys[2])) {
+            final byte[] read = new byte[data.length];
+            new DataInputStream(inputStream).readFully(read);
+            assertTrue("Content differs", Arrays.equals(data, read));
+        }
+
+        // the accounting is restored by the scan of the storage
+        fileStorageService.stopService();
+        Files.delete(Paths.get(storageRoot, DefaultFileStorageService.SYSTEM_FOLDER_NAME, DefaultFileStorageService.USAGE_MANIFEST_NAME));
+        fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, storageRoot);
+        fileStorageService.enableDeduplication();
+        fileStorageService.startService();
+        assertTrue(fileStorageService.getFreeStorageSpaceInBytes() == freeSpace - data.length - 300);
+
+        fileStorageService.deleteFile(keys[2]);
+        fileStorageService.deleteFile(keys[1]);
+        assertTrue("Space of the last reference isn't released", fileStorageService.getFreeStorageSpaceInBytes() == freeSpace);
+        fileStorageService.stopService();
+    }
+
+    @Test
+    public void testCompression() throws StorageException, IOException {
+        LOG.info("############  testCompression() ############\n");
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(1024 * 1024, STORAGE_ROOT + "-compressed");
+        fileStorageService.enableCompression();
+        fileStorageService.startService();
+
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 200 * 1024; i++) {
+            text.append("{\"id\": ").append(i).append(", \"name\": \"file-").append(i % 97).append("\", \"tags\": [\"a\", \"b\"]}\n");
+        }
+        final byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+        final String filename = getRandomFileName();
+
+        long freeSpace = fileStorageService.getFreeStorageSpaceInBytes();
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(data));
+        assertTrue("Content isn't compressed", freeSpace - fileStorageService.getFreeStorageSpaceInBytes() < data.length / 2);
+
+        try (final InputStream inputStream = fileStorageService.readFile(filename)) {
+            final byte[] read = new byte[data.length];
+            new DataInputStream(inputStream).readFully(read);
+            assertTrue("Content differs", Arrays.equals(data, read));
+            assertTrue(inputStream.read() == -1);
+        }
+
+        // the range crosses the border of chunks
+        try (final FileRangeChannel range = fileStorageService.readRange(filename, 64 * 1024 - 100, 300)) {
+            assertTrue(range.remaining() == 300);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            range.transferTo(Channels.newChannel(out));
+            assertTrue("Content differs", Arrays.equals(Arrays.copyOfRange(data, 64 * 1024 - 100, 64 * 1024 + 200), out.toByteArray()));
+        }
+
+        final ByteBuffer mapped = fileStorageService.mapFile(filename);
+        final byte[] read = new byte[data.length];
+        mapped.duplicate().get(read);
+        assertTrue("Content differs", mapped.remaining() == data.length && Arrays.equals(data, read));
+        fileStorageService.releaseMapping(mapped);
+
+        // incompressible content is stored raw
+        final byte[] randomData = new byte[100 * 1024];
+        random.nextBytes(randomData);
+        final String randomFilename = getRandomFileName();
+        freeSpace = fileStorageService.getFreeStorageSpaceInBytes();
+        fileStorageService.saveFile(randomFilename, new ByteArrayInputStream(randomData));
+        assertTrue(freeSpace - fileStorageService.getFreeStorageSpaceInBytes() == randomData.length);
+
+        try (final FileRangeChannel range = fileStorageService.readRange(randomFilename, 1000, 500)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            range.transferTo(Channels.newChannel(out));
+            assertTrue("Content differs", Arrays.equals(Arrays.copyOfRange(randomData, 1000, 1500), out.toByteArray()));
+        }
+        fileStorageService.stopService();
+
+        // compressed files aren't read as raw bytes
+        try {
+            new DefaultFileStorageService(1024 * 1024, STORAGE_ROOT + "-compressed").startService();
+            assertTrue("Storage with compressed files is started without compression", false);
+        } catch (ServiceStartError e) {
+            assertTrue(true);
+        }
+    }
+
+    @Test
+    public void testChecksums() throws StorageException, IOException, InterruptedException {
+        LOG.info("############  testChecksums() ############\n");
+        final byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        final Crc32c crc = new Crc32c();
+        crc.update(check, 0, check.length);
+        assertTrue(crc.getValue() == 0xe3069283L);
+        crc.reset();
+        crc.update((ByteBuffer) ByteBuffer.allocateDirect(check.length).put(check).flip());
+        assertTrue(crc.getValue() == 0xe3069283L);
+
+        final String storageRoot = STORAGE_ROOT + "-checksums";
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, storageRoot);
+        fileStorageService.enableChecksums(true);
+        fileStorageService.enableScrubbing(1024 * 1024);
+        fileStorageService.enableSmallFilePacking(1024);
+        final List<String> corrupted = new CopyOnWriteArrayList<>();
+        fileStorageService.addCorruptionListener(new CorruptionListener() {
+            @Override
+            public void fileCorrupted(String name) {
+                corrupted.add(name);
+            }
+        });
+        fileStorageService.startService();
+
+        final byte[] data = new byte[2000];
+        random.nextBytes(data);
+        final String healthy = getRandomFileName() + "1";
+        final String damaged = getRandomFileName() + "2";
+        fileStorageService.saveFile(healthy, new ByteArrayInputStream(data));
+        fileStorageService.saveFile(damaged, new ByteArrayInputStream(data));
+
+        final byte[] packedData = new byte[100];
+        random.nextBytes(packedData);
+        final String packedHealthy = getRandomFileName() + "3";
+        final String packedDamaged = getRandomFileName() + "4";
+        fileStorageService.saveFile(packedHealthy, new ByteArrayInputStream(packedData));
+        fileStorageService.saveFile(packedDamaged, new ByteArrayInputStream(packedData));
+
+        // a bit flips on the disk
+        try (final FileChannel channel = FileChannel.open(findFile(Paths.get(storageRoot, DATA_FOLDER_NAME), damaged),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) (data[1000] ^ 1)}), 1000);
+        }
+        Path segment = null;
+        byte[] segmentBytes = null;
+        int damagedRecord = -1;
+        final Path segmentsFolder = Paths.get(storageRoot, DefaultFileStorageService.SEGMENTS_FOLDER_NAME);
+        try (final DirectoryStream<Path> segments = Files.newDirectoryStream(segmentsFolder)) {
+            for (Path file : segments) {
+                segmentBytes = Files.readAllBytes(file);
+                damagedRecord = indexOf(segmentBytes, packedDamaged.getBytes(StandardCharsets.UTF_8));
+                segment = file;
+                if (damagedRecord >= 0) break;
+            }
+        }
+        assertTrue("File isn't packed", damagedRecord >= 0);
+        try (final FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            final int position = damagedRecord + packedDamaged.length() + 50;
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) (segmentBytes[position] ^ 1)}), position);
+        }
+
+        try (final InputStream inputStream = fileStorageService.readFile(healthy)) {
+            final byte[] read = new byte[data.length];
+            new DataInputStream(inputStream).readFully(read);
+            assertTrue(Arrays.equals(data, read) && inputStream.read() == -1);
+        }
+
+        boolean detected = false;
+        try (final InputStream inputStream = fileStorageService.readFile(damaged)) {
+            while (inputStream.read() != -1) ;
+        } catch (CorruptedContentException e) {
+            detected = true;
+        }
+        assertTrue("Corruption isn't detected on read", detected && corrupted.contains(damaged));
+
+        try (final InputStream inputStream = fileStorageService.readFile(packedHealthy)) {
+            final byte[] read = new byte[packedData.length];
+            new DataInputStream(inputStream).readFully(read);
+            assertTrue(Arrays.equals(packedData, read) && inputStream.read() == -1);
+        }
+        detected = false;
+        try (final InputStream inputStream = fileStorageService.readFile(packedDamaged)) {
+            while (inputStream.read() != -1) ;
+        } catch (CorruptedContentException e) {
+            detected = true;
+        }
+        assertTrue("Corruption of a packed file isn't detected on read", detected && corrupted.contains(packedDamaged));
+
+        // partial ranges aren't verified
+        try (final FileRangeChannel range = fileStorageService.readRange(damaged, 0, 100)) {
+            range.transferTo(Channels.newChannel(new ByteArrayOutputStream()));
+        }
+
+        corrupted.clear();
+        final long passes = fileStorageService.getIntegrityStats().getScrubPasses();
+        for (int i = 0; i < 100 && fileStorageService.getIntegrityStats().getScrubPasses() < passes + 2; i++) {
+            Thread.sleep(100);
+        }
+        final IntegrityStats stats = fileStorageService.getIntegrityStats();
+        assertTrue("Scrubber is stuck: " + stats, stats.getScrubPasses() >= passes + 2);
+        assertTrue("Corruption isn't detected by the scrubber", corrupted.contains(damaged) && !corrupted.contains(healthy));
+        assertTrue("Corruption of a packed file isn't detected by the scrubber",
+                corrupted.contains(packedDamaged) && !corrupted.contains(packedHealthy));
+        assertTrue(stats.getCorruptions() >= 4 && stats.getScrubbedBytes() >= 2 * data.length);
+        fileStorageService.stopService();
+    }
+
+    @Test
+    public void testMetrics() throws Throwable {
+        LOG.info("############  testMetrics() ############\n");
+        final Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        final HistogramSnapshot snapshot = histogram.snapshot();
+        assertTrue(snapshot.getCount() == 100000 && snapshot.getMax() == 100000 && snapshot.getMean() == 50000.5);
+        assertTrue("Wrong percentile: " + snapshot, Math.abs(snapshot.getP50() - 50000) <= 50000 / 32);
+        assertTrue("Wrong percentile: " + snapshot, Math.abs(snapshot.getP99() - 99000) <= 99000 / 32);
+
+        final String storageRoot = STORAGE_ROOT + "-metrics";
+        final DefaultFileStorageService fileStorageService = new DefaultFileStorageService(MAX_DISK_SPACE, storageRoot);
+        fileStorageService.startService();
+
+        final String filename = getRandomFileName();
+        fileStorageService.saveFile(filename, new ByteArrayInputStream(new byte[1000]));
+        try {
+            fileStorageService.saveFile(filename, new ByteArrayInputStream(new byte[10]));
+        } catch (FileAlreadyExistsException ignored) {
+        }
+        try {
+            fileStorageService.saveFile(getRandomFileName(), new ByteArrayInputStream(new byte[MAX_DISK_SPACE]));
+        } catch (NotEnoughFreeSpaceException ignored) {
+        }
+        fileStorageService.readFile(filename).close();
+        fileStorageService.deleteFile(filename);
+        fileStorageService.purge(0.5f);
+
+        final MetricsSnapshot metrics = fileStorageService.getMetrics();
+        assertTrue(metrics.toString(), metrics.getSaveLatency().getCount() == 3 && metrics.getReadLatency().getCount() == 1
+                && metrics.getDeleteLatency().getCount() == 1 && metrics.getPurgeDuration().getCount() == 1);
+        assertTrue(metrics.toString(), metrics.getBytesIn() == 1000 && metrics.getBytesOut() == 1000);
+        assertTrue(metrics.toString(), metrics.getFileAlreadyExistsErrors() == 1 && metrics.getNotEnoughFreeSpaceErrors() == 1);
+        assertTrue(metrics.toString(), metrics.getWatcherTickDuration().getCount() > 0);
+
+        final ObjectName name = new ObjectName("filestorage:type=FileStorageService,root=" + ObjectName.quote(storageRoot));
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final CompositeData saveLatency = (CompositeData) server.getAttribute(name, "SaveLatency");
+        assertTrue((Long) saveLatency.get("count") == 3 && (Long) server.getAttribute(name, "BytesIn") == 1000);
+
+        fileStorageService.stopService();
+        assertFalse("Metrics are left published", server.isRegistered(name));
+    }
+
+    @Test
+    public void testMultiVolume() throws Throwable {
+        LOG.info("############  testMultiVolume() ############\n");
+        final List<MultiVolumeFileStorageService.Volume> volumes = Arrays.asList(
+                new MultiVolumeFileStorageService.Volume(STORAGE_ROOT + "-volume-0", 3 * 1024 * 1024),
+                new MultiVolumeFileStorageService.Volume(STORAGE_ROOT + "-volume-1", 1024 * 1024));
+        MultiVolumeFileStorageService fileStorageService = new MultiVolumeFileStorageService(volumes, 2, 16);
+        fileStorageService.startService();
+
+        final Map<String, InputStream> files = new LinkedHashMap<>();
+        for (int i = 0; i < 400; i++) {
+            files.put("file-" + i, new ByteArrayInputStream(new byte[1024]));
+        }
+        assertTrue(fileStorageService.saveFiles(files).isSuccessful());
+
+        // the larger volume gets about 3/4 of files
+        int onFirstVolume = 0;
+        for (String key : files.keySet()) {
+            final MultiVolumeFileStorageService.Volume volume = fileStorageService.volumeOf(key);
+            assertTrue("File isn't on its volume", findFile(Paths.get(volume.getRoot(), DATA_FOLDER_NAME),
+                    FileNameValidator.encode(key)) != null);
+            if (volume == volumes.get(0)) onFirstVolume++;
+        }
+        assertTrue("Placement isn't weighted: " + onFirstVolume, onFirstVolume > 250 && onFirstVolume < 350);
+
+        final long totalSpace = 4 * 1024 * 1024;
+        final long freeSpace = fileStorageService.getFreeStorageSpaceInBytes();
+        assertTrue(freeSpace <= totalSpace - 400 * 1024);
+        assertTrue(fileStorageService.getFreeStorageSpaceInPercents() == (float) freeSpace / totalSpace);
+        fileStorageService.stopService();
+
+        // the placement depends on the ids of volumes rather than on their paths
+        final List<MultiVolumeFileStorageService.Volume> absoluteVolumes = new ArrayList<>();
+        for (MultiVolumeFileStorageService.Volume volume : volumes) {
+            absoluteVolumes.add(new MultiVolumeFileStorageService.Volume(String.valueOf(Paths.get(volume.getRoot()).toAbsolutePath()), volume.getCapacity()));
+        }
+        final MultiVolumeFileStorageService absoluteService = new MultiVolumeFileStorageService(absoluteVolumes, 2, 16);
+        for (String key : files.keySet()) {
+            assertTrue(absoluteVolumes.indexOf(absoluteService.volumeOf(key)) == volumes.indexOf(fileStorageService.volumeOf(key)));
+        }
+
+        // the placement doesn't change after restart
+        fileStorageService = new MultiVolumeFileStorageService(volumes, 2, 16);
+        fileStorageService.startService();
+        try (final InputStream inputStream = fileStorageService.readFileAsync("file-7").join()) {
+            assertTrue(inputStream.read(new byte[2048]) == 1024);
+        }
+
+        fileStorageService.purge(totalSpace - 100 * 1024);
+        assertTrue("Space isn't purged on every volume", fileStorageService.getFreeStorageSpaceInBytes() >= totalSpace - 100 * 1024);
+        int left = 0;
+        for (String key : files.keySet()) {
+            try {
+                fileStorageService.readFile(key).close();
+                left++;
+            } catch (FileNotFoundException ignored) {
+            }
+        }
+        assertTrue("Files aren't purged: " + left, left < 100);
+
+        final BatchResult deleted = fileStorageService.deleteFiles(files.keySet());
+        assertTrue(deleted.getSucceeded().size() + deleted.getFailures().size() == files.size());
+        for (int i = 0; i < 100; i++) {
+            fileStorageService.saveFile("kept-" + i, new ByteArrayInputStream(new byte[1024]));
+        }
+        fileStorageService.stopService();
+
+        // files stay on their volumes when a volume is added and are found there
+        final List<MultiVolumeFileStorageService.Volume> extendedVolumes = new ArrayList<>(volumes);
+        extendedVolumes.add(new MultiVolumeFileStorageService.Volume(STORAGE_ROOT + "-volume-2", 4 * 1024 * 1024));
+        fileStorageService = new MultiVolumeFileStorageService(extendedVolumes, 2, 16);
+        fileStorageService.startService();
+        String misplaced = null;
+        for (int i = 0; i < 100 && misplaced == null; i++) {
+            if (fileStorageService.volumeOf("kept-" + i) == extendedVolumes.get(2))
+                misplaced = "kept-" + i;
+        }
+        assertTrue("No file is placed on the added volume", misplaced != null);
+        try (final InputStream inputStream = fileStorageService.readFileAsync(misplaced).join()) {
+            assertTrue(inputStream.read(new byte[2048]) == 1024);
+        }
+        try {
+            fileStorageService.saveFile(misplaced, new ByteArrayInputStream(new byte[1]));
+            assertTrue("File on the previous volume is shadowed", false);
+        } catch (FileAlreadyExistsException e) {
+            assertTrue(true);
+        }
+        fileStorageService.deleteFile(misplaced);
+        try (InputStream ignored = fileStorageService.readFile(misplaced)) {
+            assertTrue("Misplaced file isn't deleted", false);
+        } catch (FileNotFoundException e) {
+            assertTrue(true);
+        }
+        fileStorageService.stopService();
+
+        // a volume of the recorded set can't be left out
+        try {
+            new MultiVolumeFileStorageService(volumes, 2, 16).startService();
+            assertTrue("Service is started without a volume", false);
+        } catch (ServiceStartError e) {
+            assertTrue(true);
+        }
+    }
+
+    @Test
+    public void testTiering() throws Throwable {
+        LOG.info("############  testTiering() ############\n");
+        final String fastTierRoot = STORAGE_ROOT + "-fast";
+        final String capacityTierRoot = STORAGE_ROOT + "-capacity";
+        final TieredFileStorageService fileStorageService = new TieredFileStorageService(64 * 1024, fastTierRoot,
+                1024 * 1024, capacityTierRoot, 10 * 1024 * 1024);
+        fileStorageService.startService();
+
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            keys.add("file-" + i);
+            fileStorageService.saveFile(keys.get(i), new ByteArrayInputStream(new byte[1024]));
+        }
+        // the oldest files are read often, so they stay on the fast tier instead of newer files
+        final List<String> hotKeys = keys.subList(0, 5);
+        for (int i = 0; i < 5; i++) {
+            for (String key : hotKeys) {
+                fileStorageService.readFile(key).close();
+            }
+        }
+
+        final long targetFreeSpace = (long) (64 * 1024 * (1 - TierMover.LOW_WATERMARK));
+        for (int i = 0; i < 100 && fileStorageService.getFastTier().getFreeStorageSpaceInBytes() < targetFreeSpace; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue("Cold files aren't demoted", fileStorageService.getFastTier().getFreeStorageSpaceInBytes() >= targetFreeSpace);
+        assertTrue(fileStorageService.getTieringStats().getDemotedFiles() > 0);
+
+        final Path fastTierData = Paths.get(fastTierRoot, DATA_FOLDER_NAME);
+        final Path capacityTierData = Paths.get(capacityTierRoot, DATA_FOLDER_NAME);
+        for (String key : hotKeys) {
+            assertTrue("Hot file is demoted", findFile(fastTierData, FileNameValidator.encode(key)) != null);
+        }
+        String coldKey = null;
+        for (String key : keys) {
+            try (final InputStream inputStream = fileStorageService.readFile(key)) {
+                assertTrue(inputStream.read(new byte[2048]) == 1024);
+            }
+            if (coldKey == null && findFile(capacityTierData, FileNameValidator.encode(key)) != null)
+                coldKey = key;
+        }
+        assertTrue(coldKey != null);
+        assertTrue(findFile(fastTierData, FileNameValidator.encode(coldKey)) == null);
+
+        // a cold file which is read often is promoted
+        for (int i = 0; i < 5; i++) {
+            fileStorageService.readFile(coldKey).close();
+        }
+        for (int i = 0; i < 100 && fileStorageService.getTieringStats().getPromotedFiles() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue("Hot file isn't promoted", findFile(fastTierData, FileNameValidator.encode(coldKey)) != null);
+        assertTrue(findFile(capacityTierData, FileNameValidator.encode(coldKey)) == null);
+
+        boolean existed = false;
+        try {
+            fileStorageService.saveFile(keys.get(30), new ByteArrayInputStream(new byte[10]));
+        } catch (FileAlreadyExistsException e) {
+            existed = true;
+        }
+        assertTrue(existed);
+
+        // cold files are purged first
+        final long fastTierFreeSpace = fileStorageService.getFastTier().getFreeStorageSpaceInBytes();
+        fileStorageService.purge(fileStorageService.getFreeStorageSpaceInBytes() + 2048);
+        assertTrue(fileStorageService.getFastTier().getFreeStorageSpaceInBytes() == fastTierFreeSpace);
+        for (String key : hotKeys) {
+            fileStorageService.readFile(key).close();
+        }
+
+        fileStorageService.deleteFile(coldKey);
+        boolean deleted = false;
+        try {
+            fileStorageService.readFile(coldKey);
+        } catch (FileNotFoundException e) {
+            deleted = true;
+        }
+        assertTrue(deleted);
+
+        // the file which doesn't fit into the fast tier is written into the capacity tier at once
+        final byte[] large = new byte[128 * 1024];
+        random.nextBytes(large);
+        fileStorageService.saveFile("large", Channels.newChannel(new ByteArrayInputStream(large)), large.length);
+        assertTrue(findFile(capacityTierData, FileNameValidator.encode("large")) != null);
+        try (final InputStream inputStream = fileStorageService.readFile("large")) {
+            final byte[] read = new byte[large.length];
+            new DataInputStream(inputStream).readFully(read);
+            assertTrue(Arrays.equals(large, read));
+        }
+
+        // files stored in both tiers are read from the fast tier after the restart
+        fileStorageService.stopService();
+        fileStorageService.startService();
+        for (String key : hotKeys) {
+            fileStorageService.readFile(key).close();
+        }
+        fileStorageService.stopService();
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            if (Arrays.equals(part, Arrays.copyOfRange(bytes, i, i + part.length))) return i;
+        }
+        return -1;
+    }
+
+    private static Path findFile(Path folder, String name) throws IOException {
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                if (Files.isDirectory(file)) {
+                    final Path found = findFile(file, name);
+                    if (found != null) return found;
+                } else if (String.valueOf(file.getFileName()).equals(name)) {
+                    return file;
+                }
+            }
+        }
+        return null;
     }
-}
\ No newline at end of file
+}